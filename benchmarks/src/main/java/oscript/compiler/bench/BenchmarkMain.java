@@ -0,0 +1,53 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Entry point of <tt>benchmarks.jar</tt>.  Takes the same arguments as
+ * the JMH main, but enables the GC profiler unless some profiler is
+ * given with <tt>-prof</tt>, since allocation per operation is as
+ * interesting as time for the compiler and for the generated code.
+ */
+public class BenchmarkMain
+{
+  public static void main( String[] args )
+    throws Exception
+  {
+    CommandLineOptions cmdOptions = new CommandLineOptions(args);
+    if( cmdOptions.shouldHelp() || cmdOptions.shouldList() ||
+        cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats() )
+    {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    
+    OptionsBuilder builder = new OptionsBuilder();
+    builder.parent(cmdOptions);
+    if( cmdOptions.getProfilers().isEmpty() )
+      builder.addProfiler(GCProfiler.class);
+    
+    Options options = builder.build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,59 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler.bench;
+
+import oscript.NodeEvaluator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Cost of <code>callAsFunction</code> from compiled code, by number of
+ * arguments.  The functions <tt>f0</tt> thru <tt>f8</tt> are defined by
+ * {@link ScriptState#PRELUDE}, and just return their last argument.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CallBenchmark extends ScriptState
+{
+  @Param({ "0", "1", "2", "3", "4", "5", "6", "7", "8" })
+  public int args;
+  
+  private NodeEvaluator call;
+  
+  @Setup(Level.Trial)
+  public void setup()
+  {
+    StringBuffer sb = new StringBuffer();
+    sb.append("f").append(args).append("(");
+    for( int i=0; i<args; i++ )
+      sb.append( (i == 0) ? " a" : ", a" );
+    sb.append( (args == 0) ? ");" : " );" );
+    call = compile( "call" + args, sb.toString() );
+  }
+  
+  @Benchmark
+  public Object call()
+  {
+    return eval(call);
+  }
+}
@@ -0,0 +1,61 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler.bench;
+
+import oscript.compiler.CompilerContext;
+import oscript.syntaxtree.Node;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Throughput of generating the class file for each script in the
+ * {@link Corpus}, with {@link CompilerContext#compileNode(String,Node)}.
+ * Run with <tt>-prof gc</tt> (the default, see {@link BenchmarkMain}) to
+ * also see the allocation per compile.
+ * <p>
+ * The script is parsed once, so only the compiler is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CompileBenchmark
+{
+  @Param({ "small", "nested", "literals", "tryfinally" })
+  public String script;
+  
+  private String name;
+  private Node node;
+  
+  @Setup
+  public void setup()
+  {
+    name = Corpus.className(script);
+    node = Corpus.parse(script);
+  }
+  
+  @Benchmark
+  public byte[] compile()
+  {
+    return CompilerContext.compileNode( name, node );
+  }
+}
@@ -0,0 +1,67 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler.bench;
+
+import oscript.compiler.CompilerContext;
+import oscript.syntaxtree.Node;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Throughput of compiling from several threads at once.  The
+ * <tt>serialized</tt> benchmark runs with the default configuration, where
+ * compiles are serialized on the BCEL lock, and <tt>concurrent</tt> with
+ * {@link CompilerContext#CONCURRENT_COMPILE}, so the two can be compared.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentCompileBenchmark
+{
+  @Param({ "small", "tryfinally" })
+  public String script;
+  
+  private String name;
+  private Node node;
+  
+  @Setup
+  public void setup()
+  {
+    name = Corpus.className(script);
+    node = Corpus.parse(script);
+  }
+  
+  @Benchmark
+  @Fork(2)
+  public byte[] serialized()
+  {
+    return CompilerContext.compileNode( name, node );
+  }
+  
+  @Benchmark
+  @Fork( value = 2, jvmArgsAppend = "-Doscript.compiler.concurrent=true" )
+  public byte[] concurrent()
+  {
+    return CompilerContext.compileNode( name, node );
+  }
+}
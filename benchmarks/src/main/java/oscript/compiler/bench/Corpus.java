@@ -0,0 +1,98 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler.bench;
+
+import oscript.parser.OscriptParser;
+import oscript.syntaxtree.Node;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * The corpus of representative scripts that the benchmarks compile.  Each
+ * script is a resource next to this class:
+ * <ul>
+ *   <li> <tt>small</tt> - a couple of helper functions and a loop
+ *   <li> <tt>nested</tt> - deeply nested functions
+ *   <li> <tt>literals</tt> - large tables of string and number literals
+ *   <li> <tt>tryfinally</tt> - nested <code>try</code>/<code>finally</code>
+ *        with jumps out of the protected regions
+ * </ul>
+ */
+final class Corpus
+{
+  private Corpus() {}
+  
+  /**
+   * Load and parse a script from the corpus.
+   * 
+   * @param script    the name of the script, without the <tt>.os</tt> extension
+   * @return the parsed syntax-tree
+   */
+  static Node parse( String script )
+  {
+    return parseSource( load(script) );
+  }
+  
+  /**
+   * Parse a script.
+   */
+  static Node parseSource( String src )
+  {
+    try
+    {
+      return (new OscriptParser( new StringReader(src) )).ProgramFile();
+    }
+    catch(Exception e)
+    {
+      throw new RuntimeException( "error parsing: " + e.getMessage(), e );
+    }
+  }
+  
+  /**
+   * The name of the class to generate for a script.  The compiler doesn't
+   * care if the same name is used more than once, since the classes are
+   * hidden classes.
+   */
+  static String className( String script )
+  {
+    return "oscript_bench_" + script;
+  }
+  
+  private static String load( String script )
+  {
+    try( InputStream in = Corpus.class.getResourceAsStream( script + ".os" ) )
+    {
+      if( in == null )
+        throw new IllegalArgumentException( "no such script: " + script );
+      
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while( (n = in.read(buf)) > 0 )
+        bos.write( buf, 0, n );
+      return new String( bos.toByteArray(), StandardCharsets.UTF_8 );
+    }
+    catch(java.io.IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler.bench;
+
+import oscript.NodeEvaluator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Microbenchmarks of the hot paths of the code generated by the
+ * compiler.  Each benchmark evaluates a small snippet, compiled through
+ * the {@link oscript.compiler.CompiledNodeEvaluatorFactory}, in a scope
+ * set up by {@link ScriptState#PRELUDE}.  The GC profiler (enabled by
+ * default, see {@link BenchmarkMain}) shows the allocation per
+ * operation, which points at boxing and temporary objects that escape
+ * analysis failed to remove.
+ * <p>
+ * See {@link CallBenchmark} for function calls of different arity.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ExecutionBenchmark extends ScriptState
+{
+  private NodeEvaluator bopPlus;
+  private NodeEvaluator bopLessThan;
+  private NodeEvaluator bopPlusString;
+  private NodeEvaluator getMember;
+  private NodeEvaluator elementAt;
+  private NodeEvaluator newObject;
+  private NodeEvaluator closure;
+  private NodeEvaluator loop;
+  private NodeEvaluator tryCatchFinally;
+  private NodeEvaluator tryFinally;
+  
+  @Setup(Level.Trial)
+  public void setup()
+  {
+    bopPlus         = compile( "bopPlus",         "a + b;" );
+    bopLessThan     = compile( "bopLessThan",     "a < b;" );
+    bopPlusString   = compile( "bopPlusString",   "s + a;" );
+    getMember       = compile( "getMember",       "p.x;" );
+    elementAt       = compile( "elementAt",       "arr[3];" );
+    newObject       = compile( "newObject",       "new Point( a, b );" );
+    closure         = compile( "closure",         "counter();" );
+    loop            = compile( "loop",            "var t = 0; for( var i=0; i<100; i++ ) t += i; t;" );
+    tryCatchFinally = compile( "tryCatchFinally", "var r; try { throw a; } catch(e) { r = e; } finally { r = r + b; } r;" );
+    tryFinally      = compile( "tryFinally",      "var r; try { r = a; } finally { r = r + b; } r;" );
+  }
+  
+  @Benchmark
+  public Object bopPlus()          { return eval(bopPlus); }
+  
+  @Benchmark
+  public Object bopLessThan()      { return eval(bopLessThan); }
+  
+  @Benchmark
+  public Object bopPlusString()    { return eval(bopPlusString); }
+  
+  @Benchmark
+  public Object getMember()        { return eval(getMember); }
+  
+  @Benchmark
+  public Object elementAt()        { return eval(elementAt); }
+  
+  @Benchmark
+  public Object newObject()        { return eval(newObject); }
+  
+  @Benchmark
+  public Object closure()          { return eval(closure); }
+  
+  /** 100 iterations of a counted loop */
+  @Benchmark
+  public Object loop()             { return eval(loop); }
+  
+  @Benchmark
+  public Object tryCatchFinally()  { return eval(tryCatchFinally); }
+  
+  @Benchmark
+  public Object tryFinally()       { return eval(tryFinally); }
+}
@@ -0,0 +1,60 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler.bench;
+
+import oscript.compiler.CompiledNodeEvaluator;
+import oscript.compiler.CompilerContext;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * Time to load previously generated class-data, with
+ * {@link CompilerContext#compileNode(String,byte[])}, which is what
+ * happens on a bytecode cache hit.  This includes defining the hidden
+ * class, running its static initializer and constructing the
+ * node-evaluator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class LoadBenchmark
+{
+  @Param({ "small", "nested", "literals", "tryfinally" })
+  public String script;
+  
+  private String name;
+  private byte[] classdata;
+  
+  @Setup
+  public void setup()
+  {
+    name = Corpus.className(script);
+    classdata = CompilerContext.compileNode( name, Corpus.parse(script) );
+  }
+  
+  @Benchmark
+  public CompiledNodeEvaluator load()
+  {
+    return CompilerContext.compileNode( name, classdata );
+  }
+}
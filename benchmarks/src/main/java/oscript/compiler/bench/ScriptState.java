@@ -0,0 +1,99 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler.bench;
+
+import oscript.NodeEvaluator;
+import oscript.OscriptInterpreter;
+import oscript.compiler.CompiledNodeEvaluatorFactory;
+import oscript.data.BasicScope;
+import oscript.util.StackFrame;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Common state of the execution benchmarks: a scope in which the
+ * {@link #PRELUDE} has been evaluated, and a way to compile snippets that
+ * are evaluated in that scope.  Everything is compiled with the
+ * {@link CompiledNodeEvaluatorFactory}, so the benchmarks measure the code
+ * generated by the compiler, not the interpreter.
+ */
+@State(Scope.Thread)
+public abstract class ScriptState
+{
+  /**
+   * Defines the variables, functions and objects that the snippets use.
+   */
+  static final String PRELUDE =
+    "var a = 1;\n" +
+    "var b = 2;\n" +
+    "var s = \"abc\";\n" +
+    "var arr = [ 1, 2, 3, 4, 5, 6, 7, 8 ];\n" +
+    "function Point( x, y )\n" +
+    "{\n" +
+    "  public var x = x;\n" +
+    "  public var y = y;\n" +
+    "}\n" +
+    "var p = new Point( 1, 2 );\n" +
+    "function f0() { return 0; }\n" +
+    "function f1( a1 ) { return a1; }\n" +
+    "function f2( a1, a2 ) { return a2; }\n" +
+    "function f3( a1, a2, a3 ) { return a3; }\n" +
+    "function f4( a1, a2, a3, a4 ) { return a4; }\n" +
+    "function f5( a1, a2, a3, a4, a5 ) { return a5; }\n" +
+    "function f6( a1, a2, a3, a4, a5, a6 ) { return a6; }\n" +
+    "function f7( a1, a2, a3, a4, a5, a6, a7 ) { return a7; }\n" +
+    "function f8( a1, a2, a3, a4, a5, a6, a7, a8 ) { return a8; }\n" +
+    "function makeCounter()\n" +
+    "{\n" +
+    "  var n = 0;\n" +
+    "  return function() { return ++n; };\n" +
+    "}\n" +
+    "var counter = makeCounter();\n";
+  
+  private final CompiledNodeEvaluatorFactory factory = new CompiledNodeEvaluatorFactory();
+  
+  protected StackFrame sf;
+  protected oscript.data.Scope scope;
+  
+  @Setup(Level.Trial)
+  public void setupScope()
+  {
+    sf    = StackFrame.currentStackFrame();
+    scope = new BasicScope( OscriptInterpreter.getGlobalScope() );
+    compile( "prelude", PRELUDE ).evalNode( sf, scope );
+  }
+  
+  /**
+   * Compile a snippet, to be evaluated in {@link #scope}.
+   */
+  protected NodeEvaluator compile( String name, String src )
+  {
+    return factory.createNodeEvaluator( "oscript_bench_" + name, Corpus.parseSource(src) );
+  }
+  
+  /**
+   * Evaluate a compiled snippet.
+   */
+  protected Object eval( NodeEvaluator ne )
+  {
+    return ne.evalNode( sf, scope );
+  }
+}
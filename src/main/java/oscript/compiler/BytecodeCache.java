@@ -0,0 +1,318 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.OscriptHost;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+
+/**
+ * A persistent, content-addressed cache of generated class-data, so that
+ * scripts do not need to be re-compiled when the VM is restarted.  Entries
+ * are keyed by a {@link NodeDigest} of the syntax-tree, and stored in a
+ * single append-only pack file which is memory-mapped for reading.
+ * <p>
+ * Pack file layout:
+ * <pre>
+ *   header:  int MAGIC, int FORMAT_VERSION
+ *   record:  int keyLen, byte[keyLen] key, int dataLen, long crc32, byte[dataLen] data
+ * </pre>
+ * The index (key to record offset) is rebuilt by scanning the record
+ * headers when the pack file is opened.  A torn record at the end of the
+ * file (for example from a crash during an append) is truncated away, and
+ * a record whose checksum doesn't match is left out of the index, in which
+ * case the script is simply compiled again, and stored in a new record.
+ * <p>
+ * The default cache is enabled by setting the system property
+ * <code>oscript.compiler.cache</code> to the path of the pack file.
+ */
+public class BytecodeCache
+{
+  private static final int MAGIC          = 0x4f534243;   // "OSBC"
+  private static final int FORMAT_VERSION = 1;
+  private static final int HEADER_SIZE    = 8;
+
+  private static BytecodeCache defaultCache;
+  private static boolean defaultCacheInitialized = false;
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private MappedByteBuffer mapped;
+
+  /**
+   * Maps key to <code>long[] { dataOffset, dataLen, crc }</code>
+   */
+  private final HashMap index = new HashMap();
+
+  /*=======================================================================*/
+  /**
+   * Get the cache configured by the <code>oscript.compiler.cache</code>
+   * system property, or <code>null</code> if caching is not enabled.
+   */
+  public static synchronized BytecodeCache getDefault()
+  {
+    if( !defaultCacheInitialized )
+    {
+      defaultCacheInitialized = true;
+      String path = System.getProperty("oscript.compiler.cache");
+      if( path != null )
+      {
+        try
+        {
+          defaultCache = new BytecodeCache( new File(path) );
+        }
+        catch(IOException e)
+        {
+          OscriptHost.me.error("Error opening bytecode cache " + path + ": " + e);
+        }
+      }
+    }
+    return defaultCache;
+  }
+
+  /*=======================================================================*/
+  /**
+   * Class Constructor.
+   *
+   * @param file   the pack file, which is created if it does not exist
+   */
+  public BytecodeCache( File file )
+    throws IOException
+  {
+    this.file = file;
+
+    File dir = file.getAbsoluteFile().getParentFile();
+    if( dir != null )
+      dir.mkdirs();
+
+    raf = new RandomAccessFile( file, "rw" );
+    channel = raf.getChannel();
+
+    FileLock lock = channel.lock();
+    try
+    {
+      if( channel.size() < HEADER_SIZE )
+      {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+        channel.truncate(0);
+        channel.write( header, 0 );
+      }
+      scan();
+    }
+    finally
+    {
+      lock.release();
+    }
+  }
+
+  /**
+   * Rebuild the index by scanning the record headers.
+   */
+  private void scan()
+    throws IOException
+  {
+    remap();
+
+    if( (mapped.getInt(0) != MAGIC) || (mapped.getInt(4) != FORMAT_VERSION) )
+    {
+      // unknown format, start over:
+      OscriptHost.me.error("Discarding incompatible bytecode cache " + file);
+      mapped = null;
+      channel.truncate(HEADER_SIZE);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+      channel.write( header, 0 );
+      remap();
+      return;
+    }
+
+    long size = mapped.capacity();
+    int  pos  = HEADER_SIZE;
+    while( pos < size )
+    {
+      int start = pos;
+
+      if( (pos + 4) > size )
+        break;
+      int keyLen = mapped.getInt(pos);
+      pos += 4;
+      if( (keyLen <= 0) || ((pos + keyLen + 12) > size) )
+      {
+        pos = start;
+        break;
+      }
+
+      byte[] keyBytes = new byte[keyLen];
+      ByteBuffer b = mapped.duplicate();
+      b.position(pos);
+      b.get(keyBytes);
+      pos += keyLen;
+
+      int  dataLen = mapped.getInt(pos);
+      long crc     = mapped.getLong(pos + 4);
+      pos += 12;
+      if( (dataLen < 0) || ((pos + (long)dataLen) > size) )
+      {
+        pos = start;
+        break;
+      }
+
+      // a record with a bad checksum is skipped, so it is not found and
+      // can be stored again:
+      if( checksum( pos, dataLen ) == crc )
+        index.put( new String( keyBytes, StandardCharsets.UTF_8 ), new long[] { pos, dataLen, crc } );
+      pos += dataLen;
+    }
+
+    if( pos < size )
+    {
+      // torn record at end of file:
+      mapped = null;
+      channel.truncate(pos);
+      remap();
+    }
+  }
+
+  private long checksum( int pos, int len )
+  {
+    ByteBuffer b = mapped.duplicate();
+    b.position(pos);
+    b.limit( pos + len );
+    CRC32 crc = new CRC32();
+    crc.update(b);
+    return crc.getValue();
+  }
+
+  private void remap()
+    throws IOException
+  {
+    mapped = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+  }
+
+  /*=======================================================================*/
+  /**
+   * Get the cached class-data for the specified key.
+   *
+   * @param key    the key, as computed by {@link NodeDigest}
+   * @return the class-data, or <code>null</code> if not cached
+   */
+  public synchronized byte[] get( String key )
+  {
+    long[] entry = (long[])(index.get(key));
+    if( entry == null )
+      return null;
+
+    try
+    {
+      if( (entry[0] + entry[1]) > mapped.capacity() )
+        remap();
+
+      byte[] data = new byte[ (int)entry[1] ];
+      ByteBuffer b = mapped.duplicate();
+      b.position( (int)entry[0] );
+      b.get(data);
+
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      if( crc.getValue() != entry[2] )
+      {
+        OscriptHost.me.error("Bad checksum in bytecode cache " + file + " for " + key);
+        index.remove(key);
+        return null;
+      }
+
+      return data;
+    }
+    catch(IOException e)
+    {
+      OscriptHost.me.error("Error reading bytecode cache " + file + ": " + e);
+      return null;
+    }
+  }
+
+  /**
+   * Store class-data in the cache.  If the key is already present, this
+   * does nothing.
+   *
+   * @param key    the key, as computed by {@link NodeDigest}
+   * @param data   the class-data
+   */
+  public synchronized void put( String key, byte[] data )
+  {
+    if( index.containsKey(key) )
+      return;
+
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+    CRC32 crc = new CRC32();
+    crc.update(data);
+
+    ByteBuffer b = ByteBuffer.allocate( 4 + keyBytes.length + 12 + data.length );
+    b.putInt( keyBytes.length );
+    b.put(keyBytes);
+    b.putInt( data.length );
+    b.putLong( crc.getValue() );
+    b.put(data);
+    b.flip();
+
+    try
+    {
+      // the lock keeps other VMs sharing the same pack file from
+      // appending at the same position:
+      FileLock lock = channel.lock();
+      try
+      {
+        long pos = channel.size();
+        while( b.hasRemaining() )
+          pos += channel.write( b, pos );
+        index.put( key, new long[] { pos - data.length, data.length, crc.getValue() } );
+      }
+      finally
+      {
+        lock.release();
+      }
+    }
+    catch(IOException e)
+    {
+      OscriptHost.me.error("Error writing bytecode cache " + file + ": " + e);
+    }
+  }
+
+  /**
+   * Close the pack file.
+   */
+  public synchronized void close()
+    throws IOException
+  {
+    mapped = null;
+    index.clear();
+    channel.close();
+    raf.close();
+  }
+}
@@ -0,0 +1,192 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.Map;
+
+
+/**
+ * Post-processes the class file generated by BCEL into a Java 17 class
+ * file.  BCEL can't compute <code>StackMapTable</code> frames, which are
+ * required for class files version 50 and up, so this re-writes the class
+ * with ASM, which computes them.  Since the compiler no longer generates
+ * <code>jsr</code>/<code>ret</code> (a "finally" is inlined at each exit
+ * of its <code>try</code>), the code can always be expressed in the
+ * modern format, and is verified by the faster type-checking verifier.
+ * <p>
+ * While re-writing the class, calls to the lazy constant accessors
+ * (see {@link CompilerContext#LAZY_CONSTANTS}) are replaced with an
+ * <code>ldc</code> of a dynamically-computed constant, which the JVM
+ * resolves once on first use, see {@link LazyConstantBootstraps}.  The
+ * accessors and their backing fields are dropped.
+ * <p>
+ * Likewise, calls to the static methods of {@link OperatorSites},
+ * {@link PropertySites}, {@link FunctionCallSites} and
+ * {@link ClosureVariableSites} are replaced with an
+ * <code>invokedynamic</code>, so each operator, property access, function
+ * call and closure variable in the script gets its own inline cache.
+ * <p>
+ * Disabled with <code>-Doscript.compiler.legacyClassFiles=true</code>,
+ * which leaves the BCEL output untouched.
+ */
+final class ClassFileUpgrader
+{
+  static final boolean ENABLED = !Boolean.getBoolean("oscript.compiler.legacyClassFiles");
+  
+  private static final String BOOTSTRAPS = "oscript/compiler/LazyConstantBootstraps";
+  
+  /**
+   * Classes whose static methods, when called from generated code, are
+   * replaced with an <code>invokedynamic</code> linked by the class's
+   * <code>bootstrap</code> method.
+   */
+  private static final String[] SITES = {
+    "oscript/compiler/OperatorSites",
+    "oscript/compiler/PropertySites",
+    "oscript/compiler/FunctionCallSites",
+    "oscript/compiler/ClosureVariableSites",
+  };
+  
+  private static final String BOOTSTRAP_DESC =
+    "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+  
+  /**
+   * Get the bootstrap method for a call to a static method, or
+   * <code>null</code> if the call isn't to one of the {@link #SITES}.
+   */
+  private static Handle getSiteBootstrap( String owner )
+  {
+    for( int i=0; i<SITES.length; i++ )
+      if( SITES[i].equals(owner) )
+        return new Handle( Opcodes.H_INVOKESTATIC, owner, "bootstrap", BOOTSTRAP_DESC, false );
+    return null;
+  }
+  
+  private ClassFileUpgrader() {}
+  
+  /**
+   * A dynamically-computed constant, to replace a call to a lazy constant
+   * accessor.
+   */
+  static final class LazyConstant
+  {
+    final String fieldName;
+    final String bootstrapName;
+    final String descriptor;
+    final Object arg;
+    
+    /**
+     * @param fieldName      the name of the accessor's backing field
+     * @param bootstrapName  the name of the bootstrap method in {@link LazyConstantBootstraps}
+     * @param descriptor     the type of the constant
+     * @param arg            the <code>String</code>, <code>Long</code> or
+     *    <code>Double</code> static argument to the bootstrap method
+     */
+    LazyConstant( String fieldName, String bootstrapName, String descriptor, Object arg )
+    {
+      this.fieldName     = fieldName;
+      this.bootstrapName = bootstrapName;
+      this.descriptor    = descriptor;
+      this.arg           = arg;
+    }
+    
+    ConstantDynamic toConstantDynamic()
+    {
+      String argDescriptor = (arg instanceof Long) ? "J" : (arg instanceof Double) ? "D" : "Ljava/lang/String;";
+      Handle bsm = new Handle(
+        Opcodes.H_INVOKESTATIC,
+        BOOTSTRAPS,
+        bootstrapName,
+        "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;" + argDescriptor + ")Ljava/lang/Object;",
+        false
+      );
+      return new ConstantDynamic( "_", descriptor, bsm, new Object[] { arg } );
+    }
+  }
+  
+  /**
+   * Upgrade the class file.
+   * 
+   * @param classdata       the class file generated by BCEL
+   * @param lazyConstants   maps the name of each lazy constant accessor to
+   *    its {@link LazyConstant}
+   * @return the upgraded class file
+   */
+  static byte[] upgrade( byte[] classdata, final Map lazyConstants )
+  {
+    ClassReader cr = new ClassReader(classdata);
+    final String className = cr.getClassName();
+    final java.util.HashSet fieldNames = new java.util.HashSet();
+    for( java.util.Iterator itr=lazyConstants.values().iterator(); itr.hasNext(); )
+      fieldNames.add( ((LazyConstant)(itr.next())).fieldName );
+    
+    ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+      protected ClassLoader getClassLoader()
+      {
+        return ClassFileUpgrader.class.getClassLoader();
+      }
+    };
+    
+    cr.accept( new ClassVisitor( Opcodes.ASM9, cw ) {
+      public void visit( int version, int access, String name, String signature, String superName, String[] interfaces )
+      {
+        super.visit( Opcodes.V17, access, name, signature, superName, interfaces );
+      }
+      
+      public FieldVisitor visitField( int access, String name, String descriptor, String signature, Object value )
+      {
+        if( fieldNames.contains(name) )
+          return null;
+        return super.visitField( access, name, descriptor, signature, value );
+      }
+      
+      public MethodVisitor visitMethod( int access, String name, String descriptor, String signature, String[] exceptions )
+      {
+        if( lazyConstants.containsKey(name) )
+          return null;
+        
+        MethodVisitor mv = super.visitMethod( access, name, descriptor, signature, exceptions );
+        
+        return new MethodVisitor( Opcodes.ASM9, mv ) {
+          public void visitMethodInsn( int opcode, String owner, String name, String descriptor, boolean isInterface )
+          {
+            LazyConstant lc;
+            Handle bsm;
+            if( (opcode == Opcodes.INVOKESTATIC) && owner.equals(className) &&
+                ((lc = (LazyConstant)(lazyConstants.get(name))) != null) )
+              super.visitLdcInsn( lc.toConstantDynamic() );
+            else if( (opcode == Opcodes.INVOKESTATIC) && ((bsm = getSiteBootstrap(owner)) != null) )
+              super.visitInvokeDynamicInsn( name, descriptor, bsm );
+            else
+              super.visitMethodInsn( opcode, owner, name, descriptor, isInterface );
+          }
+        };
+      }
+    }, ClassReader.SKIP_FRAMES );
+    
+    return cw.toByteArray();
+  }
+}
@@ -0,0 +1,139 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.data.*;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+/**
+ * Call sites for the lookup of a variable that the compiler has resolved
+ * to a block scope of the enclosing function, see
+ * {@link CompilerScope#isClosureVariable}.  Like {@link OperatorSites},
+ * the compiler generates a call to {@link #lookupInScope}, which the
+ * {@link ClassFileUpgrader} turns into an <code>invokedynamic</code>
+ * linked by {@link #bootstrap}.
+ * <p>
+ * Since the variable is declared in a scope that is fixed when the
+ * function is created, every call of the same function finds the same
+ * member.  So each call site is an inline cache keyed by the identity of
+ * the function (the <code>callee</code>), which links to the member as a
+ * constant, rather than looking it up in the scope chain on every call.
+ * Once more than {@link #MAX_DEPTH} functions have been seen, ie. a
+ * function created in a loop, the site is megamorphic and is linked to the
+ * generic lookup, which also drops the references to the cached members.
+ * <p>
+ * Enabled with <code>-Doscript.compiler.closureVariables=true</code>.  By
+ * default the compiler looks up these variables like any other.
+ */
+public final class ClosureVariableSites
+{
+  static final boolean ENABLED = Boolean.getBoolean("oscript.compiler.closureVariables");
+
+  /**
+   * The number of functions a call site is specialized for,
+   * <code>-Doscript.compiler.closureVariables.depth</code>.
+   */
+  static final int MAX_DEPTH = Integer.getInteger( "oscript.compiler.closureVariables.depth", 2 ).intValue();
+
+  private static final MethodType TYPE =
+    MethodType.methodType( Value.class, Value.class, Scope.class, int.class );
+
+  private static final MethodHandle FALLBACK;
+  private static final MethodHandle TEST;
+  private static final MethodHandle GENERIC;
+
+  static {
+    try
+    {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      FALLBACK = lookup.findVirtual( ClosureVariableSite.class, "fallback", TYPE );
+      TEST = lookup.findStatic( ClosureVariableSites.class, "test",
+                                MethodType.methodType( boolean.class, Value.class, Value.class ) );
+      GENERIC = lookup.findStatic( ClosureVariableSites.class, "lookupInScope", TYPE );
+    }
+    catch(ReflectiveOperationException e)
+    {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private ClosureVariableSites() {}
+
+  /*=======================================================================*/
+  /**
+   * The bootstrap method for the <code>invokedynamic</code> call sites.
+   *
+   * @param lookup   the caller's lookup
+   * @param name     <code>lookupInScope</code>
+   * @param type     <code>(Value,Scope,int)Value</code>
+   * @return the call site
+   */
+  public static CallSite bootstrap( MethodHandles.Lookup lookup, String name, MethodType type )
+  {
+    return new ClosureVariableSite(type);
+  }
+
+  private static final class ClosureVariableSite extends InlineCacheCallSite
+  {
+    ClosureVariableSite( MethodType type )
+    {
+      super( type, MAX_DEPTH );
+      setTarget( FALLBACK.bindTo(this) );
+    }
+
+    /**
+     * Called when the function doesn't match any of the cached functions.
+     */
+    private Value fallback( Value callee, Scope scope, int id )
+    {
+      Value member = scope.lookupInScope(id);
+
+      MethodHandle test = MethodHandles.dropArguments( MethodHandles.insertArguments( TEST, 0, callee ),
+                                                       1, Scope.class, int.class );
+      MethodHandle specialized = MethodHandles.dropArguments( MethodHandles.constant( Value.class, member ),
+                                                              0, Value.class, Scope.class, int.class );
+
+      link( test, specialized, GENERIC );
+
+      return member;
+    }
+  }
+
+  private static boolean test( Value cached, Value callee )
+  {
+    return callee == cached;
+  }
+
+  /*=======================================================================*/
+  /**
+   * The generic lookup, called when the class file isn't upgraded, or the
+   * call site is megamorphic.
+   *
+   * @param callee   the function whose body is doing the lookup
+   * @param scope    the scope to start the lookup in
+   * @param id       the symbol id of the variable
+   */
+  public static Value lookupInScope( Value callee, Scope scope, int id )
+  {
+    return scope.lookupInScope(id);
+  }
+}
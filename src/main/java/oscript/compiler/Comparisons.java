@@ -0,0 +1,280 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.data.*;
+
+
+/**
+ * Comparisons which return a primitive <code>boolean</code>, called by
+ * generated code when a comparison is used as the condition of an
+ * <code>if</code>, loop, or <code>?:</code>, so the result can be branched
+ * on directly, see {@link CompilerVisitor#dumpCondition}.
+ * <p>
+ * When both operands are numbers they are compared without going through
+ * the <code>bop</code> method, which would return an {@link OBoolean}.
+ * Otherwise the result is the same as
+ * <code>a.bop<i>Xxx</i>(b).castToBooleanSoft()</code>.
+ * <p>
+ * The relational comparisons also come in versions where one operand is a
+ * primitive, for comparing a member kept in a primitive local variable (ie.
+ * the counter of a loop, see {@link NumericLocals}) with a value whose type
+ * isn't known at compile time (ie. the bound of the loop), without boxing
+ * the primitive.
+ */
+public final class Comparisons
+{
+  private Comparisons() {}
+
+  public static boolean lessThan( Value a, Value b )
+  {
+    a = a.unhand();
+    b = b.unhand();
+    if( isExact(a) && isExact(b) )
+      return a.castToExactNumber() < b.castToExactNumber();
+    if( isNumber(a) && isNumber(b) )
+      return a.castToInexactNumber() < b.castToInexactNumber();
+    return a.bopLessThan(b).castToBooleanSoft();
+  }
+
+  public static boolean lessThanOrEquals( Value a, Value b )
+  {
+    a = a.unhand();
+    b = b.unhand();
+    if( isExact(a) && isExact(b) )
+      return a.castToExactNumber() <= b.castToExactNumber();
+    if( isNumber(a) && isNumber(b) )
+      return a.castToInexactNumber() <= b.castToInexactNumber();
+    return a.bopLessThanOrEquals(b).castToBooleanSoft();
+  }
+
+  public static boolean greaterThan( Value a, Value b )
+  {
+    a = a.unhand();
+    b = b.unhand();
+    if( isExact(a) && isExact(b) )
+      return a.castToExactNumber() > b.castToExactNumber();
+    if( isNumber(a) && isNumber(b) )
+      return a.castToInexactNumber() > b.castToInexactNumber();
+    return a.bopGreaterThan(b).castToBooleanSoft();
+  }
+
+  public static boolean greaterThanOrEquals( Value a, Value b )
+  {
+    a = a.unhand();
+    b = b.unhand();
+    if( isExact(a) && isExact(b) )
+      return a.castToExactNumber() >= b.castToExactNumber();
+    if( isNumber(a) && isNumber(b) )
+      return a.castToInexactNumber() >= b.castToInexactNumber();
+    return a.bopGreaterThanOrEquals(b).castToBooleanSoft();
+  }
+
+  /*=======================================================================*/
+  /* One primitive operand.  A long is compared with an inexact number as a
+   * double, which is what the number classes do.  If the other operand is
+   * not a number, the primitive is boxed and the comparison is done by the
+   * bop method of the left operand.
+   */
+
+  public static boolean lessThan( long a, Value b )
+  {
+    b = b.unhand();
+    if( isExact(b) )
+      return a < b.castToExactNumber();
+    if( isInexact(b) )
+      return a < b.castToInexactNumber();
+    return OExactNumber.makeExactNumber(a).bopLessThan(b).castToBooleanSoft();
+  }
+
+  public static boolean lessThanOrEquals( long a, Value b )
+  {
+    b = b.unhand();
+    if( isExact(b) )
+      return a <= b.castToExactNumber();
+    if( isInexact(b) )
+      return a <= b.castToInexactNumber();
+    return OExactNumber.makeExactNumber(a).bopLessThanOrEquals(b).castToBooleanSoft();
+  }
+
+  public static boolean greaterThan( long a, Value b )
+  {
+    b = b.unhand();
+    if( isExact(b) )
+      return a > b.castToExactNumber();
+    if( isInexact(b) )
+      return a > b.castToInexactNumber();
+    return OExactNumber.makeExactNumber(a).bopGreaterThan(b).castToBooleanSoft();
+  }
+
+  public static boolean greaterThanOrEquals( long a, Value b )
+  {
+    b = b.unhand();
+    if( isExact(b) )
+      return a >= b.castToExactNumber();
+    if( isInexact(b) )
+      return a >= b.castToInexactNumber();
+    return OExactNumber.makeExactNumber(a).bopGreaterThanOrEquals(b).castToBooleanSoft();
+  }
+
+  public static boolean lessThan( double a, Value b )
+  {
+    b = b.unhand();
+    if( isNumber(b) )
+      return a < b.castToInexactNumber();
+    return OInexactNumber.makeInexactNumber(a).bopLessThan(b).castToBooleanSoft();
+  }
+
+  public static boolean lessThanOrEquals( double a, Value b )
+  {
+    b = b.unhand();
+    if( isNumber(b) )
+      return a <= b.castToInexactNumber();
+    return OInexactNumber.makeInexactNumber(a).bopLessThanOrEquals(b).castToBooleanSoft();
+  }
+
+  public static boolean greaterThan( double a, Value b )
+  {
+    b = b.unhand();
+    if( isNumber(b) )
+      return a > b.castToInexactNumber();
+    return OInexactNumber.makeInexactNumber(a).bopGreaterThan(b).castToBooleanSoft();
+  }
+
+  public static boolean greaterThanOrEquals( double a, Value b )
+  {
+    b = b.unhand();
+    if( isNumber(b) )
+      return a >= b.castToInexactNumber();
+    return OInexactNumber.makeInexactNumber(a).bopGreaterThanOrEquals(b).castToBooleanSoft();
+  }
+
+  public static boolean lessThan( Value a, long b )
+  {
+    a = a.unhand();
+    if( isExact(a) )
+      return a.castToExactNumber() < b;
+    if( isInexact(a) )
+      return a.castToInexactNumber() < b;
+    return a.bopLessThan( OExactNumber.makeExactNumber(b) ).castToBooleanSoft();
+  }
+
+  public static boolean lessThanOrEquals( Value a, long b )
+  {
+    a = a.unhand();
+    if( isExact(a) )
+      return a.castToExactNumber() <= b;
+    if( isInexact(a) )
+      return a.castToInexactNumber() <= b;
+    return a.bopLessThanOrEquals( OExactNumber.makeExactNumber(b) ).castToBooleanSoft();
+  }
+
+  public static boolean greaterThan( Value a, long b )
+  {
+    a = a.unhand();
+    if( isExact(a) )
+      return a.castToExactNumber() > b;
+    if( isInexact(a) )
+      return a.castToInexactNumber() > b;
+    return a.bopGreaterThan( OExactNumber.makeExactNumber(b) ).castToBooleanSoft();
+  }
+
+  public static boolean greaterThanOrEquals( Value a, long b )
+  {
+    a = a.unhand();
+    if( isExact(a) )
+      return a.castToExactNumber() >= b;
+    if( isInexact(a) )
+      return a.castToInexactNumber() >= b;
+    return a.bopGreaterThanOrEquals( OExactNumber.makeExactNumber(b) ).castToBooleanSoft();
+  }
+
+  public static boolean lessThan( Value a, double b )
+  {
+    a = a.unhand();
+    if( isNumber(a) )
+      return a.castToInexactNumber() < b;
+    return a.bopLessThan( OInexactNumber.makeInexactNumber(b) ).castToBooleanSoft();
+  }
+
+  public static boolean lessThanOrEquals( Value a, double b )
+  {
+    a = a.unhand();
+    if( isNumber(a) )
+      return a.castToInexactNumber() <= b;
+    return a.bopLessThanOrEquals( OInexactNumber.makeInexactNumber(b) ).castToBooleanSoft();
+  }
+
+  public static boolean greaterThan( Value a, double b )
+  {
+    a = a.unhand();
+    if( isNumber(a) )
+      return a.castToInexactNumber() > b;
+    return a.bopGreaterThan( OInexactNumber.makeInexactNumber(b) ).castToBooleanSoft();
+  }
+
+  public static boolean greaterThanOrEquals( Value a, double b )
+  {
+    a = a.unhand();
+    if( isNumber(a) )
+      return a.castToInexactNumber() >= b;
+    return a.bopGreaterThanOrEquals( OInexactNumber.makeInexactNumber(b) ).castToBooleanSoft();
+  }
+
+  /*=======================================================================*/
+  /**
+   * Only numbers of the same type are compared directly, since whether an
+   * exact number can equal an inexact number is up to the number classes.
+   */
+  public static boolean equal( Value a, Value b )
+  {
+    a = a.unhand();
+    b = b.unhand();
+    if( isExact(a) && isExact(b) )
+      return a.castToExactNumber() == b.castToExactNumber();
+    if( isInexact(a) && isInexact(b) )
+      return a.castToInexactNumber() == b.castToInexactNumber();
+    return a.bopEquals(b).castToBooleanSoft();
+  }
+
+  public static boolean notEqual( Value a, Value b )
+  {
+    a = a.unhand();
+    b = b.unhand();
+    if( isExact(a) && isExact(b) )
+      return a.castToExactNumber() != b.castToExactNumber();
+    if( isInexact(a) && isInexact(b) )
+      return a.castToInexactNumber() != b.castToInexactNumber();
+    return a.bopNotEquals(b).castToBooleanSoft();
+  }
+
+  private static boolean isExact( Value val )
+  {
+    return val.getClass() == OExactNumber.class;
+  }
+
+  private static boolean isInexact( Value val )
+  {
+    return val.getClass() == OInexactNumber.class;
+  }
+
+  private static boolean isNumber( Value val )
+  {
+    Class c = val.getClass();
+    return (c == OExactNumber.class) || (c == OInexactNumber.class);
+  }
+}
@@ -17,7 +17,18 @@
  */
 
 package oscript.compiler;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import oscript.OscriptHost;
+import oscript.NodeEvaluator;
 import oscript.syntaxtree.Node;
 
 /**
@@ -30,7 +41,30 @@ public class CompiledNodeEvaluatorFactory implements
 		oscript.NodeEvaluatorFactory {
 	
 	public oscript.NodeEvaluator createNodeEvaluator(String name, Node node) {
-		byte[] b = CompilerContext.compileNode(OscriptHost.me.nodeNameToClassName(name), node); 
+		return createNodeEvaluator(name, node, null);
+	}
+
+	/**
+	 * Compile a node, or the body of a function if <code>argIds</code> is
+	 * not <code>null</code>.
+	 * 
+	 * @see CompilerContext#compileNode(String, Node, int[])
+	 */
+	oscript.NodeEvaluator createNodeEvaluator(String name, Node node, int[] argIds) {
+		String className = OscriptHost.me.nodeNameToClassName(name);
+		BytecodeCache cache = BytecodeCache.getDefault();
+		if (cache == null) {
+			byte[] b = CompilerContext.compileNode(className, node, argIds);
+			return createNodeEvaluator(name,b);
+		}
+		
+		// on a warm start, go straight from the cache to loading the class:
+		String key = NodeDigest.digest(className, node, argIds);
+		byte[] b = cache.get(key);
+		if (b == null) {
+			b = CompilerContext.compileNode(className, node, argIds);
+			cache.put(key, b);
+		}
 		return createNodeEvaluator(name,b);
 	}
 
@@ -38,4 +72,161 @@ public class CompiledNodeEvaluatorFactory implements
 		return CompilerContext.compileNode(OscriptHost.me.nodeNameToClassName(name), classdata);
 	}
 
+	//---------------------------------------------------------------------
+	/** Priority of compiles that a request thread is waiting for */
+	public static final int PRIORITY_HIGH = 10;
+	/** Default priority */
+	public static final int PRIORITY_NORMAL = 5;
+	/** Priority of speculative/background compiles, such as tier-up */
+	public static final int PRIORITY_LOW = 0;
+
+	/** number of compiler threads, <code>-Doscript.compiler.async.threads</code> */
+	public static final int ASYNC_THREADS = Integer.getInteger("oscript.compiler.async.threads",
+			Math.max(1, Runtime.getRuntime().availableProcessors() / 2)).intValue();
+	/** max queued compiles, <code>-Doscript.compiler.async.queue</code> */
+	public static final int ASYNC_QUEUE_SIZE = Integer.getInteger("oscript.compiler.async.queue", 256).intValue();
+
+	/** compiles in progress, by script name and node, so concurrent requests share one compile */
+	private static final ConcurrentHashMap<InFlightKey, CompileTask> inFlight = new ConcurrentHashMap<>();
+	private static final Semaphore queueSlots = new Semaphore(ASYNC_QUEUE_SIZE);
+	private static final AtomicLong taskSeq = new AtomicLong();
+	private static ThreadPoolExecutor executor;
+
+	/**
+	 * Compile a node asynchronously, at {@link #PRIORITY_NORMAL}.
+	 * 
+	 * @see #createNodeEvaluatorAsync(String, Node, int)
+	 */
+	public CompletableFuture<NodeEvaluator> createNodeEvaluatorAsync(String name, Node node) {
+		return createNodeEvaluatorAsync(name, node, PRIORITY_NORMAL);
+	}
+
+	/**
+	 * Compile a node on the bounded compiler executor.  If a compile of
+	 * the same node (under the same script name) is already queued or
+	 * running, the same future is returned, so a burst of first requests
+	 * only compiles once; a queued compile is moved up to the higher of
+	 * the two priorities.  A script reloaded under the same name is a
+	 * different node, so it is compiled again.
+	 * <p>
+	 * The calling thread never compiles.  If the queue is full, the future
+	 * fails with a {@link RejectedExecutionException}, and the caller can
+	 * keep interpreting the node, or try again later.
+	 * 
+	 * @param name      the script name
+	 * @param node      the node to compile
+	 * @param priority  higher priority compiles are run first
+	 * @return a future for the compiled node-evaluator
+	 */
+	public CompletableFuture<NodeEvaluator> createNodeEvaluatorAsync(String name, Node node, int priority) {
+		return createNodeEvaluatorAsync(name, node, null, priority);
+	}
+
+	/**
+	 * Compile a node, or the body of a function if <code>argIds</code> is
+	 * not <code>null</code>, asynchronously.
+	 * 
+	 * @see #createNodeEvaluatorAsync(String, Node, int)
+	 */
+	CompletableFuture<NodeEvaluator> createNodeEvaluatorAsync(String name, Node node, int[] argIds, int priority) {
+		InFlightKey key = new InFlightKey(name, node);
+		CompileTask task = new CompileTask(key, argIds, priority);
+		CompileTask existing = inFlight.putIfAbsent(key, task);
+		if (existing != null) {
+			existing.raisePriority(priority);
+			return existing.future;
+		}
+
+		if (queueSlots.tryAcquire()) {
+			getExecutor().execute(task);
+		} else {
+			// queue full, don't let it grow without bound, and don't block the caller:
+			inFlight.remove(key, task);
+			task.future.completeExceptionally(new RejectedExecutionException(
+					"compile queue full (" + ASYNC_QUEUE_SIZE + "), not compiling " + name));
+		}
+		return task.future;
+	}
+
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (executor == null) {
+			final AtomicInteger threadCnt = new AtomicInteger();
+			executor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 0L, TimeUnit.MILLISECONDS,
+					new PriorityBlockingQueue<Runnable>(), r -> {
+						Thread t = new Thread(r, "oscript-compiler-" + threadCnt.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+		}
+		return executor;
+	}
+
+	/**
+	 * Identifies a compile in progress: the script name, and the node by
+	 * identity.
+	 */
+	private static final class InFlightKey {
+		private final String name;
+		private final Node node;
+
+		InFlightKey(String name, Node node) {
+			this.name = name;
+			this.node = node;
+		}
+
+		public boolean equals(Object o) {
+			return (o instanceof InFlightKey) && name.equals(((InFlightKey) o).name) && (node == ((InFlightKey) o).node);
+		}
+
+		public int hashCode() {
+			return name.hashCode() ^ System.identityHashCode(node);
+		}
+	}
+
+	/**
+	 * A queued compile, ordered by priority, then FIFO.
+	 */
+	private class CompileTask implements Runnable, Comparable<CompileTask> {
+		private final InFlightKey key;
+		private final int[] argIds;
+		private volatile int priority;
+		private final long seq = taskSeq.incrementAndGet();
+		private final CompletableFuture<NodeEvaluator> future = new CompletableFuture<>();
+
+		CompileTask(InFlightKey key, int[] argIds, int priority) {
+			this.key = key;
+			this.argIds = argIds;
+			this.priority = priority;
+		}
+
+		/**
+		 * Move a still queued task up to <code>priority</code>.  The queue
+		 * doesn't re-order its elements, so the task is removed and queued
+		 * again.  If it is no longer in the queue, it is already running.
+		 */
+		synchronized void raisePriority(int priority) {
+			if ((priority <= this.priority) || !getExecutor().remove(this))
+				return;
+			this.priority = priority;
+			getExecutor().execute(this);
+		}
+
+		public void run() {
+			try {
+				future.complete(createNodeEvaluator(key.name, key.node, argIds));
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				inFlight.remove(key, this);
+				queueSlots.release();
+			}
+		}
+
+		public int compareTo(CompileTask o) {
+			if (priority != o.priority)
+				return (priority > o.priority) ? -1 : 1;
+			return Long.compare(seq, o.seq);
+		}
+	}
+
 }
@@ -34,6 +34,9 @@ import org.apache.bcel.classfile.JavaClass;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
 
 /**
@@ -46,8 +49,87 @@ import java.util.Iterator;
  */
 public class CompilerContext
 {
-  public static int failed = 0;
-  public static int succeeded = 0;
+  /**
+   * The number of compiles (or loads of class-data) that failed and that
+   * succeeded.  These stay plain <code>int</code> fields, which other code
+   * reads and resets, but are updated atomically through {@link #FAILED}
+   * and {@link #SUCCEEDED} since compiles may run concurrently.
+   */
+  public static volatile int failed = 0;
+  public static volatile int succeeded = 0;
+  
+  private static final VarHandle FAILED;
+  private static final VarHandle SUCCEEDED;
+  static {
+    try
+    {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      FAILED    = lookup.findStaticVarHandle( CompilerContext.class, "failed",    int.class );
+      SUCCEEDED = lookup.findStaticVarHandle( CompilerContext.class, "succeeded", int.class );
+    }
+    catch(ReflectiveOperationException e)
+    {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+  
+  /**
+   * Identifies the code generated by this version of the compiler.  This
+   * must be changed whenever the generated code changes, since it is part
+   * of the key used by the {@link BytecodeCache}.
+   */
+  public static final String COMPILER_VERSION = "3.0.0-19";
+  
+  /**
+   * A canonical string of every option that changes the generated code.
+   * This is part of the key used by the {@link BytecodeCache}, so changing
+   * one of these options, for example to turn off an optimization, doesn't
+   * load classes that were generated with the old value.  Any new codegen
+   * option must be added here.
+   */
+  static String getCodegenOptions()
+  {
+    return
+      "lazyConstants=" + LAZY_CONSTANTS +
+      ",legacyClassFiles=" + !ClassFileUpgrader.ENABLED +
+      ",directInnerNodes=" + DirectInnerNodeEvaluator.ENABLED +
+      ",split.limit=" + MethodSplitter.SPLIT_LIMIT +
+      ",noNumericLocals=" + !NumericLocals.ENABLED +
+      ",indyOperators=" + OperatorSites.ENABLED +
+      ",indyOperators.depth=" + OperatorSites.MAX_DEPTH +
+      ",indyProperties=" + PropertySites.ENABLED +
+      ",indyProperties.depth=" + PropertySites.MAX_DEPTH +
+      ",indyCalls=" + FunctionCallSites.ENABLED +
+      ",indyCalls.depth=" + FunctionCallSites.MAX_DEPTH +
+      ",closureVariables=" + ClosureVariableSites.ENABLED +
+      ",closureVariables.depth=" + ClosureVariableSites.MAX_DEPTH +
+      ",skipClosureScopes=" + Declarations.SKIP_CLOSURE_SCOPES +
+      ",loopInvariants=" + LoopInvariants.ENABLED +
+      ",passes=" + PassManager.getPipeline();
+  }
+  
+  /**
+   * If <code>true</code>, each <code>CompilerContext</code> uses its own
+   * thread-confined BCEL state ({@link ClassGen}, {@link ConstantPoolGen},
+   * instruction lists) and compilation is not serialized on the
+   * <code>ClassGen.class</code> monitor, so multiple scripts can be compiled
+   * in parallel.  Enabled with <code>-Doscript.compiler.concurrent=true</code>.
+   * Left off by default, since other users of BCEL in the same VM (such as
+   * <code>ClassWrapGen</code>) may still rely on the global lock.
+   */
+  public static final boolean CONCURRENT_COMPILE = Boolean.getBoolean("oscript.compiler.concurrent");
+  
+  /**
+   * If <code>true</code>, string, number and regexp constants and symbol
+   * ids are not all created in <code>&lt;clinit&gt;</code> when the class
+   * is loaded, but by a small static accessor the first time the code
+   * that uses them runs.  For big scripts most constants are on paths that
+   * never run.  Enabled with <code>-Doscript.compiler.lazyConstants=true</code>.
+   * <p>
+   * When generating modern class files, calls to the accessors are then
+   * replaced by dynamically-computed constants, see {@link ClassFileUpgrader}.
+   */
+  public static final boolean LAZY_CONSTANTS = Boolean.getBoolean("oscript.compiler.lazyConstants");
   
   /**
    * The index of the last <tt>evalNode<i>X</i>()</tt> method.
@@ -94,7 +176,26 @@ public class CompilerContext
   private Hashtable constFieldRefTable = new Hashtable();
   
   /**
-   * Maps symbol name to a fieldref.
+   * Maps constants to the methodref of their accessor, if
+   * {@link #LAZY_CONSTANTS}.
+   */
+  private Hashtable constAccessorTable = new Hashtable();
+  
+  /**
+   * Maps the name of each lazy constant accessor to the
+   * {@link ClassFileUpgrader.LazyConstant} that replaces it.
+   */
+  private Hashtable lazyConstantTable = new Hashtable();
+  
+  /**
+   * The time spent in each phase of this compile, indexed by the
+   * phase constants in {@link CompilerMetrics}.
+   */
+  final long[] phaseNanos = new long[ CompilerMetrics.PHASE_NAMES.length ];
+  
+  /**
+   * Maps symbol name to a fieldref, or to the methodref of the accessor
+   * if {@link #LAZY_CONSTANTS}.
    */
   private Hashtable symbolFieldRefTable = new Hashtable();
   
@@ -132,23 +233,44 @@ public class CompilerContext
    */
   public static final byte[] compileNode( String name, Node node )
   {
-    synchronized(ClassGen.class)
-    {
-      return (new CompilerContext(name)).compileNodeImpl(node);
-    }
+    return compileNode( name, node, null );
   }
 
-  public static final CompiledNodeEvaluator compileNode( String name, byte[] classdata )
+  /**
+   * Compile the body of a function on its own, for example when the
+   * function was created by the interpreter.  The shared member index
+   * table of the generated node-evaluator starts with the arguments, the
+   * same as for the inner node-evaluator of a compiled function.
+   * 
+   * @param name         the name of the class to generate
+   * @param node         the function body
+   * @param argIds       the argument ids and attributes, or <code>null</code>
+   *    if <code>node</code> is not a function body
+   */
+  static final byte[] compileNode( String name, Node node, int[] argIds )
   {
+    if(CONCURRENT_COMPILE)
+      return (new CompilerContext(name)).compileNodeImpl( node, argIds );
+    
     /* NOTE: BCEL is not thread safe, so synchronize use of the library on
      *       the ClassGen class... we do the same thing in ClassWrapGen
      */
     synchronized(ClassGen.class)
     {
-      return (new CompilerContext(name)).compileNodeImpl(classdata);
+      return (new CompilerContext(name)).compileNodeImpl( node, argIds );
     }
   }
 
+  /**
+   * Load previously generated class-data.  This does not use BCEL at all,
+   * so there is no need to construct a <code>ClassGen</code> or to hold
+   * the <code>ClassGen.class</code> lock.
+   */
+  public static final CompiledNodeEvaluator compileNode( String name, byte[] classdata )
+  {
+    return loadClassData( name, classdata );
+  }
+
   /*=======================================================================*/
   /**
    * Class Constructor.
@@ -202,15 +324,19 @@ public class CompilerContext
    * The entry point to compile a node.
    * 
    * @param node         the node in syntaxtree to compile
+   * @param argIds       the argument ids, if <code>node</code> is a function body
    */
-  private byte[] compileNodeImpl( Node node )
+  private byte[] compileNodeImpl( Node node, int[] argIds )
   {
+    CompilerMetrics.CompileEvent event = CompilerMetrics.beginCompile();
     try
     {
+      long t = System.nanoTime();
+      
       // invoke the compiler to generate the top-most node-evaluator,
       // with inner node-evaluators are generated by recursively constructing
       // CompilerVisitor-s
-      cv = new CompilerVisitor( this, "file", node );
+      cv = new CompilerVisitor( this, "file", node, argIds );
       
       // build the constructor that takes an array of objects:
       //    these have to be done after we done with mg
@@ -218,29 +344,45 @@ public class CompilerContext
       dumpEvalInnerNode();
       dumpGetInnerSharedMemberIndexTable();
       dumpInit();
+      
+      // the visitors accumulate the time of the deferred, optimize and
+      // setMaxStack phases, which are not part of the visitor pass:
+      phaseNanos[CompilerMetrics.VISITOR] = System.nanoTime() - t -
+        phaseNanos[CompilerMetrics.DEFERRED] - phaseNanos[CompilerMetrics.OPTIMIZE] -
+        phaseNanos[CompilerMetrics.SET_MAX_STACK];
+      
+      t = System.nanoTime();
       JavaClass j = cg.getJavaClass();
       //----------------------------------
       java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream();
       j.dump(bos);      
       byte[] bytes = bos.toByteArray();
-      succeeded++;
+      phaseNanos[CompilerMetrics.DUMP] = System.nanoTime() - t;
+      
+      if( ClassFileUpgrader.ENABLED )
+      {
+        t = System.nanoTime();
+        bytes = ClassFileUpgrader.upgrade( bytes, lazyConstantTable );
+        phaseNanos[CompilerMetrics.UPGRADE] = System.nanoTime() - t;
+      }
+      
+      SUCCEEDED.getAndAdd(1);
+      CompilerMetrics.compiled( event, className, phaseNanos, bytes.length, j.getMethods().length, cp.getSize() );
       return bytes;
     }
     catch(Throwable e)
     {
       // treat this as a more fatal sort of error than LinkageError
-      compileNodeException(e);
+      compileNodeException( (cv != null) ? cv.getDebugName() : name, e );
       throw new ProgrammingErrorException(e);
     }
   }
 
-  private void compileNodeException( Throwable e )
+  private static void compileNodeException( String name, Throwable e )
   {
-    String name = this.name;
-    if( cv != null )
-      name = cv.getDebugName();
-    OscriptHost.me.error(failed + ":" + succeeded + "\tError compiling " + name + ": " + e.getMessage());
-    failed++;
+    int f = (int)(FAILED.getAndAdd(1));
+    CompilerMetrics.failed(name);
+    OscriptHost.me.error(f + ":" + succeeded + "\tError compiling " + name + ": " + e.getMessage());
   }
   
   /**
@@ -447,10 +589,10 @@ il.append( InstructionConst.ARETURN );
   }
   
   /*=======================================================================*/
-  private static int identifierCnt = 0;
+  private static final AtomicInteger identifierCnt = new AtomicInteger();
   static String makeUniqueIdentifierName( String name )
   {
-    return name + Math.abs(++identifierCnt);
+    return name + Math.abs(identifierCnt.incrementAndGet());
   }
   
   /*=======================================================================*/
@@ -467,8 +609,11 @@ il.append( InstructionConst.ARETURN );
    */
   int makeField( String name, Class cls )
   {
-    String fieldName = makeUniqueIdentifierName("c");
-    
+    return makeNamedField( makeUniqueIdentifierName("c"), cls );
+  }
+  
+  private int makeNamedField( String fieldName, Class cls )
+  {
     org.apache.bcel.generic.Type type = getType(cls);
     
     FieldGen fg = new FieldGen(
@@ -511,126 +656,222 @@ il.append( InstructionConst.ARETURN );
     
     if( iidx == null )
     {
-      Class c = obj.getClass();
-      
-      // hack to deal with RegExp:
-      if( obj instanceof RegExp )
-        c = RegExp.class;
+      Class c = getConstantClass(obj);
       
       int idx = makeField( "c", c );
       
-      if( c == OString.class )
-      {
-        clinitIl.append( new PUSH( cp, ((OString)obj).castToString() ) );
-        clinitIl.append( new INVOKESTATIC( methodref(
-          "oscript.data.OString",
-          "makeString",
-          "(Ljava/lang/String;)Loscript/data/OString;"
-        ) ) );
-        clinitIl.append( new PUTSTATIC(idx) );
-      }
-      else if( c == OExactNumber.class )
-      {
-        clinitIl.append( new PUSH( cp, ((OExactNumber)obj).castToExactNumber() ) );
-        clinitIl.append( new INVOKESTATIC( methodref(
-          "oscript.data.OExactNumber",
-          "makeExactNumber",
-          "(J)Loscript/data/OExactNumber;"
-        ) ) );
-        clinitIl.append( new PUTSTATIC(idx) );
-      }
-      else if( c == OInexactNumber.class )
-      {
-        clinitIl.append( new PUSH( cp, ((OInexactNumber)obj).castToInexactNumber() ) );
-        clinitIl.append( new INVOKESTATIC( methodref(
-          "oscript.data.OInexactNumber",
-          "makeInexactNumber",
-          "(D)Loscript/data/OInexactNumber;"
-        ) ) );
-        clinitIl.append( new PUTSTATIC(idx) );
-      }
-      else if( c == RegExp.class )
+      dumpConstant( clinitIl, obj, c );
+      clinitIl.append( new PUTSTATIC(idx) );
+      
+      constFieldRefTable.put( obj, iidx=Integer.valueOf(idx) );
+    }
+    
+    return iidx.intValue();
+  }
+  
+  private static Class getConstantClass( Object obj )
+  {
+    // hack to deal with RegExp:
+    if( obj instanceof RegExp )
+      return RegExp.class;
+    return obj.getClass();
+  }
+  
+  /**
+   * Can the constant be lazily initialized?  SMITs and arg-id arrays are
+   * always initialized eagerly, because every user must see the same
+   * instance, and they are needed as soon as the function is called
+   * anyways.
+   */
+  private static boolean isLazyConstant( Class c )
+  {
+    return (c == OString.class) || (c == OExactNumber.class) ||
+      (c == OInexactNumber.class) || (c == RegExp.class);
+  }
+  
+  /**
+   * Dump the code to construct an instance constant.  Stack:
+   * <pre>
+   *   ... -&gt; ..., obj
+   * </pre>
+   */
+  private void dumpConstant( InstructionList il, Object obj, Class c )
+  {
+    if( c == OString.class )
+    {
+      il.append( new PUSH( cp, ((OString)obj).castToString() ) );
+      il.append( new INVOKESTATIC( methodref(
+        "oscript.data.OString",
+        "makeString",
+        "(Ljava/lang/String;)Loscript/data/OString;"
+      ) ) );
+    }
+    else if( c == OExactNumber.class )
+    {
+      il.append( new PUSH( cp, ((OExactNumber)obj).castToExactNumber() ) );
+      il.append( new INVOKESTATIC( methodref(
+        "oscript.data.OExactNumber",
+        "makeExactNumber",
+        "(J)Loscript/data/OExactNumber;"
+      ) ) );
+    }
+    else if( c == OInexactNumber.class )
+    {
+      il.append( new PUSH( cp, ((OInexactNumber)obj).castToInexactNumber() ) );
+      il.append( new INVOKESTATIC( methodref(
+        "oscript.data.OInexactNumber",
+        "makeInexactNumber",
+        "(D)Loscript/data/OInexactNumber;"
+      ) ) );
+    }
+    else if( c == RegExp.class )
+    {
+      il.append( new PUSH( cp, ((RegExp)obj).castToString() ) );
+      il.append( new INVOKESTATIC( methodref(
+        "oscript.data.OString",
+        "makeString",
+        "(Ljava/lang/String;)Loscript/data/OString;"
+      ) ) );
+      il.append( new INVOKESTATIC( methodref(
+        "oscript.data.RegExp",
+        "createRegExp",
+        "(Loscript/data/Value;)Loscript/data/RegExp;"
+      ) ) );
+    }
+    else if( c == OpenHashSymbolTable.class )
+    {
+      OpenHashSymbolTable st = (OpenHashSymbolTable)obj;
+      il.append( new NEW( cp.addClass("oscript.util.OpenHashSymbolTable") ) );
+      il.append( InstructionConst.DUP );
+      il.append( new PUSH( cp, st.size() ) );
+      il.append( new PUSH( cp, 0.75f ) );
+      il.append( new INVOKESPECIAL( methodref(
+        "oscript.util.OpenHashSymbolTable",
+        "<init>",
+        "(IF)V"
+      ) ) );
+      int[] idxs = new int[st.size()];
+      for( Iterator itr=st.symbols(); itr.hasNext(); )
       {
-        clinitIl.append( new PUSH( cp, ((RegExp)obj).castToString() ) );
-        clinitIl.append( new INVOKESTATIC( methodref(
-          "oscript.data.OString",
-          "makeString",
-          "(Ljava/lang/String;)Loscript/data/OString;"
-        ) ) );
-        clinitIl.append( new INVOKESTATIC( methodref(
-          "oscript.data.RegExp",
-          "createRegExp",
-          "(Loscript/data/Value;)Loscript/data/RegExp;"
-        ) ) );
-        clinitIl.append( new PUTSTATIC(idx) );
+        int id = ((Integer)(itr.next())).intValue();
+        idxs[ st.get(id) ] = id;
       }
-      else if( c == OpenHashSymbolTable.class )
+      for( int i=0; i<idxs.length; i++ )
       {
-        OpenHashSymbolTable st = (OpenHashSymbolTable)obj;
-        clinitIl.append( new NEW( cp.addClass("oscript.util.OpenHashSymbolTable") ) );
-        clinitIl.append( InstructionConst.DUP );
-        clinitIl.append( new PUSH( cp, st.size() ) );
-        clinitIl.append( new PUSH( cp, 0.75f ) );
-        clinitIl.append( new INVOKESPECIAL( methodref(
+        il.append( InstructionConst.DUP );
+        pushSymbol( il, Symbol.getSymbol( idxs[i] ).castToString() );
+        il.append( new INVOKEVIRTUAL( methodref(
           "oscript.util.OpenHashSymbolTable",
-          "<init>",
-          "(IF)V"
+          "create",
+          "(I)I"
         ) ) );
-        int[] idxs = new int[st.size()];
-        for( Iterator itr=st.symbols(); itr.hasNext(); )
-        {
-          int id = ((Integer)(itr.next())).intValue();
-          idxs[ st.get(id) ] = id;
-        }
-        for( int i=0; i<idxs.length; i++ )
-        {
-          clinitIl.append( InstructionConst.DUP );
-          pushSymbol( clinitIl, Symbol.getSymbol( idxs[i] ).castToString() );
-          clinitIl.append( new INVOKEVIRTUAL( methodref(
-            "oscript.util.OpenHashSymbolTable",
-            "create",
-            "(I)I"
-          ) ) );
-          clinitIl.append( InstructionConst.POP );
-        }
-        clinitIl.append( new PUTSTATIC(idx) );
+        il.append( InstructionConst.POP );
       }
-      else if( c == int[].class )
+    }
+    else if( c == int[].class )
+    {
+      int[] val = (int[])obj;
+      
+      pushInt( il, val.length );
+      il.append( new NEWARRAY( org.apache.bcel.generic.Type.INT ) );
+      
+      // array consists of [symbol,attr]*
+      for( int i=0; i<val.length; )
       {
-        int[] val = (int[])obj;
+        il.append( InstructionConst.DUP );
+        pushInt( il, i );
+        pushSymbol( il, Symbol.getSymbol(val[i]).castToString() );
+        il.append( InstructionConst.IASTORE );
+        i++;
         
-        pushInt( clinitIl, val.length );
-        clinitIl.append( new NEWARRAY( org.apache.bcel.generic.Type.INT ) );
-        
-        // array consists of [symbol,attr]*
-        for( int i=0; i<val.length; )
-        {
-          clinitIl.append( InstructionConst.DUP );
-          pushInt( clinitIl, i );
-          pushSymbol( clinitIl, Symbol.getSymbol(val[i]).castToString() );
-          clinitIl.append( InstructionConst.IASTORE );
-          i++;
-          
-          clinitIl.append( InstructionConst.DUP );
-          pushInt( clinitIl, i );
-          pushInt( clinitIl, val[i] );
-          clinitIl.append( InstructionConst.IASTORE );
-          i++;
-        }
-        
-        clinitIl.append( new PUTSTATIC(idx) );
-      }
-      else
-      {
-        throw new ProgrammingErrorException("instance-constant: " + obj + "(" + obj.getClass().getName() + ")");
+        il.append( InstructionConst.DUP );
+        pushInt( il, i );
+        pushInt( il, val[i] );
+        il.append( InstructionConst.IASTORE );
+        i++;
       }
+    }
+    else
+    {
+      throw new ProgrammingErrorException("instance-constant: " + obj + "(" + obj.getClass().getName() + ")");
+    }
+  }
+  
+  /*=======================================================================*/
+  /**
+   * Get the methodref of the accessor of a lazily initialized constant, see
+   * {@link #LAZY_CONSTANTS}.  The accessor is equivalent to:
+   * <pre>
+   *   private static T lcN()
+   *   {
+   *     T v = cN;
+   *     if( v == null )
+   *       cN = v = ...;
+   *     return v;
+   *   }
+   * </pre>
+   * Two threads may race to initialize the constant, but since they
+   * construct equivalent values that doesn't matter.
+   */
+  private int getLazyConstantAccessor( Object obj )
+  {
+    Integer iidx = (Integer)(constAccessorTable.get(obj));
+    
+    if( iidx == null )
+    {
+      Class c = getConstantClass(obj);
+      org.apache.bcel.generic.Type type = getType(c);
+      String fieldName = makeUniqueIdentifierName("c");
+      int fidx = makeNamedField( fieldName, c );
+      String methodName = makeUniqueIdentifierName("lc");
       
-      constFieldRefTable.put( obj, iidx=Integer.valueOf(idx) );
+      CompilerInstructionList il = new CompilerInstructionList();
+      MethodGen mg = new MethodGen(
+        Const.ACC_PRIVATE | Const.ACC_STATIC,
+        type,
+        new org.apache.bcel.generic.Type[0],
+        new String[0],
+        methodName,
+        className,
+        il, cp
+      );
+      
+      il.append( new GETSTATIC(fidx) );
+      il.append( InstructionConst.DUP );
+      BranchInstruction IFNONNULL = new IFNONNULL(null);
+      il.append(IFNONNULL);
+      il.append( InstructionConst.POP );
+      dumpConstant( il, obj, c );
+      il.append( InstructionConst.DUP );
+      il.append( new PUTSTATIC(fidx) );
+      il.setNextAsTarget(IFNONNULL);
+      il.append( InstructionConst.ARETURN );
+      
+      mg.setMaxStack();
+      cg.addMethod( mg.getMethod() );
+      
+      iidx = Integer.valueOf( methodref( className, methodName, "()" + type.getSignature() ) );
+      constAccessorTable.put( obj, iidx );
+      lazyConstantTable.put( methodName, makeLazyConstant( fieldName, obj, c, type ) );
     }
     
     return iidx.intValue();
   }
   
+  private static ClassFileUpgrader.LazyConstant makeLazyConstant( String fieldName, Object obj, Class c,
+                                                                  org.apache.bcel.generic.Type type )
+  {
+    String descriptor = type.getSignature();
+    if( c == OString.class )
+      return new ClassFileUpgrader.LazyConstant( fieldName, "string", descriptor, ((OString)obj).castToString() );
+    else if( c == OExactNumber.class )
+      return new ClassFileUpgrader.LazyConstant( fieldName, "exactNumber", descriptor, Long.valueOf( ((OExactNumber)obj).castToExactNumber() ) );
+    else if( c == OInexactNumber.class )
+      return new ClassFileUpgrader.LazyConstant( fieldName, "inexactNumber", descriptor, Double.valueOf( ((OInexactNumber)obj).castToInexactNumber() ) );
+    else
+      return new ClassFileUpgrader.LazyConstant( fieldName, "regExp", descriptor, ((RegExp)obj).castToString() );
+  }
+  
   /*=======================================================================*/
   /**
    * push the instance constant onto the stack, setting ret-val to true.
@@ -652,6 +893,8 @@ il.append( InstructionConst.ARETURN );
       il.append( new GETSTATIC( fieldref( "oscript.data.OBoolean", "TRUE", "Loscript/data/OBoolean;" ) ) );
     else if( obj == OBoolean.FALSE )
       il.append( new GETSTATIC( fieldref( "oscript.data.OBoolean", "FALSE", "Loscript/data/OBoolean;" ) ) );
+    else if( LAZY_CONSTANTS && isLazyConstant( getConstantClass(obj) ) )
+      il.append( new INVOKESTATIC( getLazyConstantAccessor(obj) ) );
     else
       il.append( new GETSTATIC( getInstanceConstantIdx(obj) ) );
   }
@@ -671,6 +914,9 @@ il.append( InstructionConst.ARETURN );
   /**
    * as long as this is just a helper to pushFunctionData, no need to
    * cache...
+   * <p>
+   * The inner node-evaluator is bound directly to the generated method
+   * for the inner node, see {@link DirectInnerNodeEvaluator}.
    */
   private void pushNodeEvaluator( InstructionList il, int id, int idx )
   {
@@ -680,17 +926,21 @@ il.append( InstructionConst.ARETURN );
       return;
     }
     
-    il.append( new NEW( cp.addClass("oscript.compiler.CompiledInnerNodeEvaluator") ) );
-    il.append( InstructionConst.DUP );
+    // DirectInnerNodeEvaluator.create( MethodHandles.lookup(), id, idx, this, "_idx_name" )
+    il.append( new INVOKESTATIC( methodref(
+      "java.lang.invoke.MethodHandles",
+      "lookup",
+      "()Ljava/lang/invoke/MethodHandles$Lookup;"
+    ) ) );
     pushSymbol( il, Symbol.getSymbol(id).castToString() );
     il.append( new PUSH( cp, idx ) );
     il.append( InstructionConst.ALOAD_0 );
-    il.append( new INVOKESPECIAL( methodref(
-      "oscript.compiler.CompiledInnerNodeEvaluator",
-      "<init>",
-      "(IILoscript/compiler/CompiledNodeEvaluator;)V"
+    il.append( new PUSH( cp, "_" + idx + "_" + evalNodeNameList.get(idx) ) );
+    il.append( new INVOKESTATIC( methodref(
+      "oscript.compiler.DirectInnerNodeEvaluator",
+      "create",
+      "(Ljava/lang/invoke/MethodHandles$Lookup;IILoscript/compiler/CompiledNodeEvaluator;Ljava/lang/String;)Loscript/compiler/CompiledInnerNodeEvaluator;"
     ) ) );
-    
   }
   
   /*=======================================================================*/
@@ -740,28 +990,106 @@ il.append( InstructionConst.ARETURN );
    */
   void pushSymbol( InstructionList il, String name )
   {
+    if(LAZY_CONSTANTS)
+    {
+      il.append( new INVOKESTATIC( getLazySymbolAccessor(name) ) );
+      return;
+    }
+    
     Integer iidx = (Integer)(symbolFieldRefTable.get(name));
     if( iidx == null )
     {
       int idx = makeField( name, int.class );
       iidx = Integer.valueOf(idx);
-      clinitIl.append( new PUSH( cp, name ) );
-      clinitIl.append( new INVOKESTATIC( methodref(
-        "oscript.data.Symbol",
-        "getSymbol",
-        "(Ljava/lang/String;)Loscript/data/Symbol;"
-      ) ) );
-      clinitIl.append( new INVOKEVIRTUAL( methodref(
-        "oscript.data.Symbol",
-        "getId",
-        "()I"
-      ) ) );
+      dumpSymbol( clinitIl, name );
       clinitIl.append( new PUTSTATIC(idx) );
       symbolFieldRefTable.put( name, iidx );
     }
     il.append( new GETSTATIC( iidx.intValue() ) );
   }
   
+  /**
+   * Stack:
+   * <pre>
+   *   ... -&gt; ..., id
+   * </pre>
+   */
+  private void dumpSymbol( InstructionList il, String name )
+  {
+    il.append( new PUSH( cp, name ) );
+    il.append( new INVOKESTATIC( methodref(
+      "oscript.data.Symbol",
+      "getSymbol",
+      "(Ljava/lang/String;)Loscript/data/Symbol;"
+    ) ) );
+    il.append( new INVOKEVIRTUAL( methodref(
+      "oscript.data.Symbol",
+      "getId",
+      "()I"
+    ) ) );
+  }
+  
+  /**
+   * Get the methodref of the accessor of a lazily resolved symbol id.  The
+   * field holds <code>id + 1</code>, so that zero means "not resolved yet":
+   * <pre>
+   *   private static int lcN()
+   *   {
+   *     int id = cN;
+   *     if( id == 0 )
+   *       cN = id = Symbol.getSymbol(name).getId() + 1;
+   *     return id - 1;
+   *   }
+   * </pre>
+   */
+  private int getLazySymbolAccessor( String name )
+  {
+    Integer iidx = (Integer)(symbolFieldRefTable.get(name));
+    
+    if( iidx == null )
+    {
+      String fieldName = makeUniqueIdentifierName("c");
+      int fidx = makeNamedField( fieldName, int.class );
+      String methodName = makeUniqueIdentifierName("lc");
+      
+      CompilerInstructionList il = new CompilerInstructionList();
+      MethodGen mg = new MethodGen(
+        Const.ACC_PRIVATE | Const.ACC_STATIC,
+        org.apache.bcel.generic.Type.INT,
+        new org.apache.bcel.generic.Type[0],
+        new String[0],
+        methodName,
+        className,
+        il, cp
+      );
+      
+      il.append( new GETSTATIC(fidx) );
+      il.append( InstructionConst.DUP );
+      BranchInstruction IFNE = new IFNE(null);
+      il.append(IFNE);
+      il.append( InstructionConst.POP );
+      dumpSymbol( il, name );
+      il.append( InstructionConst.ICONST_1 );
+      il.append( InstructionConst.IADD );
+      il.append( InstructionConst.DUP );
+      il.append( new PUTSTATIC(fidx) );
+      il.setNextAsTarget(IFNE);
+      il.append( InstructionConst.ICONST_1 );
+      il.append( InstructionConst.ISUB );
+      il.append( InstructionConst.IRETURN );
+      
+      mg.setMaxStack();
+      cg.addMethod( mg.getMethod() );
+      
+      iidx = Integer.valueOf( methodref( className, methodName, "()I" ) );
+      symbolFieldRefTable.put( name, iidx );
+      lazyConstantTable.put( methodName, new ClassFileUpgrader.LazyConstant( fieldName, "symbol", "I", name ) );
+    }
+    
+    return iidx.intValue();
+  }
+
+  
   /*=======================================================================*/
   static org.apache.bcel.generic.Type getType( Class c )
   {
@@ -814,18 +1142,21 @@ il.append( InstructionConst.ARETURN );
 	  classDataLoader = api;
   }
   //---------------------------------------------------------------------
-  private CompiledNodeEvaluator compileNodeImpl( byte[] classdata)
+  private static CompiledNodeEvaluator loadClassData( String name, byte[] classdata )
   {
+    CompilerMetrics.DefineClassEvent event = CompilerMetrics.beginDefine();
     try
     {
+      long t = System.nanoTime();
       Class c = classDataLoader.load(classdata);
       CompiledNodeEvaluator result = (CompiledNodeEvaluator)(c.getConstructor().newInstance());
-      succeeded++;
+      CompilerMetrics.defined( event, name, c, System.nanoTime() - t, classdata.length );
+      SUCCEEDED.getAndAdd(1);
       return result;
     } catch(Throwable e)
     {
       // treat this as a more fatal sort of error than LinkageError
-      compileNodeException(e);
+      compileNodeException( name, e );
       throw new ProgrammingErrorException(e);
     }
   }
@@ -0,0 +1,439 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.OscriptHost;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ConstructorParameters;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+
+/**
+ * Statistics about the compiler and the classes it generates, exposed as
+ * the <tt>oscript.compiler:type=CompilerMetrics</tt> MXBean.  In addition,
+ * each compile and each class definition is recorded as a JFR event
+ * (<tt>oscript.compiler.Compile</tt> and <tt>oscript.compiler.DefineClass</tt>),
+ * so compile stalls can be correlated with request latency in a flight
+ * recording.
+ * <p>
+ * The time spent in each phase of the compiler is tracked in a histogram:
+ * <ul>
+ *   <li> <tt>visitor</tt> - the pass of the {@link CompilerVisitor}s over the
+ *        syntax-tree, excluding the following three phases
+ *   <li> <tt>deferred</tt> - running the deferred runnables of each method
+ *   <li> <tt>optimize</tt> - running the {@link PassManager} peephole
+ *        pipeline on each method
+ *   <li> <tt>setMaxStack</tt> - computing max stack/locals of each method
+ *   <li> <tt>dump</tt> - <code>JavaClass.dump()</code>
+ *   <li> <tt>upgrade</tt> - the {@link ClassFileUpgrader} pass
+ *   <li> <tt>define</tt> - defining the hidden class and constructing
+ *        the node-evaluator
+ * </ul>
+ * The transitions of the {@link TieredNodeEvaluatorFactory} between the
+ * interpreter and the compiler are counted as well.
+ */
+public final class CompilerMetrics implements CompilerMetricsMXBean
+{
+  static final int VISITOR       = 0;
+  static final int DEFERRED      = 1;
+  static final int OPTIMIZE      = 2;
+  static final int SET_MAX_STACK = 3;
+  static final int DUMP          = 4;
+  static final int UPGRADE       = 5;
+  static final int DEFINE        = 6;
+  
+  public static final String[] PHASE_NAMES = new String[] {
+    "visitor", "deferred", "optimize", "setMaxStack", "dump", "upgrade", "define"
+  };
+  
+  private static final CompilerMetrics me = new CompilerMetrics();
+  
+  private static final Cleaner cleaner = Cleaner.create();
+  
+  private final Histogram[] phases = new Histogram[PHASE_NAMES.length];
+  
+  private final AtomicLong compiledCnt       = new AtomicLong();
+  private final AtomicLong failedCnt         = new AtomicLong();
+  private final AtomicLong definedCnt        = new AtomicLong();
+  private final AtomicLong liveCnt           = new AtomicLong();
+  private final AtomicLong totalBytes        = new AtomicLong();
+  private final AtomicLong maxBytes          = new AtomicLong();
+  private final AtomicLong totalMethods      = new AtomicLong();
+  private final AtomicLong totalConstantPool = new AtomicLong();
+  
+  private final AtomicLong tierInterpretedCnt    = new AtomicLong();
+  private final AtomicLong tierCompileQueuedCnt  = new AtomicLong();
+  private final AtomicLong tierCompiledCnt       = new AtomicLong();
+  private final AtomicLong tierCompileFailedCnt  = new AtomicLong();
+  
+  static {
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+        me, new ObjectName("oscript.compiler:type=CompilerMetrics")
+      );
+    }
+    catch(javax.management.InstanceAlreadyExistsException e)
+    {
+      // another copy of the compiler (ie. loaded by another class-loader)
+      // already registered its metrics
+    }
+    catch(Throwable e)
+    {
+      OscriptHost.me.error("Error registering CompilerMetrics: " + e);
+    }
+  }
+  
+  private CompilerMetrics()
+  {
+    for( int i=0; i<phases.length; i++ )
+      phases[i] = new Histogram();
+  }
+  
+  /**
+   * Get the metrics instance.
+   */
+  public static CompilerMetrics getMetrics()
+  {
+    return me;
+  }
+  
+  /*=======================================================================*/
+  /**
+   * Called at the start of a compile, so the JFR event spans the compile.
+   */
+  static CompileEvent beginCompile()
+  {
+    CompileEvent event = new CompileEvent();
+    event.begin();
+    return event;
+  }
+  
+  /**
+   * Record a successful compile.
+   * 
+   * @param event         the event returned by {@link #beginCompile}
+   * @param name          the name of the generated class
+   * @param phaseNanos    the time spent in each phase, indexed by phase
+   * @param bytes         the size of the class file
+   * @param methodCnt     the number of methods in the class
+   * @param cpSize        the number of constant-pool entries
+   */
+  static void compiled( CompileEvent event, String name, long[] phaseNanos, int bytes, int methodCnt, int cpSize )
+  {
+    me.compiledCnt.incrementAndGet();
+    me.totalBytes.addAndGet(bytes);
+    me.maxBytes.accumulateAndGet( bytes, Math::max );
+    me.totalMethods.addAndGet(methodCnt);
+    me.totalConstantPool.addAndGet(cpSize);
+    
+    for( int i=0; i<DEFINE; i++ )
+      me.phases[i].record( phaseNanos[i] );
+    
+    if( event.shouldCommit() )
+    {
+      event.className        = name;
+      event.bytes            = bytes;
+      event.methodCount      = methodCnt;
+      event.constantPoolSize = cpSize;
+      event.visitorTime      = phaseNanos[VISITOR];
+      event.deferredTime     = phaseNanos[DEFERRED];
+      event.optimizeTime     = phaseNanos[OPTIMIZE];
+      event.setMaxStackTime  = phaseNanos[SET_MAX_STACK];
+      event.dumpTime         = phaseNanos[DUMP];
+      event.upgradeTime      = phaseNanos[UPGRADE];
+      event.commit();
+    }
+  }
+  
+  /**
+   * Record a failed compile or class definition.
+   */
+  static void failed( String name )
+  {
+    me.failedCnt.incrementAndGet();
+  }
+  
+  /**
+   * Called before defining a class, so the JFR event spans the definition.
+   */
+  static DefineClassEvent beginDefine()
+  {
+    DefineClassEvent event = new DefineClassEvent();
+    event.begin();
+    return event;
+  }
+  
+  /**
+   * Record the definition of a class, and track it until it is unloaded.
+   * 
+   * @param event         the event returned by {@link #beginDefine}
+   * @param name          the name of the class
+   * @param c             the class
+   * @param nanos         the time to define the class and construct the
+   *    node-evaluator
+   * @param bytes         the size of the class file
+   */
+  static void defined( DefineClassEvent event, String name, Class c, long nanos, int bytes )
+  {
+    me.definedCnt.incrementAndGet();
+    me.liveCnt.incrementAndGet();
+    cleaner.register( c, me.liveCnt::decrementAndGet );
+    me.phases[DEFINE].record(nanos);
+    
+    if( event.shouldCommit() )
+    {
+      event.className  = name;
+      event.bytes      = bytes;
+      event.defineTime = nanos;
+      event.commit();
+    }
+  }
+  
+  /**
+   * Record a node, or function body, that {@link TieredNodeEvaluatorFactory}
+   * starts out interpreting.
+   */
+  static void tierInterpreted()
+  {
+    me.tierInterpretedCnt.incrementAndGet();
+  }
+  
+  /**
+   * Record a tiered node that crossed the threshold, and was queued for
+   * compilation.
+   */
+  static void tierCompileQueued()
+  {
+    me.tierCompileQueuedCnt.incrementAndGet();
+  }
+  
+  /**
+   * Record a tiered node whose compiled node-evaluator was swapped in.
+   */
+  static void tierCompiled()
+  {
+    me.tierCompiledCnt.incrementAndGet();
+  }
+  
+  /**
+   * Record a tiered node that failed to compile, and stays interpreted.
+   */
+  static void tierCompileFailed()
+  {
+    me.tierCompileFailedCnt.incrementAndGet();
+  }
+  
+  /*=======================================================================*/
+  public long getCompiledCount()   { return compiledCnt.get(); }
+  public long getFailedCount()     { return failedCnt.get(); }
+  public long getDefinedCount()    { return definedCnt.get(); }
+  public long getLiveClassCount()  { return liveCnt.get(); }
+  public long getGeneratedBytes()  { return totalBytes.get(); }
+  public long getMaxClassBytes()   { return maxBytes.get(); }
+  
+  public double getMeanClassBytes()        { return mean( totalBytes.get() ); }
+  public double getMeanMethodCount()       { return mean( totalMethods.get() ); }
+  public double getMeanConstantPoolSize()  { return mean( totalConstantPool.get() ); }
+  
+  public long getTierInterpretedCount()     { return tierInterpretedCnt.get(); }
+  public long getTierCompileQueuedCount()   { return tierCompileQueuedCnt.get(); }
+  public long getTierCompiledCount()        { return tierCompiledCnt.get(); }
+  public long getTierCompileFailedCount()   { return tierCompileFailedCnt.get(); }
+  
+  private double mean( long total )
+  {
+    long cnt = compiledCnt.get();
+    return (cnt == 0) ? 0 : ((double)total / cnt);
+  }
+  
+  public Map<String,PhaseStats> getPhases()
+  {
+    Map<String,PhaseStats> map = new LinkedHashMap<>();
+    for( int i=0; i<phases.length; i++ )
+      map.put( PHASE_NAMES[i], phases[i].snapshot() );
+    return map;
+  }
+  
+  public void reset()
+  {
+    compiledCnt.set(0);
+    failedCnt.set(0);
+    definedCnt.set(0);
+    totalBytes.set(0);
+    maxBytes.set(0);
+    totalMethods.set(0);
+    totalConstantPool.set(0);
+    tierInterpretedCnt.set(0);
+    tierCompileQueuedCnt.set(0);
+    tierCompiledCnt.set(0);
+    tierCompileFailedCnt.set(0);
+    for( int i=0; i<phases.length; i++ )
+      phases[i] = new Histogram();
+  }
+  
+  /*=======================================================================*/
+  /**
+   * The latency statistics of one phase, in nanoseconds.  Percentiles are
+   * approximate: they are the upper bound of a power-of-two bucket.
+   */
+  public static final class PhaseStats
+  {
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long max;
+    
+    @ConstructorParameters({ "count", "mean", "p50", "p90", "p99", "max" })
+    public PhaseStats( long count, double mean, long p50, long p90, long p99, long max )
+    {
+      this.count = count;
+      this.mean  = mean;
+      this.p50   = p50;
+      this.p90   = p90;
+      this.p99   = p99;
+      this.max   = max;
+    }
+    
+    public long getCount()   { return count; }
+    public double getMean()  { return mean; }
+    public long getP50()     { return p50; }
+    public long getP90()     { return p90; }
+    public long getP99()     { return p99; }
+    public long getMax()     { return max; }
+    
+    public String toString()
+    {
+      return "count=" + count + ", mean=" + (long)mean + "ns, p50=" + p50 + "ns, p90=" + p90 +
+        "ns, p99=" + p99 + "ns, max=" + max + "ns";
+    }
+  }
+  
+  /**
+   * A lock-free histogram with power-of-two buckets.
+   */
+  private static final class Histogram
+  {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max   = new AtomicLong();
+    
+    void record( long nanos )
+    {
+      if( nanos < 0 )
+        nanos = 0;
+      buckets.incrementAndGet( (64 - Long.numberOfLeadingZeros(nanos)) & 63 );
+      count.incrementAndGet();
+      total.addAndGet(nanos);
+      max.accumulateAndGet( nanos, Math::max );
+    }
+    
+    PhaseStats snapshot()
+    {
+      long cnt = count.get();
+      return new PhaseStats(
+        cnt,
+        (cnt == 0) ? 0 : ((double)total.get() / cnt),
+        percentile( cnt, 0.50 ),
+        percentile( cnt, 0.90 ),
+        percentile( cnt, 0.99 ),
+        max.get()
+      );
+    }
+    
+    private long percentile( long cnt, double p )
+    {
+      long rank = (long)Math.ceil( p * cnt );
+      long seen = 0;
+      for( int i=0; i<64; i++ )
+      {
+        seen += buckets.get(i);
+        if( (seen >= rank) && (seen > 0) )
+          return Math.min( (i == 0) ? 0 : ((1L << i) - 1), max.get() );
+      }
+      return max.get();
+    }
+  }
+  
+  /*=======================================================================*/
+  @Name("oscript.compiler.Compile")
+  @Label("Script Compile")
+  @Category({ "OScript", "Compiler" })
+  static final class CompileEvent extends jdk.jfr.Event
+  {
+    @Label("Class Name")
+    String className;
+    
+    @Label("Class File Size") @DataAmount
+    int bytes;
+    
+    @Label("Method Count")
+    int methodCount;
+    
+    @Label("Constant Pool Size")
+    int constantPoolSize;
+    
+    @Label("Visitor Pass") @Timespan
+    long visitorTime;
+    
+    @Label("Deferred Runnables") @Timespan
+    long deferredTime;
+    
+    @Label("Optimization Passes") @Timespan
+    long optimizeTime;
+    
+    @Label("Set Max Stack") @Timespan
+    long setMaxStackTime;
+    
+    @Label("Dump") @Timespan
+    long dumpTime;
+    
+    @Label("Class File Upgrade") @Timespan
+    long upgradeTime;
+  }
+  
+  @Name("oscript.compiler.DefineClass")
+  @Label("Define Compiled Class")
+  @Category({ "OScript", "Compiler" })
+  static final class DefineClassEvent extends jdk.jfr.Event
+  {
+    @Label("Class Name")
+    String className;
+    
+    @Label("Class File Size") @DataAmount
+    int bytes;
+    
+    @Label("Define Time") @Timespan
+    long defineTime;
+  }
+}
@@ -0,0 +1,78 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import java.util.Map;
+
+
+/**
+ * The management interface of {@link CompilerMetrics}, registered as
+ * <tt>oscript.compiler:type=CompilerMetrics</tt>.
+ */
+public interface CompilerMetricsMXBean
+{
+  /** The number of classes successfully generated */
+  public long getCompiledCount();
+  
+  /** The number of compiles, or loads of class-data, that failed */
+  public long getFailedCount();
+  
+  /** The number of classes defined (generated or loaded from class-data) */
+  public long getDefinedCount();
+  
+  /** The number of defined classes that have not yet been unloaded */
+  public long getLiveClassCount();
+  
+  /** The total size of all generated class files, in bytes */
+  public long getGeneratedBytes();
+  
+  /** The size of the biggest generated class file, in bytes */
+  public long getMaxClassBytes();
+  
+  /** The mean size of generated class files, in bytes */
+  public double getMeanClassBytes();
+  
+  /** The mean number of methods per generated class */
+  public double getMeanMethodCount();
+  
+  /** The mean number of constant-pool entries per generated class */
+  public double getMeanConstantPoolSize();
+  
+  /**
+   * The latency of each phase of the compiler, by phase name, see
+   * {@link CompilerMetrics#PHASE_NAMES}.
+   */
+  public Map<String,CompilerMetrics.PhaseStats> getPhases();
+  
+  /**
+   * The number of nodes, and function bodies, that started out in the
+   * interpreter, see {@link TieredNodeEvaluatorFactory}
+   */
+  public long getTierInterpretedCount();
+  
+  /** The number of tiered nodes that crossed the threshold and were queued for compilation */
+  public long getTierCompileQueuedCount();
+  
+  /** The number of tiered nodes that were compiled and swapped in */
+  public long getTierCompiledCount();
+  
+  /** The number of tiered nodes that failed to compile, and stay interpreted */
+  public long getTierCompileFailedCount();
+  
+  /** Reset all the statistics, except the live class count */
+  public void reset();
+}
@@ -25,6 +25,7 @@ import java.util.*;
 
 import oscript.data.*;
 import oscript.syntaxtree.*;
+import oscript.exceptions.*;
 import oscript.util.*;
 
 
@@ -48,7 +49,7 @@ import org.apache.bcel.generic.*;
  * @author Rob Clark (rob@ti.com)
  * @version 0
  */
-public class CompilerScope
+public class CompilerScope implements NumericLocals.Env
 {
   private static final org.apache.bcel.generic.Type BASIC_SCOPE_TYPE  = new ObjectType("oscript.data.BasicScope");
   
@@ -65,6 +66,14 @@ public class CompilerScope
   private int smitIdx = -1;
   private int privSmitIdx, pubpSmitIdx;
   
+  /**
+   * For the scope passed in to the node-evaluator of a function, the
+   * scope of the enclosing node-evaluator that the function is declared
+   * in, or <code>null</code> if not known.
+   */
+  private CompilerScope enclosing;
+  private int[] argIds;
+  
   /**
    * The compiler for the compiled unit within which this scope is 
    * declared.
@@ -78,6 +87,18 @@ public class CompilerScope
    */
   private boolean openScope = false;
   
+  /**
+   * Set for a block scope that has no scope object, since all of its
+   * members are kept in local variables, see {@link NumericLocals#isElided}.
+   */
+  private boolean elided = false;
+  
+  /**
+   * The names declared by the block this scope is constructed for, or
+   * <code>null</code> if not known.
+   */
+  private Declarations.Block block;
+  
   
   /**
    * Constructor for scope to represent a scope passed in to the
@@ -87,11 +108,15 @@ public class CompilerScope
    * @param slot     the local variable slot of the externally constructed
    *    scope object
    * @param argIds   array of argument ids and attributes
+   * @param enclosing   the scope that the function is declared in, or
+   *    <code>null</code>
    */
-  CompilerScope( CompilerVisitor cv, int slot, int[] argIds )
+  CompilerScope( CompilerVisitor cv, int slot, int[] argIds, CompilerScope enclosing )
   {
     this.cv   = cv;
     this.slot = slot;
+    this.argIds    = argIds;
+    this.enclosing = enclosing;
     
     // for top-level scopes, also construct private and public/protect
     // index tables:
@@ -108,6 +133,32 @@ public class CompilerScope
     pubpSmitIdx = cv.ctx.getInstanceConstantIdx(pubpSmit);
   }
   
+  /**
+   * Constructor for a view of the scope passed in to the node-evaluator,
+   * used by a helper method that the body of the node-evaluator has been
+   * split into (see {@link MethodSplitter}).  The view shares the SMITs
+   * of <code>shared</code>, so members declared in the helper end up in
+   * the node-evaluator's SMIT, but not the cached members, since those
+   * live in the local variables of another method.
+   * 
+   * @param cv       the compiler for the helper method
+   * @param shared   the scope of the node-evaluator that was split
+   */
+  CompilerScope( CompilerVisitor cv, CompilerScope shared )
+  {
+    this.cv   = cv;
+    this.slot = shared.slot;
+    
+    smit        = shared.smit;
+    privSmit    = shared.privSmit;
+    pubpSmit    = shared.pubpSmit;
+    smitIdx     = shared.smitIdx;
+    privSmitIdx = shared.privSmitIdx;
+    pubpSmitIdx = shared.pubpSmitIdx;
+    argIds      = shared.argIds;
+    enclosing   = shared.enclosing;
+  }
+  
   /**
    * Constructor to represent a scope constructed by this node-evaluator.
    * 
@@ -119,10 +170,29 @@ public class CompilerScope
    *    the stack
    */
   CompilerScope( CompilerVisitor cv, CompilerScope prev, boolean hasFxnInScope )
+  {
+    this( cv, prev, hasFxnInScope, false );
+  }
+  
+  /**
+   * Constructor to represent a scope constructed by this node-evaluator,
+   * which may be elided.
+   * 
+   * @param cv       the compiler that declares this scope
+   * @param prev     the enclosing scope
+   * @param hasFxnInScope   see above
+   * @param elided   if <code>true</code>, no scope object is created, and
+   *    all members declared in this scope must be kept in local variables
+   */
+  CompilerScope( CompilerVisitor cv, CompilerScope prev, boolean hasFxnInScope, boolean elided )
   {
     this.cv = cv;
     this.prev = prev;
     this.hasFxnInScope = hasFxnInScope;
+    this.elided = elided;
+    
+    if(elided)
+      return;
     
     // create local variable for scope object:
     lg = cv.mg.addLocalVariable( CompilerContext.makeUniqueIdentifierName("scope"),
@@ -214,12 +284,46 @@ public class CompilerScope
     //     change after this point
   }
   
+  /**
+   * Set the names declared by the block this scope is constructed for.
+   */
+  void setBlock( Declarations.Block block )
+  {
+    this.block = block;
+  }
+  
+  /**
+   * Get the scope to give to a function created within this scope, which
+   * is the innermost scope that the function could find a variable in,
+   * see {@link Declarations.Block}.
+   * 
+   * @param freeNames   the names referred to by the function, see
+   *    {@link Declarations#getFreeNames}
+   */
+  CompilerScope getClosureScope( Hashtable freeNames )
+  {
+    if( elided || ((block != null) && block.canSkip(freeNames)) )
+      return prev.getClosureScope(freeNames);
+    return this;
+  }
+  
+  /**
+   * Is this scope open, see {@link #markOpen}?
+   */
+  boolean isOpen()
+  {
+    return openScope;
+  }
+  
   /**
    * Called when processing has reached the end of this scope, to pop
    * this scope of the stack
    */
   CompilerScope pop()
   {
+    if(elided)
+      return prev;
+    
     if( prev != null )
     {
       if(!hasFxnInScope)
@@ -236,12 +340,23 @@ public class CompilerScope
     return prev;
   }
   
+  /**
+   * Is this a scope constructed by this node-evaluator, ie. for a block,
+   * rather than the scope passed in to the node-evaluator?
+   */
+  boolean isBlockScope()
+  {
+    return prev != null;
+  }
+  
   /**
    * Get the slot for the local variable that refers to this scope object
    */
   int getSlot()
   {
-    return slot;
+    // an elided scope has no scope object, lookups start from the
+    // enclosing scope:
+    return elided ? prev.getSlot() : slot;
   }
   
   /**
@@ -257,6 +372,23 @@ public class CompilerScope
    */
   void createMember( NodeToken id, int attr )
   {
+    createMember( id, attr, null );
+  }
+  
+  /**
+   * Generate the {@link Scope#createMember} call, for a member which may
+   * be a <code>const</code> with a value known at compile time.
+   * 
+   * @param id           the &lt;IDENTIFIER&gt; token
+   * @param attr         the permissions attribute
+   * @param constValue   the value of the member, if it is a <code>const</code>
+   *    initialized with a compile-time constant, otherwise <code>null</code>
+   */
+  void createMember( NodeToken id, int attr, Value constValue )
+  {
+    if(elided)
+      throw new ProgrammingErrorException("member declared in elided scope: " + id.tokenImage);
+    
     cv.il.append( new ALOAD( getSlot() ) );
     cv.handle(id);
     cv.ctx.pushSymbol( cv.il, id.tokenImage );
@@ -265,7 +397,17 @@ public class CompilerScope
                                                        "createMember",
                                                        "(II)Loscript/data/Value;" ) ) );
     
-    createMemberImpl( id.otokenImage ).dumpInitializer();
+    Member member = createMemberImpl( id.otokenImage );
+    member.dumpInitializer();
+    
+    // if the declaration is on a conditional path, the member may not
+    // have that value everywhere it is visible:
+    if( !inConditional() )
+    {
+      member.setDeclared();
+      if( constValue != null )
+        member.setConstantValue(constValue);
+    }
     
     int iid = Symbol.getSymbol( id.otokenImage ).getId();
     smit.create(iid);
@@ -278,6 +420,24 @@ public class CompilerScope
     }
   }
   
+  /**
+   * Declare a member which is kept in a primitive local variable rather
+   * than in the scope object, see {@link NumericLocals}.  No code is
+   * generated to create the member, the caller is responsible for storing
+   * the initial value with {@link Member#dumpNumericStore}.
+   * 
+   * @param id           the &lt;IDENTIFIER&gt; token
+   * @param type         <code>NumericLocals.LONG</code>, <code>NumericLocals.DOUBLE</code>
+   *    or <code>NumericLocals.VALUE</code>
+   */
+  Member createNumericMember( NodeToken id, int type )
+  {
+    cv.handle(id);
+    Member member = createMemberImpl( id.otokenImage );
+    member.makeNumeric(type);
+    return member;
+  }
+  
   private Member createMemberImpl( Value name )
   {
     Member member = new Member( this, name );
@@ -301,9 +461,16 @@ public class CompilerScope
     if( member == null )
     {
       if( (prev == null) || openScope )
-        createMemberImpl(name).dumpLookup(cv);
+      {
+        member = createMemberImpl(name);
+        if( !openScope && isClosureVariable(id) )
+          member.makeClosureVariable();
+        member.dumpLookup(cv);
+      }
       else
+      {
         prev.lookupInScope( cv, id );
+      }
     }
     else
     {
@@ -311,6 +478,110 @@ public class CompilerScope
     }
   }
   
+  /**
+   * Can a variable that is not declared by this function be resolved at
+   * compile time to a member of a block scope of the enclosing function?
+   * If so, every call of the same function object finds the same member,
+   * see {@link ClosureVariableSites}.  To be sure of that:
+   * <ul>
+   *   <li> neither function may contain an <code>eval</code>,
+   *        <code>import</code> or <code>mixin</code>
+   *   <li> this function may not declare the name, and the enclosing
+   *        function may only declare it once, so it can't be shadowed
+   *   <li> the declaration must have been compiled already, ie. precede
+   *        the function, and not be on a conditional path
+   *   <li> the scopes from the function up to the declaration are closed
+   *        block scopes which are not re-used (since they contain a
+   *        function).  Members of the top-level scope of a function may
+   *        be visible to subclasses and the like, so they don't count.
+   * </ul>
+   * 
+   * @param id   the &lt;IDENTIFIER&gt; token
+   */
+  private boolean isClosureVariable( NodeToken id )
+  {
+    if( (enclosing == null) || !ClosureVariableSites.ENABLED )
+      return false;
+    
+    String name = id.tokenImage;
+    
+    if( cv.declarations.isOpen() || (cv.declarations.getCount(name) > 0) )
+      return false;
+    
+    if( argIds != null )
+    {
+      int iid = Symbol.getSymbol( id.otokenImage ).getId();
+      for( int i=0; i<argIds.length; i+=2 )
+        if( argIds[i] == iid )
+          return false;
+    }
+    
+    Declarations outer = enclosing.cv.declarations;
+    if( outer.isOpen() || (outer.getCount(name) != 1) )
+      return false;
+    
+    for( CompilerScope s=enclosing; s.prev != null; s=s.prev )
+    {
+      if( s.openScope || !s.hasFxnInScope )
+        return false;
+      
+      Member member = (Member)(s.memberTable.get( id.otokenImage ));
+      if( member != null )
+        return member.isDeclared() && (member.getNumericType() == NumericLocals.NONE);
+    }
+    
+    return false;
+  }
+  
+  /**
+   * Get the compile-time constant value of a member, resolving the member
+   * the same way as {@link #lookupInScope}.
+   * 
+   * @param id   the &lt;IDENTIFIER&gt; token
+   * @return the value, or <code>null</code> if the member is not a
+   *    <code>const</code> with a known value
+   */
+  Value getConstantValue( NodeToken id )
+  {
+    Member member = (Member)(memberTable.get( id.otokenImage ));
+    
+    if( member != null )
+      return member.getConstantValue();
+    else if( (prev == null) || openScope )
+      return null;
+    else
+      return prev.getConstantValue(id);
+  }
+  
+  /**
+   * Get the member kept in a primitive local variable, resolving the member
+   * the same way as {@link #lookupInScope}.
+   * 
+   * @param id   the &lt;IDENTIFIER&gt; token
+   * @return the member, or <code>null</code> if the member is kept in a
+   *    scope object
+   */
+  Member getNumericMember( NodeToken id )
+  {
+    Member member = (Member)(memberTable.get( id.otokenImage ));
+    
+    if( member != null )
+      return (member.getNumericType() != NumericLocals.NONE) ? member : null;
+    else if( (prev == null) || openScope )
+      return null;
+    else
+      return prev.getNumericMember(id);
+  }
+  
+  public int getNumericType( NodeToken id )
+  {
+    // a member kept in a Value local isn't known to be a number:
+    Member member = getNumericMember(id);
+    if( (member == null) || (member.getNumericType() == NumericLocals.VALUE) )
+      return NumericLocals.NONE;
+    return member.getNumericType();
+  }
+  
   /**
    * Called by the compiler to indicate that compilation has entered a 
    * potentially condional path within this scope.  (It does not matter 
@@ -345,6 +616,43 @@ public class CompilerScope
     else
       return false;
   }
+  
+  /**
+   * Record whether each member of this scope, and of the scopes enclosing
+   * it, has been looked up yet.  Used where the same code is compiled more
+   * than once on different paths, ie. the copies of a "finally" block.
+   * 
+   * @see #restoreMemberState
+   */
+  Hashtable saveMemberState()
+  {
+    Hashtable state = new Hashtable();
+    for( CompilerScope s = this; s != null; s = s.prev )
+      for( Iterator itr=s.memberTable.values().iterator(); itr.hasNext(); )
+      {
+        Member member = (Member)(itr.next());
+        state.put( member, member.getLoadState() );
+      }
+    return state;
+  }
+  
+  /**
+   * Called when the compiler continues on a path that did not run the
+   * code compiled since <code>state</code> was saved.  A member that was
+   * looked up by that code may still be <code>null</code> in its local
+   * variable on this path, so the next lookup checks for that.
+   * 
+   * @param state   the result of {@link #saveMemberState}
+   */
+  void restoreMemberState( Hashtable state )
+  {
+    for( CompilerScope s = this; s != null; s = s.prev )
+      for( Iterator itr=s.memberTable.values().iterator(); itr.hasNext(); )
+      {
+        Member member = (Member)(itr.next());
+        member.restoreLoadState( (Integer)(state.get(member)) );
+      }
+  }
 }
 
 
@@ -363,6 +671,31 @@ class Member
   
   private InstructionHandle initializerHandle = null;
   
+  /**
+   * The value of a <code>const</code> member known at compile time, or
+   * <code>null</code>.
+   */
+  private Value constantValue = null;
+  
+  /**
+   * The type of the local variable the member is kept in, or
+   * <code>NumericLocals.NONE</code>, see {@link NumericLocals}.
+   */
+  private int numericType = NumericLocals.NONE;
+  private int numericSlot = -1;
+  
+  /**
+   * Set if the member is declared by the scope on a path that is always
+   * taken, rather than found by a lookup.
+   */
+  private boolean declared = false;
+  
+  /**
+   * Set if the member is resolved to the enclosing function, and looked
+   * up with {@link ClosureVariableSites}.
+   */
+  private boolean closureVariable = false;
+  
   /**
    * Class Constructor for a member of a scope.
    * 
@@ -416,11 +749,147 @@ class Member
       cv.il.insert( InstructionConst.ACONST_NULL );
     }
     
-if( initializerHandle == null ) Thread.dumpStack();
+    // replace initializerHandle, unless the first lookup was already
+    // cached (see dumpLookup):
+    if( initializerHandle != null )
+    {
+      InstructionHandle tmp = cv.il.append( initializerHandle, InstructionConst.DUP );
+      cv.il.append( tmp, new ASTORE(slot) );
+    }
+  }
+  
+  void setConstantValue( Value constantValue )
+  {
+    this.constantValue = constantValue;
+  }
+  
+  Value getConstantValue()
+  {
+    return constantValue;
+  }
+  
+  /**
+   * see {@link CompilerScope#saveMemberState}
+   */
+  Integer getLoadState()
+  {
+    return Integer.valueOf( (definitelyNeedToLoad ? 1 : 0) | (mayNeedToLoad ? 2 : 0) );
+  }
+  
+  /**
+   * see {@link CompilerScope#restoreMemberState}
+   * 
+   * @param state   the saved state, or <code>null</code> if the member did
+   *    not exist yet
+   */
+  void restoreLoadState( Integer state )
+  {
+    if( (state != null) && (state.equals( getLoadState() )) )
+      return;
     
-    // replace initializerHandle:
-    InstructionHandle tmp = cv.il.append( initializerHandle, InstructionConst.DUP );
-    cv.il.append( tmp, new ASTORE(slot) );
+    // the first lookup can't be undone, since its initializer may already
+    // have been replaced, so fall back to checking the local variable:
+    if( !definitelyNeedToLoad )
+      mayNeedToLoad = true;
+  }
+  
+  void setDeclared()
+  {
+    declared = true;
+  }
+  
+  boolean isDeclared()
+  {
+    return declared;
+  }
+  
+  /**
+   * can only be called by defining scope, before the first lookup
+   */
+  void makeClosureVariable()
+  {
+    closureVariable = true;
+  }
+  
+  /**
+   * can only be called by defining scope, from createNumericMember
+   */
+  void makeNumeric( int type )
+  {
+    numericType = type;
+    
+    org.apache.bcel.generic.Type t;
+    if( type == NumericLocals.LONG )
+      t = org.apache.bcel.generic.Type.LONG;
+    else if( type == NumericLocals.DOUBLE )
+      t = org.apache.bcel.generic.Type.DOUBLE;
+    else
+      t = CompilerContext.VALUE_TYPE;
+    
+    LocalVariableGen lg = cv.mg.addLocalVariable( 
+      CompilerContext.makeUniqueIdentifierName( name.castToString() ),
+      t,
+      null,
+      null
+    );
+    
+    numericSlot = lg.getIndex();
+    
+    // insert at head in reverse order, so the local is always assigned:
+    if( type == NumericLocals.LONG )
+    {
+      cv.il.insert( new LSTORE(numericSlot) );
+      cv.il.insert( InstructionConst.LCONST_0 );
+    }
+    else if( type == NumericLocals.VALUE )
+    {
+      cv.il.insert( new ASTORE(numericSlot) );
+      cv.il.insert( InstructionConst.ACONST_NULL );
+    }
+    else
+    {
+      cv.il.insert( new DSTORE(numericSlot) );
+      cv.il.insert( InstructionConst.DCONST_0 );
+    }
+    
+    definitelyNeedToLoad = false;
+  }
+  
+  int getNumericType()
+  {
+    return numericType;
+  }
+  
+  /**
+   * Stack:
+   * <pre>
+   *   ... -&gt; ..., long|double|Value
+   * </pre>
+   */
+  void dumpNumericLoad()
+  {
+    if( numericType == NumericLocals.LONG )
+      cv.il.append( new LLOAD(numericSlot) );
+    else if( numericType == NumericLocals.VALUE )
+      cv.il.append( new ALOAD(numericSlot) );
+    else
+      cv.il.append( new DLOAD(numericSlot) );
+  }
+  
+  /**
+   * Stack:
+   * <pre>
+   *   ..., long|double|Value -&gt; ...
+   * </pre>
+   */
+  void dumpNumericStore()
+  {
+    if( numericType == NumericLocals.LONG )
+      cv.il.append( new LSTORE(numericSlot) );
+    else if( numericType == NumericLocals.VALUE )
+      cv.il.append( new ASTORE(numericSlot) );
+    else
+      cv.il.append( new DSTORE(numericSlot) );
   }
   
   /**
@@ -434,24 +903,65 @@ if( initializerHandle != null ) Thread.dumpStack();
   }
   
   /**
-   * can only be called by defining scope, after lookupInScope
+   * Stack:
+   * <pre>
+   *   ... -&gt; ..., Value
+   * </pre>
    */
-  void dumpLookup( CompilerVisitor cv )
+  private void dumpScopeLookup( CompilerVisitor cv )
   {
-    // XXX perhaps this could be cleaned up:
-    if(definitelyNeedToLoad)
+    if(closureVariable)
+    {
+      cv.dumpCallee();
+      cv.il.append( new ALOAD( scope.getSlot() ) );
+      cv.ctx.pushSymbol( cv.il, name.castToString() );
+      cv.il.append( new INVOKESTATIC( cv.ctx.methodref( 
+        "oscript.compiler.ClosureVariableSites",
+        "lookupInScope",
+        "(Loscript/data/Value;Loscript/data/Scope;I)Loscript/data/Value;"
+      ) ) );
+    }
+    else
     {
-      mayNeedToLoad = scope.inConditional();
-      
       cv.il.append( new ALOAD( scope.getSlot() ) );
-      
       cv.ctx.pushSymbol( cv.il, name.castToString() );
-      
       cv.il.append( new INVOKEVIRTUAL( cv.ctx.methodref( 
         "oscript.data.Scope",
         "lookupInScope",
         "(I)Loscript/data/Value;"
       ) ) );
+    }
+  }
+  
+  /**
+   * can only be called by defining scope, after lookupInScope
+   */
+  void dumpLookup( CompilerVisitor cv )
+  {
+    if( numericType != NumericLocals.NONE )
+    {
+      dumpNumericLoad();
+      if( numericType != NumericLocals.VALUE )
+        cv.dumpBoxNumeric(numericType);
+      return;
+    }
+    
+    // XXX perhaps this could be cleaned up:
+    if( definitelyNeedToLoad && scope.inConditional() && !scope.isOpen() )
+    {
+      // the first lookup is on a conditional path, ie. in a loop body,
+      // so rather than doing the hashtable lookup each time around the
+      // loop, cache the result.  Since the scope is closed, the member
+      // can't be re-declared behind the compiler's back:
+      definitelyNeedToLoad = false;
+      mayNeedToLoad = true;
+      dumpLookup(cv);
+    }
+    else if(definitelyNeedToLoad)
+    {
+      mayNeedToLoad = scope.inConditional();
+      
+      dumpScopeLookup(cv);
       
       dumpInitializer();
     }
@@ -468,15 +978,7 @@ if( initializerHandle != null ) Thread.dumpStack();
       BranchInstruction IFNONNULL = new IFNONNULL(null);
       cv.il.append(IFNONNULL);
       cv.il.append( InstructionConst.POP );
-      cv.il.append( new ALOAD( scope.getSlot() ) );
-      
-      cv.ctx.pushSymbol( cv.il, name.castToString() );
-      
-      cv.il.append( new INVOKEVIRTUAL( cv.ctx.methodref( 
-        "oscript.data.Scope",
-        "lookupInScope",
-        "(I)Loscript/data/Value;" 
-      ) ) );
+      dumpScopeLookup(cv);
       cv.il.append( InstructionConst.DUP );
       cv.il.append( new ASTORE(slot) );
       
@@ -33,6 +33,7 @@ import oscript.translator.*;
 import org.apache.bcel.generic.*;
 import org.apache.bcel.Const;
 
+import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.Iterator;
 
@@ -99,12 +100,18 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
   /*=======================================================================*/
   /**
    * The loop stack is used to track nested levels of loops, and cleanup
-   * such as JSR to finally or releasing monitors, that needs to happen
-   * when program execution jumps out of a loop, such as in the case of
-   * "return", "continue", or "break"
+   * such as inlining a copy of a finally or releasing monitors, that needs
+   * to happen when program execution jumps out of a loop, such as in the
+   * case of "return", "continue", or "break"
    */
   private LoopStackNode loopStack;
   
+  /**
+   * The number of loops that the code being generated is within, counting
+   * the loop's condition, see {@link LoopInvariants}.
+   */
+  private int loopDepth = 0;
+  
   /*=======================================================================*/
   /**
    * List of runnables to invoke after the first pass of the compiler over
@@ -112,6 +119,18 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   private LinkedList deferredRunnableList = new LinkedList();
   
+  /*=======================================================================*/
+  /**
+   * The variables of this node-evaluator which can be kept in primitive
+   * local variables, see {@link NumericLocals}
+   */
+  private NumericLocals numericLocals;
+  
+  /**
+   * The names declared by this node-evaluator, see {@link Declarations}
+   */
+  Declarations declarations;
+  
   
   /*=======================================================================*/
   /**
@@ -119,9 +138,18 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   CompilerVisitor( CompilerContext ctx, String name, Node node )
   {
-    this( ctx, name, node, null );
+    this( ctx, name, node, null, null );
   }
-  private CompilerVisitor( CompilerContext ctx, String name, Node node, int[] argIds )
+  
+  /**
+   * Create a new compiler-visitor for the body of a function that is
+   * compiled on its own, see {@link CompilerContext#compileNode(String,Node,int[])}
+   */
+  CompilerVisitor( CompilerContext ctx, String name, Node node, int[] argIds )
+  {
+    this( ctx, name, node, argIds, null );
+  }
+  private CompilerVisitor( CompilerContext ctx, String name, Node node, int[] argIds, CompilerScope enclosing )
   {
     this.ctx = ctx;
     
@@ -135,7 +163,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
                         ctx.className,
                         il, ctx.cp );
     
-    scope = new CompilerScope( this, 2, argIds );
+    scope = new CompilerScope( this, 2, argIds, enclosing );
     
     ctx.addSMITs( innerNodeIdx, scope.getSharedMemberIndexTableIdxs() );
     
@@ -144,6 +172,54 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
   
   private int innerNodeIdx;
   
+  /**
+   * Create a new compiler-visitor for a helper method that part of the
+   * body of a node-evaluator has been split into.  The helper method
+   * returns <code>null</code> on normal completion, or the return value
+   * if a <code>return</code> statement was executed.
+   * 
+   * @param ctx          the compiler context
+   * @param methodName   the name of the helper method
+   * @param units        the <i>EvaluationUnit</i>s to compile
+   * @param sharedScope  the scope of the node-evaluator that was split
+   * @param numericLocals  the analysis of the node-evaluator that was split
+   * @param declarations   the declarations of the node-evaluator that was split
+   */
+  private CompilerVisitor( CompilerContext ctx, String methodName, LinkedList units,
+                           CompilerScope sharedScope, NumericLocals numericLocals,
+                           Declarations declarations )
+  {
+    this.ctx = ctx;
+    this.numericLocals = numericLocals;
+    this.declarations  = declarations;
+    
+    il = new CompilerInstructionList();
+    
+    mg = new MethodGen( Const.ACC_PRIVATE,
+                        CompilerContext.OBJECT_TYPE,
+                        CompilerContext.EVAL_NODE_ARG_TYPES,
+                        CompilerContext.EVAL_NODE_ARG_NAMES,
+                        methodName,
+                        ctx.className,
+                        il, ctx.cp );
+    
+    scope = new CompilerScope( this, sharedScope );
+    
+    retValOnStack = false;
+    loopStack = new LoopStackNode(null);
+    
+    for( Iterator itr=units.iterator(); itr.hasNext(); )
+      ((Node)(itr.next())).accept(this);
+    
+    loopStack.pop();
+    
+    // normal completion:
+    il.append( InstructionConst.ACONST_NULL );
+    il.append( InstructionConst.ARETURN );
+    
+    finishMethod();
+  }
+  
   
   /*=======================================================================*/
   /**
@@ -157,7 +233,14 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     
     loopStack = new LoopStackNode(null);
     
-    node.accept(this);
+    numericLocals = NumericLocals.analyze(node);
+    declarations  = Declarations.analyze(node);
+    
+    LinkedList chunks = MethodSplitter.split(node);
+    if( chunks != null )
+      dumpSplitChunks(chunks);
+    else
+      node.accept(this);
     
     loopStack.pop();
     
@@ -170,13 +253,65 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
      */
     il.append( InstructionConst.ARETURN );
     
+    finishMethod();
+  }
+  
+  /**
+   * Run the deferred runnables and the optimization passes, and add the
+   * method to the class.
+   */
+  private void finishMethod()
+  {
+    long t = System.nanoTime();
     for( Iterator itr=deferredRunnableList.iterator(); itr.hasNext(); )
       ((Runnable)(itr.next())).run();
     
+    long t2 = System.nanoTime();
+    PassManager.run( ctx.className, mg );
+    
+    long t3 = System.nanoTime();
     mg.setMaxStack();
+    
+    ctx.phaseNanos[CompilerMetrics.DEFERRED] += t2 - t;
+    ctx.phaseNanos[CompilerMetrics.OPTIMIZE] += t3 - t2;
+    ctx.phaseNanos[CompilerMetrics.SET_MAX_STACK] += System.nanoTime() - t3;
     ctx.cg.addMethod( mg.getMethod() );
   }
   
+  /**
+   * The body of this node-evaluator is too big for one method, so compile
+   * each chunk into a helper method, and call them in order.  If a helper
+   * returns non-<code>null</code>, a <code>return</code> was executed and
+   * that is the return value.
+   * 
+   * @param chunks   list of lists of <i>EvaluationUnit</i>s
+   */
+  private void dumpSplitChunks( LinkedList chunks )
+  {
+    int part = 0;
+    for( Iterator itr=chunks.iterator(); itr.hasNext(); )
+    {
+      String methodName = mg.getName() + "$" + (part++);
+      new CompilerVisitor( ctx, methodName, (LinkedList)(itr.next()), scope, numericLocals, declarations );
+      
+      // ..., => ..., retVal
+      il.append( InstructionConst.ALOAD_0 );
+      il.append( InstructionConst.ALOAD_1 );   // sf
+      il.append( InstructionConst.ALOAD_2 );   // scope
+      il.append( new INVOKEVIRTUAL( ctx.methodref(
+        ctx.className,
+        methodName,
+        "(Loscript/util/StackFrame;Loscript/data/Scope;)Ljava/lang/Object;"
+      ) ) );
+      il.append( InstructionConst.DUP );
+      BranchInstruction IFNULL = new IFNULL(null);
+      il.append(IFNULL);
+      il.append( InstructionConst.ARETURN );
+      il.setNextAsTarget(IFNULL);
+      il.append( InstructionConst.POP );
+    }
+  }
+  
   /*=======================================================================*/
   CompilerScope scope;
   
@@ -274,6 +409,19 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
       return;
     }
     
+    if( getLiteralValue(n) != null )
+    {
+      getInstanceConstant( n.cachedValue );
+    }
+  }
+  
+  /**
+   * Get the value of a literal token, caching it in the token.
+   * 
+   * @return the value, or <code>null</code> if the token is not a literal
+   */
+  static Value getLiteralValue( NodeToken n )
+  {
     if( n.cachedValue == null )
     {
       switch(n.kind)
@@ -303,19 +451,812 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
         case NULL:
           n.cachedValue = Value.NULL;
           break;
-        case UNDEFINED:
-          n.cachedValue = Value.UNDEFINED;
+        case UNDEFINED:
+          n.cachedValue = Value.UNDEFINED;
+          break;
+        case -1:
+        default:
+          // leave as null
+      }
+    }
+    
+    return (Value)(n.cachedValue);
+  }
+  
+  /**
+   * If the expression is a compile-time constant, push its value, see
+   * {@link ConstantFolder}.
+   * 
+   * @return <code>true</code> if the expression was folded, in which case
+   *    the caller should not generate code for it
+   */
+  private boolean foldConstant( Node n )
+  {
+    Value val = ConstantFolder.fold( n, scope );
+    if( val == null )
+      return false;
+    getInstanceConstant(val);
+    return true;
+  }
+  
+  /*=======================================================================*/
+  /* Code generation for members kept in primitive local variables, see
+   * NumericLocals.  The analysis guarantees that such a member only ever
+   * holds a number of its type, so an expression involving only numbers
+   * and these members can be computed with primitive instructions.  The
+   * remaining members that nothing outside of this method can see are kept
+   * in Value local variables, which are never numeric in this sense.
+   */
+  
+  /**
+   * Generate code to box a primitive number.  Stack:
+   * <pre>
+   *   ..., long|double -&gt; ..., Value
+   * </pre>
+   * 
+   * @param type   <code>NumericLocals.LONG</code> or <code>NumericLocals.DOUBLE</code>
+   */
+  void dumpBoxNumeric( int type )
+  {
+    if( type == NumericLocals.LONG )
+      il.append( new INVOKESTATIC( ctx.methodref( "oscript.data.OExactNumber",
+                                                  "makeExactNumber",
+                                                  "(J)Loscript/data/OExactNumber;" ) ) );
+    else
+      il.append( new INVOKESTATIC( ctx.methodref( "oscript.data.OInexactNumber",
+                                                  "makeInexactNumber",
+                                                  "(D)Loscript/data/OInexactNumber;" ) ) );
+  }
+  
+  /**
+   * Generate code to evaluate an expression, which is known to evaluate to
+   * a number of the specified type, to a primitive.  Stack:
+   * <pre>
+   *   ... -&gt; ..., long|double
+   * </pre>
+   * 
+   * @param n      the expression
+   * @param type   <code>NumericLocals.LONG</code> or <code>NumericLocals.DOUBLE</code>
+   */
+  private void dumpNumeric( Node n, int type )
+  {
+    int t = NumericLocals.typeOf( n, scope );
+    if( t == NumericLocals.NONE )
+    {
+      // the expression refers to a member the analysis found could be
+      // unboxed but which is kept in a scope, so evaluate it normally:
+      n.accept(this);
+      setRetValOnStack(false);
+      if( type == NumericLocals.LONG )
+        il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
+                                                     "castToExactNumber",
+                                                     "()J" ) ) );
+      else
+        il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
+                                                     "castToInexactNumber",
+                                                     "()D" ) ) );
+    }
+    else
+    {
+      dumpTyped(n);
+      if( (t == NumericLocals.LONG) && (type == NumericLocals.DOUBLE) )
+        il.append( InstructionConst.L2D );
+    }
+  }
+  
+  /**
+   * Generate code for an expression whose type, according to
+   * {@link NumericLocals#typeOf}, is not <code>NONE</code>.
+   * 
+   * @return the type of the primitive left on the stack
+   */
+  private int dumpTyped( Node n )
+  {
+    n = NumericLocals.unwrap(n);
+    
+    if( n instanceof NodeToken )
+    {
+      NodeToken t = (NodeToken)n;
+      handle(t);
+      if( NumericLocals.typeOf( t, scope ) == NumericLocals.LONG )
+      {
+        il.append( new PUSH( ctx.cp, getLiteralValue(t).castToExactNumber() ) );
+        return NumericLocals.LONG;
+      }
+      else
+      {
+        il.append( new PUSH( ctx.cp, getLiteralValue(t).castToInexactNumber() ) );
+        return NumericLocals.DOUBLE;
+      }
+    }
+    
+    if( n instanceof IdentifierPrimaryPrefix )
+    {
+      NodeToken id = ((IdentifierPrimaryPrefix)n).f0;
+      handle(id);
+      Member member = scope.getNumericMember(id);
+      member.dumpNumericLoad();
+      return member.getNumericType();
+    }
+    
+    if( n instanceof AdditiveExpression )
+      return dumpTypedChain( ((AdditiveExpression)n).f0, ((AdditiveExpression)n).f1 );
+    
+    if( n instanceof MultiplicativeExpression )
+      return dumpTypedChain( ((MultiplicativeExpression)n).f0, ((MultiplicativeExpression)n).f1 );
+    
+    if( n instanceof UnaryExpression )
+    {
+      UnaryExpression e = (UnaryExpression)n;
+      int type = dumpTyped( e.f1 );
+      if( NumericLocals.operator( e.f0.node ) == MINUS )
+        il.append( (type == NumericLocals.LONG) ? InstructionConst.LNEG : InstructionConst.DNEG );
+      return type;
+    }
+    
+    throw new ProgrammingErrorException("not a numeric expression: " + n);
+  }
+  
+  private int dumpTypedChain( Node f0, NodeListOptional f1 )
+  {
+    int type = dumpTyped(f0);
+    
+    for( int i=0; i<f1.size(); i++ )
+    {
+      NodeSequence seq = (NodeSequence)(f1.elementAt(i));
+      int op      = NumericLocals.operator( seq.elementAt(0) );
+      int argType = NumericLocals.typeOf( seq.elementAt(1), scope );
+      int result  = NumericLocals.binaryType( type, op, argType );
+      
+      if( (type == NumericLocals.LONG) && (result == NumericLocals.DOUBLE) )
+        il.append( InstructionConst.L2D );
+      dumpTyped( seq.elementAt(1) );
+      if( (argType == NumericLocals.LONG) && (result == NumericLocals.DOUBLE) )
+        il.append( InstructionConst.L2D );
+      
+      dumpArithmetic( op, result );
+      type = result;
+    }
+    
+    return type;
+  }
+  
+  private void dumpArithmetic( int op, int type )
+  {
+    boolean isLong = (type == NumericLocals.LONG);
+    switch(op)
+    {
+      case PLUS:
+        il.append( isLong ? InstructionConst.LADD : InstructionConst.DADD );
+        break;
+      case MINUS:
+        il.append( isLong ? InstructionConst.LSUB : InstructionConst.DSUB );
+        break;
+      case STAR:
+        il.append( isLong ? InstructionConst.LMUL : InstructionConst.DMUL );
+        break;
+      case SLASH:
+        if(isLong)
+          throw new ProgrammingErrorException("exact divide");
+        il.append( InstructionConst.DDIV );
+        break;
+      default:
+        throw new ProgrammingErrorException("bad binary op: " + OscriptParser.getTokenString(op));
+    }
+  }
+  
+  /**
+   * If the expression is numeric, compute it with primitive instructions
+   * and box the result.
+   * 
+   * @return <code>true</code> if code was generated for the expression
+   */
+  private boolean dumpNumericExpression( Node n )
+  {
+    int type = NumericLocals.typeOf( n, scope );
+    if( type == NumericLocals.NONE )
+      return false;
+    dumpTyped(n);
+    dumpBoxNumeric(type);
+    setRetValOnStack(true);
+    return true;
+  }
+  
+  /**
+   * If the expression compares two numeric expressions, compare them with
+   * primitive instructions.
+   * 
+   * @param f0    the left operand of the <i>RelationalExpression</i> or
+   *    <i>EqualityExpression</i>
+   * @param f1    the list of operators and right operands
+   * @return <code>true</code> if code was generated for the expression
+   */
+  private boolean dumpNumericComparison( Node f0, NodeListOptional f1 )
+  {
+    if( f1.size() != 1 )
+      return false;
+    
+    NodeSequence seq = (NodeSequence)(f1.elementAt(0));
+    BranchInstruction IFFALSE = dumpNumericCompare( f0, NumericLocals.operator( seq.elementAt(0) ), seq.elementAt(1), false );
+    if( IFFALSE == null )
+      return false;
+    
+    il.append( new GETSTATIC( ctx.cp.addFieldref( "oscript.data.OBoolean", "TRUE", "Loscript/data/OBoolean;" ) ) );
+    BranchInstruction GOTO_END = new GOTO(null);
+    il.append(GOTO_END);
+    
+    il.setNextAsTarget(IFFALSE);
+    il.append( new GETSTATIC( ctx.cp.addFieldref( "oscript.data.OBoolean", "FALSE", "Loscript/data/OBoolean;" ) ) );
+    il.setNextAsTarget(GOTO_END);
+    
+    setRetValOnStack(true);
+    return true;
+  }
+  
+  /**
+   * If both operands of a comparison are numeric, generate the comparison
+   * with primitive instructions, followed by a branch which is taken if
+   * the result of the comparison is <code>jumpIf</code>.
+   * 
+   * @param lhs      the left operand
+   * @param op       the comparison operator
+   * @param rhs      the right operand
+   * @param jumpIf   the result for which the branch is taken
+   * @return the branch instruction, whose target is not yet set, or
+   *    <code>null</code> if no code was generated
+   */
+  private BranchInstruction dumpNumericCompare( Node lhs, int op, Node rhs, boolean jumpIf )
+  {
+    if( (op != LT) && (op != GT) && (op != LE) && (op != GE) && (op != EQ) && (op != NE) )
+      return null;
+    
+    int t0 = NumericLocals.typeOf( lhs, scope );
+    int t1 = NumericLocals.typeOf( rhs, scope );
+    if( (t0 == NumericLocals.NONE) || (t1 == NumericLocals.NONE) )
+      return null;
+    
+    // whether an exact number equals an inexact number is up to the
+    // number classes:
+    if( ((op == EQ) || (op == NE)) && (t0 != t1) )
+      return null;
+    
+    boolean isLong = (t0 == NumericLocals.LONG) && (t1 == NumericLocals.LONG);
+    
+    dumpTyped(lhs);
+    if( !isLong && (t0 == NumericLocals.LONG) )
+      il.append( InstructionConst.L2D );
+    dumpTyped(rhs);
+    if( !isLong && (t1 == NumericLocals.LONG) )
+      il.append( InstructionConst.L2D );
+    
+    // a comparison with NaN is false, so use DCMPG for < and <=, and
+    // DCMPL for > and >=:
+    BranchInstruction bi = null;
+    switch(op)
+    {
+      case LT:
+        il.append( isLong ? InstructionConst.LCMP : InstructionConst.DCMPG );
+        bi = jumpIf ? (BranchInstruction)(new IFLT(null)) : new IFGE(null);
+        break;
+      case LE:
+        il.append( isLong ? InstructionConst.LCMP : InstructionConst.DCMPG );
+        bi = jumpIf ? (BranchInstruction)(new IFLE(null)) : new IFGT(null);
+        break;
+      case GT:
+        il.append( isLong ? InstructionConst.LCMP : InstructionConst.DCMPL );
+        bi = jumpIf ? (BranchInstruction)(new IFGT(null)) : new IFLE(null);
+        break;
+      case GE:
+        il.append( isLong ? InstructionConst.LCMP : InstructionConst.DCMPL );
+        bi = jumpIf ? (BranchInstruction)(new IFGE(null)) : new IFLT(null);
+        break;
+      case EQ:
+        il.append( isLong ? InstructionConst.LCMP : InstructionConst.DCMPL );
+        bi = jumpIf ? (BranchInstruction)(new IFEQ(null)) : new IFNE(null);
+        break;
+      case NE:
+        il.append( isLong ? InstructionConst.LCMP : InstructionConst.DCMPL );
+        bi = jumpIf ? (BranchInstruction)(new IFNE(null)) : new IFEQ(null);
+        break;
+    }
+    il.append(bi);
+    return bi;
+  }
+  
+  /**
+   * Generate a relational comparison where one operand is numeric and the
+   * other isn't, ie. the counter of a loop kept in a primitive local and
+   * a bound whose type isn't known at compile time, with the version of
+   * the {@link Comparisons} method that takes the primitive unboxed.
+   * 
+   * @return the branch instruction, or <code>null</code> if no code was
+   *    generated
+   */
+  private BranchInstruction dumpMixedCompare( Node lhs, int op, Node rhs, boolean jumpIf )
+  {
+    String methodName;
+    switch(op)
+    {
+      case LT:
+        methodName = "lessThan";
+        break;
+      case GT:
+        methodName = "greaterThan";
+        break;
+      case LE:
+        methodName = "lessThanOrEquals";
+        break;
+      case GE:
+        methodName = "greaterThanOrEquals";
+        break;
+      default:
+        return null;
+    }
+    
+    int t0 = NumericLocals.typeOf( lhs, scope );
+    int t1 = NumericLocals.typeOf( rhs, scope );
+    if( (t0 == NumericLocals.NONE) == (t1 == NumericLocals.NONE) )
+      return null;
+    
+    // the operands are evaluated in order, since the value may have side
+    // effects:
+    String sig;
+    if( t0 != NumericLocals.NONE )
+    {
+      dumpTyped(lhs);
+      rhs.accept(this);
+      setRetValOnStack(false);
+      sig = ((t0 == NumericLocals.LONG) ? "(J" : "(D") + "Loscript/data/Value;)Z";
+    }
+    else
+    {
+      lhs.accept(this);
+      setRetValOnStack(false);
+      dumpTyped(rhs);
+      sig = "(Loscript/data/Value;" + ((t1 == NumericLocals.LONG) ? "J" : "D") + ")Z";
+    }
+    
+    il.append( new INVOKESTATIC( ctx.methodref( "oscript.compiler.Comparisons", methodName, sig ) ) );
+    BranchInstruction bi = jumpIf ? (BranchInstruction)(new IFNE(null)) : new IFEQ(null);
+    il.append(bi);
+    return bi;
+  }
+  
+  /*=======================================================================*/
+  /**
+   * Generate code for the condition of an <code>if</code>, loop or
+   * <code>?:</code>, which branches on the result rather than leaving a
+   * value on the stack.  Comparisons are done with {@link Comparisons},
+   * or primitive instructions if the operands are numeric, rather than
+   * creating an {@link OBoolean}, and <code>&amp;&amp;</code> and
+   * <code>||</code> become chains of branches.  Stack is unchanged.
+   * 
+   * @param n          the condition
+   * @param jumpIf     the value of the condition for which to branch
+   * @param branches   the generated branch instructions are added to this
+   *    list, the caller is responsible for setting their targets
+   */
+  private void dumpCondition( Node n, boolean jumpIf, LinkedList branches )
+  {
+    Value val = ConstantFolder.fold( n, scope );
+    if( val != null )
+    {
+      if( val.castToBooleanSoft() == jumpIf )
+      {
+        BranchInstruction GOTO = new GOTO(null);
+        il.append(GOTO);
+        branches.add(GOTO);
+      }
+      return;
+    }
+    
+    Node u = NumericLocals.unwrap(n);
+    
+    if( u instanceof LogicalAndExpression )
+    {
+      dumpLogicalCondition( ((LogicalAndExpression)u).f0, ((LogicalAndExpression)u).f1, false, jumpIf, branches );
+      return;
+    }
+    
+    if( u instanceof LogicalOrExpression )
+    {
+      dumpLogicalCondition( ((LogicalOrExpression)u).f0, ((LogicalOrExpression)u).f1, true, jumpIf, branches );
+      return;
+    }
+    
+    if( (u instanceof UnaryExpression) && (NumericLocals.operator( ((UnaryExpression)u).f0.node ) == BANG) )
+    {
+      // the result of a comparison is an OBoolean, so "!" is the same as
+      // branching on the opposite result, which isn't true of all values:
+      Node operand = NumericLocals.unwrap( ((UnaryExpression)u).f1 );
+      if( isComparison(operand) )
+      {
+        dumpCondition( operand, !jumpIf, branches );
+        return;
+      }
+    }
+    
+    if( isComparison(u) )
+    {
+      Node         f0  = (u instanceof RelationalExpression) ? ((RelationalExpression)u).f0 : ((EqualityExpression)u).f0;
+      NodeSequence seq = (NodeSequence)(((u instanceof RelationalExpression) ? ((RelationalExpression)u).f1 : ((EqualityExpression)u).f1).elementAt(0));
+      int          op  = NumericLocals.operator( seq.elementAt(0) );
+      
+      BranchInstruction bi = dumpNumericCompare( f0, op, seq.elementAt(1), jumpIf );
+      if( bi == null )
+        bi = dumpMixedCompare( f0, op, seq.elementAt(1), jumpIf );
+      if( bi == null )
+      {
+        f0.accept(this);
+        setRetValOnStack(false);
+        seq.elementAt(1).accept(this);
+        setRetValOnStack(false);
+        
+        String methodName = null;
+        switch(op)
+        {
+          case LT:
+            methodName = "lessThan";
+            break;
+          case GT:
+            methodName = "greaterThan";
+            break;
+          case LE:
+            methodName = "lessThanOrEquals";
+            break;
+          case GE:
+            methodName = "greaterThanOrEquals";
+            break;
+          case EQ:
+            methodName = "equal";
+            break;
+          case NE:
+            methodName = "notEqual";
+            break;
+          default:
+            throw new ProgrammingErrorException("bad binary op: " + OscriptParser.getTokenString(op));
+        }
+        
+        il.append( new INVOKESTATIC( ctx.methodref( "oscript.compiler.Comparisons",
+                                                    methodName,
+                                                    "(Loscript/data/Value;Loscript/data/Value;)Z" ) ) );
+        bi = jumpIf ? (BranchInstruction)(new IFNE(null)) : new IFEQ(null);
+        il.append(bi);
+      }
+      branches.add(bi);
+      return;
+    }
+    
+    n.accept(this);
+    setRetValOnStack(false);
+    
+    il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
+                                                 "castToBooleanSoft",
+                                                 "()Z" ) ) );
+    
+    BranchInstruction bi = jumpIf ? (BranchInstruction)(new IFNE(null)) : new IFEQ(null);
+    il.append(bi);
+    branches.add(bi);
+  }
+  
+  /**
+   * Generate the branches for the condition <code>f0 &amp;&amp; f1...</code>
+   * or <code>f0 || f1...</code>.  The result is decided by the first
+   * operand that is false (for <code>&amp;&amp;</code>) or true (for
+   * <code>||</code>), in which case the remaining operands are not
+   * evaluated.
+   */
+  private void dumpLogicalCondition( Node f0, NodeListOptional f1, boolean isOr, boolean jumpIf, LinkedList branches )
+  {
+    // if the deciding value isn't the one we branch on, an operand that
+    // decides the result skips over the rest of the condition:
+    LinkedList skipList = (isOr == jumpIf) ? branches : new LinkedList();
+    
+    dumpCondition( f0, isOr, skipList );
+    
+    // the remaining operands are conditionally evaluated:
+    scope.enterConditional();
+    
+    for( int i=0; i<f1.size()-1; i++ )
+      dumpCondition( ((NodeSequence)(f1.elementAt(i))).elementAt(1), isOr, skipList );
+    
+    dumpCondition( ((NodeSequence)(f1.elementAt( f1.size()-1 ))).elementAt(1), jumpIf, branches );
+    
+    scope.leaveConditional();
+    
+    if( skipList != branches )
+      for( Iterator itr=skipList.iterator(); itr.hasNext(); )
+        il.setNextAsTarget( (BranchInstruction)(itr.next()) );
+  }
+  
+  /**
+   * Is the (unwrapped) expression a single comparison, other than
+   * <code>instanceof</code>?
+   */
+  private static boolean isComparison( Node n )
+  {
+    NodeListOptional f1;
+    if( n instanceof RelationalExpression )
+      f1 = ((RelationalExpression)n).f1;
+    else if( n instanceof EqualityExpression )
+      f1 = ((EqualityExpression)n).f1;
+    else
+      return false;
+    
+    if( f1.size() != 1 )
+      return false;
+    
+    int op = NumericLocals.operator( ((NodeSequence)(f1.elementAt(0))).elementAt(0) );
+    return (op == LT) || (op == GT) || (op == LE) || (op == GE) || (op == EQ) || (op == NE);
+  }
+  
+  /**
+   * If the left hand side of the assignment is a member kept in a local
+   * variable, generate the assignment with primitive instructions, or by
+   * storing to the local.
+   * 
+   * @param discard   <code>true</code> if the value of the expression isn't
+   *    used, in which case nothing is left on the stack
+   * @return <code>true</code> if code was generated for the expression
+   */
+  private boolean dumpNumericAssignment( AssignmentExpression n, boolean discard )
+  {
+    Member member = getNumericTarget( n.f0 );
+    if( member == null )
+      return false;
+    
+    NodeSequence seq = (NodeSequence)(n.f1.elementAt(0));
+    int  op   = NumericLocals.operator( seq.elementAt(0) );
+    Node rhs  = seq.elementAt(1);
+    int  type = member.getNumericType();
+    
+    if( type == NumericLocals.VALUE )
+    {
+      dumpValueAssignment( member, op, rhs, discard );
+      return true;
+    }
+    
+    if( op == ASSIGN )
+    {
+      dumpNumeric( rhs, type );
+    }
+    else
+    {
+      member.dumpNumericLoad();
+      dumpNumeric( rhs, type );
+      switch(op)
+      {
+        case PLUSASSIGN:
+          dumpArithmetic( PLUS, type );
+          break;
+        case MINUSASSIGN:
+          dumpArithmetic( MINUS, type );
+          break;
+        case STARASSIGN:
+          dumpArithmetic( STAR, type );
+          break;
+        case SLASHASSIGN:
+          dumpArithmetic( SLASH, type );
+          break;
+        default:
+          throw new ProgrammingErrorException("bad numeric assignment: " + OscriptParser.getTokenString(op));
+      }
+    }
+    
+    // the value of the assignment expression is the assigned value:
+    if(!discard)
+      il.append( InstructionConst.DUP2 );
+    member.dumpNumericStore();
+    if(!discard)
+    {
+      dumpBoxNumeric(type);
+      setRetValOnStack(true);
+    }
+    return true;
+  }
+  
+  /**
+   * Generate an assignment to a member kept in a <code>Value</code> local
+   * variable.  Since nothing else can have a reference to the member, the
+   * local is simply replaced with the new value, rather than calling
+   * <code>opAssign</code>.
+   */
+  private void dumpValueAssignment( Member member, int op, Node rhs, boolean discard )
+  {
+    if( op == ASSIGN )
+    {
+      dumpValue(rhs);
+    }
+    else
+    {
+      member.dumpNumericLoad();
+      rhs.accept(this);
+      setRetValOnStack(false);
+      switch(op)
+      {
+        case PLUSASSIGN:
+          dumpBinaryOp("bopPlus");
+          break;
+        case MINUSASSIGN:
+          dumpBinaryOp("bopMinus");
+          break;
+        case STARASSIGN:
+          dumpBinaryOp("bopMultiply");
+          break;
+        case SLASHASSIGN:
+          dumpBinaryOp("bopDivide");
           break;
-        case -1:
         default:
-          // leave as null
+          throw new ProgrammingErrorException("bad value assignment: " + OscriptParser.getTokenString(op));
       }
     }
     
-    if( n.cachedValue != null )
+    // the value of the assignment expression is the assigned value:
+    if(!discard)
+      il.append( InstructionConst.DUP );
+    member.dumpNumericStore();
+    if(!discard)
+      setRetValOnStack(true);
+  }
+  
+  /**
+   * Generate code to evaluate an expression to the value to store in a
+   * <code>Value</code> local variable.  Stack:
+   * <pre>
+   *   ... -&gt; ..., Value
+   * </pre>
+   */
+  private void dumpValue( Node n )
+  {
+    n.accept(this);
+    setRetValOnStack(false);
+    
+    // the local shouldn't alias the reference the expression evaluates to:
+    il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
+                                                 "unhand",
+                                                 "()Loscript/data/Value;" ) ) );
+  }
+  
+  /**
+   * If the operand of a "++" or "--" is a member kept in a primitive local
+   * variable, generate the increment with primitive instructions.
+   * 
+   * @param operand   the operand
+   * @param opNode    the operator choice
+   * @param prefix    <code>true</code> if the value of the expression is
+   *    the new value, <code>false</code> if it is the original value
+   * @param discard   <code>true</code> if the value of the expression isn't
+   *    used, in which case nothing is left on the stack
+   * @return <code>true</code> if code was generated for the expression
+   */
+  private boolean dumpNumericIncrement( Node operand, Node opNode, boolean prefix, boolean discard )
+  {
+    int op = NumericLocals.operator(opNode);
+    if( (op != INCR) && (op != DECR) )
+      return false;
+    
+    Member member = getNumericTarget(operand);
+    if( member == null )
+      return false;
+    
+    int     type   = member.getNumericType();
+    boolean isLong = (type == NumericLocals.LONG);
+    
+    if( type == NumericLocals.VALUE )
     {
-      getInstanceConstant( n.cachedValue );
+      member.dumpNumericLoad();
+      if( !prefix && !discard )
+        il.append( InstructionConst.DUP );
+      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
+                                                   (op == INCR) ? "uopIncrement" : "uopDecrement",
+                                                   "()Loscript/data/Value;" ) ) );
+      if( prefix && !discard )
+        il.append( InstructionConst.DUP );
+      member.dumpNumericStore();
+      if(!discard)
+        setRetValOnStack(true);
+      return true;
+    }
+    
+    member.dumpNumericLoad();
+    if( !prefix && !discard )
+      il.append( InstructionConst.DUP2 );
+    il.append( isLong ? InstructionConst.LCONST_1 : InstructionConst.DCONST_1 );
+    dumpArithmetic( (op == INCR) ? PLUS : MINUS, type );
+    if( prefix && !discard )
+      il.append( InstructionConst.DUP2 );
+    member.dumpNumericStore();
+    
+    if(!discard)
+    {
+      dumpBoxNumeric(type);
+      setRetValOnStack(true);
+    }
+    return true;
+  }
+  
+  /**
+   * Get the member that an expression which is assigned to refers to, if it
+   * is kept in a local variable.
+   */
+  private Member getNumericTarget( Node n )
+  {
+    n = NumericLocals.unwrap(n);
+    if( !(n instanceof IdentifierPrimaryPrefix) )
+      return null;
+    NodeToken id = ((IdentifierPrimaryPrefix)n).f0;
+    Member member = scope.getNumericMember(id);
+    if( member != null )
+      handle(id);
+    return member;
+  }
+
+  /**
+   * Generate the call to a binary operator method of {@link Value}.  Stack:
+   * <pre>
+   *   ..., val, arg -&gt; ..., result
+   * </pre>
+   * Unless disabled, the call goes through {@link OperatorSites}, which the
+   * {@link ClassFileUpgrader} turns into an <code>invokedynamic</code>.
+   * 
+   * @param methodName   the operator method, ie. <code>bopPlus</code>
+   */
+  private void dumpBinaryOp( String methodName )
+  {
+    if( OperatorSites.ENABLED && !methodName.equals("bopInstanceOf") )
+      il.append( new INVOKESTATIC( ctx.methodref( "oscript.compiler.OperatorSites",
+                                                  methodName,
+                                                  "(Loscript/data/Value;Loscript/data/Value;)Loscript/data/Value;" ) ) );
+    else
+      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
+                                                   methodName,
+                                                   "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
+  }
+  
+  /**
+   * Dump a call to one of the lookup methods of {@link Value}, with the
+   * object and the member id or index on the stack.  Goes through the
+   * inline cache of a {@link PropertySites} call site, unless disabled.
+   * Within a loop, a <code>getMember</code> instead re-uses the member
+   * found the last time around the loop, see {@link LoopInvariants}.
+   * 
+   * @param methodName   <code>getMember</code> or <code>elementAt</code>
+   * @param sig          the signature of the method of {@link Value}
+   */
+  private void dumpPropertyAccess( String methodName, String sig )
+  {
+    if( (loopDepth > 0) && LoopInvariants.ENABLED && methodName.equals("getMember") )
+    {
+      // the cache is allocated the first time it is needed:
+      LocalVariableGen lg = mg.addLocalVariable( CompilerContext.makeUniqueIdentifierName("cache"),
+                                                 new ArrayType( CompilerContext.VALUE_TYPE, 1 ),
+                                                 null,
+                                                 null );
+      int slot = lg.getIndex();
+      il.insert( new ASTORE(slot) );    // insert at head in reverse order
+      il.insert( InstructionConst.ACONST_NULL );
+      
+      il.append( new ALOAD(slot) );
+      il.append( InstructionConst.DUP );
+      BranchInstruction IFNONNULL = new IFNONNULL(null);
+      il.append(IFNONNULL);
+      il.append( InstructionConst.POP );
+      il.append( InstructionConst.ICONST_2 );
+      il.append( new ANEWARRAY( ctx.cp.addClass("oscript.data.Value") ) );
+      il.append( InstructionConst.DUP );
+      il.append( new ASTORE(slot) );
+      il.setNextAsTarget(IFNONNULL);
+      
+      il.append( new INVOKESTATIC( ctx.methodref( "oscript.compiler.LoopInvariants",
+                                                  "getMember",
+                                                  "(Loscript/data/Value;I[Loscript/data/Value;)Loscript/data/Value;" ) ) );
     }
+    else if( PropertySites.ENABLED )
+      il.append( new INVOKESTATIC( ctx.methodref( "oscript.compiler.PropertySites",
+                                                  methodName,
+                                                  "(Loscript/data/Value;" + sig.substring(1) ) ) );
+    else
+      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value", methodName, sig ) ) );
   }
   
   /**
@@ -407,8 +1348,16 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( ScopeBlock n )
   {
+    // if all the variables are kept in local variables, there is no need
+    // for a scope object, and if no function is given the scope, it can
+    // be re-used:
     if( n.hasVarInScope )
-      scope = new CompilerScope( this, scope, n.hasFxnInScope );    // push new scope
+    {
+      Declarations.Block block = declarations.getBlock(n);
+      scope = new CompilerScope( this, scope, n.hasFxnInScope && ((block == null) || block.isCaptured()),
+                                 !n.hasFxnInScope && numericLocals.isElided(n) );    // push new scope
+      scope.setBlock(block);
+    }
     n.f1.accept(this);
     if( n.hasVarInScope )
       scope = scope.pop();                                  // pop scope
@@ -435,6 +1384,20 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( ExpressionBlock n )
   {
+    // the value of the statement isn't used, so an assignment or "++" of a
+    // member kept in a local variable (ie. the update of a loop counter)
+    // doesn't need to box the new value:
+    Node e = NumericLocals.unwrap(n.f0);
+    if( (e instanceof AssignmentExpression) && (((AssignmentExpression)e).f1.size() == 1) &&
+        dumpNumericAssignment( (AssignmentExpression)e, true ) )
+      return;
+    if( (e instanceof UnaryExpression) && ((UnaryExpression)e).f0.present() &&
+        dumpNumericIncrement( ((UnaryExpression)e).f1, ((UnaryExpression)e).f0.node, true, true ) )
+      return;
+    if( (e instanceof PostfixExpression) && ((PostfixExpression)e).f1.present() &&
+        dumpNumericIncrement( ((PostfixExpression)e).f0, ((PostfixExpression)e).f1.node, false, true ) )
+      return;
+    
     n.f0.accept(this);
   }
   
@@ -565,6 +1528,30 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     // need to handle for special tokens, before n.f3
     int permissions = getPermissions( n.f0, Reference.ATTR_PROTECTED );
     
+    // a variable that is only ever a number of one type, and that nothing
+    // outside of this method can see, is kept in a primitive local, and
+    // any other variable that nothing outside of this method can see is
+    // kept in a Value local:
+    int numericType = numericLocals.getType(n.f2);
+    if( (numericType == NumericLocals.VALUE) && scope.isBlockScope() )
+    {
+      dumpValue( ((NodeSequence)(n.f3.node)).elementAt(1) );
+      scope.createNumericMember( n.f2, numericType ).dumpNumericStore();
+      return;
+    }
+    else if( (numericType != NumericLocals.NONE) && scope.isBlockScope() )
+    {
+      dumpNumeric( ((NodeSequence)(n.f3.node)).elementAt(1), numericType );
+      scope.createNumericMember( n.f2, numericType ).dumpNumericStore();
+      return;
+    }
+    
+    // the value of a const initialized with a compile-time constant can
+    // be propagated to where the const is used, see ConstantFolder:
+    Value constValue = null;
+    if( ((permissions & Reference.ATTR_CONST) != 0) && n.f3.present() )
+      constValue = ConstantFolder.fold( ((NodeSequence)(n.f3.node)).elementAt(1), scope );
+    
     // order is important here... have to evaluate f3 before createMember
     // because things like:
     // 
@@ -579,7 +1566,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     }
     
     // scope.createMember( memberName, Permissions_attr )
-    scope.createMember( n.f2, permissions );
+    scope.createMember( n.f2, permissions, constValue );
     
     if( n.f3.present() )
     {
@@ -675,27 +1662,30 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     
     LinkedList gotoList = new LinkedList();
     
-    final InstructionHandle[] finally_start = new InstructionHandle[1];  // array used to have ref to ref..
+    final TryContext tc = new TryContext();
     LoopStackNode.CleanupInstructionGenerator g = null;
     
     if( n.f4.present() )
     {
+      final Node finallyNode = ((NodeSequence)(n.f4.node)).elementAt(1);
+      final CompilerScope tryScope = scope;
+      final LoopStackNode tryLoopStack = loopStack;
+      final LinkedList tryCleanupList = loopStack.getCleanupInstructionGenerators();
+      
       g = new LoopStackNode.CleanupInstructionGenerator() {
-        public void generate( final CompilerInstructionList il )
+        public void generate( CompilerInstructionList il )
         {
-          final BranchInstruction JSR = new JSR(null);
-          il.append(JSR);
-          
-          defer( new Runnable() {
-            public void run() {
-              JSR.setTarget( finally_start[0] );
-            }
-          } );
+          dumpFinallyCopy( finallyNode, tc, tryScope, tryLoopStack, tryCleanupList );
         }
       };
       loopStack.addCleanupInstructionGenerator(g);
     }
     
+    tryStack.addFirst(tc);
+    
+    // the handler for <any> may be entered before anything in the "try"
+    // has run:
+    Hashtable tryStartState = n.f4.present() ? scope.saveMemberState() : null;
     
     InstructionHandle try_start = il.append( InstructionConst.NOP );
     n.f1.accept(this);
@@ -800,20 +1790,27 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
       il.append( InstructionConst.ATHROW );
     }
     
+    tryStack.removeFirst();
+    
     if( (n.f2.size() > 0) || n.f3.present() )
-      mg.addExceptionHandler( try_start, try_end, handler_start, CompilerContext.EXCEPTION_TYPE );
+      addExceptionHandler( tc, try_start, try_end, handler_start, CompilerContext.EXCEPTION_TYPE );
     
     for( Iterator itr=gotoList.iterator(); itr.hasNext(); )
       il.setNextAsTarget( (BranchInstruction)(itr.next()) );
     
     if( n.f4.present() )
     {
-      BranchInstruction REG_JSR  = new JSR(null);
-      BranchInstruction GOTO_END = new GOTO(null);
+      Node finallyNode = ((NodeSequence)(n.f4.node)).elementAt(1);
+      
+      loopStack.removeCleanupInstructionGenerator(g);
+      
+      // normal completion of "try" or "catch", which is the target of the
+      // gotos above, falls through a copy of the "finally":
+      InstructionHandle any_exception_end = il.append( InstructionConst.NOP );
+      finallyNode.accept(this);
       
-      InstructionHandle any_exception_end = il.append(REG_JSR);   // target of "try" and "catch" gotos
+      BranchInstruction GOTO_END = new GOTO(null);
       il.append(GOTO_END);                                        // normal execution skips exception handling glue
-      InstructionHandle any_handler_start = il.append( InstructionConst.NOP );  // begin handler for <any>
       
       // we need to store the exception value:
       int exceptionSlot = mg.addLocalVariable( 
@@ -823,32 +1820,16 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
         null                   // XXX end
       ).getIndex();
       
-      BranchInstruction ANY_EXCEPTION_JSR = new JSR(null);
-      
-      il.append( new ASTORE(exceptionSlot) );
-      il.append(ANY_EXCEPTION_JSR);
+      // begin handler for <any>, which rethrows after another copy of the "finally":
+      Hashtable normalState = scope.saveMemberState();
+      scope.restoreMemberState(tryStartState);
+      InstructionHandle any_handler_start = il.append( new ASTORE(exceptionSlot) );
+      finallyNode.accept(this);
       il.append( new ALOAD(exceptionSlot) );
       il.append( InstructionConst.ATHROW );
+      scope.restoreMemberState(normalState);
       
-      
-      il.setNextAsTarget(REG_JSR);
-      il.setNextAsTarget(ANY_EXCEPTION_JSR);
-      
-      int retAddrSlot = mg.addLocalVariable(
-        CompilerContext.makeUniqueIdentifierName("retaddr"),
-        org.apache.bcel.generic.Type.OBJECT,
-        null,                  // XXX start
-        null                   // XXX end
-      ).getIndex();
-      
-      loopStack.removeCleanupInstructionGenerator(g);
-      finally_start[0] = il.append( new ASTORE(retAddrSlot) );
-      
-      ((NodeSequence)(n.f4.node)).elementAt(1).accept(this);
-      
-      il.append( new RET(retAddrSlot) );
-      
-      mg.addExceptionHandler( try_start, any_exception_end, any_handler_start, CompilerContext.ANY_EXCEPTION_TYPE );
+      addExceptionHandler( tc, try_start, any_exception_end, any_handler_start, CompilerContext.ANY_EXCEPTION_TYPE );
       
       il.setNextAsTarget(GOTO_END);
     }
@@ -856,6 +1837,96 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     scope.leaveConditional();
   }
   
+  /**
+   * The <code>try</code> statements whose protected region is currently
+   * being compiled, innermost first.
+   */
+  private LinkedList tryStack = new LinkedList();
+  
+  /**
+   * Tracks the inlined copies of "finally" blocks within the protected
+   * region of a <code>try</code> statement.  Those copies are generated at
+   * a "return", "break" or "continue" that jumps out of the <code>try</code>,
+   * and an exception thrown from the copy must not be handled by the
+   * <code>try</code> statement (or any <code>try</code> nested within it),
+   * so they are left as gaps in the exception handler ranges.
+   */
+  private static class TryContext
+  {
+    /**
+     * Maps the NOP marking the start of each gap to the NOP marking its end.
+     */
+    final java.util.HashMap gapTable = new java.util.HashMap();
+  }
+  
+  /**
+   * Generate a copy of a "finally" block at a jump out of its
+   * <code>try</code> statement.  The copy is compiled in the scope and with
+   * the cleanup generators that were in effect when the <code>try</code>
+   * statement was entered, so a jump within the "finally" itself doesn't
+   * cause it to be generated again.  Since the code after the jump site
+   * doesn't run the copy, the state of the members looked up in the copy
+   * is restored afterwards.
+   */
+  private void dumpFinallyCopy( Node finallyNode, TryContext tc, CompilerScope tryScope,
+                                LoopStackNode tryLoopStack, LinkedList tryCleanupList )
+  {
+    boolean savedRetValOnStack = retValOnStack;
+    CompilerScope savedScope = scope;
+    LoopStackNode savedLoopStack = loopStack;
+    LinkedList savedCleanupList = tryLoopStack.setCleanupInstructionGenerators( new LinkedList(tryCleanupList) );
+    
+    retValOnStack = false;
+    scope = tryScope;
+    loopStack = tryLoopStack;
+    
+    Hashtable memberState = tryScope.saveMemberState();
+    
+    InstructionHandle gapStart = il.append( InstructionConst.NOP );
+    finallyNode.accept(this);
+    InstructionHandle gapEnd = il.append( InstructionConst.NOP );
+    
+    checkRetValOnStack(false);
+    
+    tryScope.restoreMemberState(memberState);
+    
+    tryLoopStack.setCleanupInstructionGenerators(savedCleanupList);
+    loopStack = savedLoopStack;
+    scope = savedScope;
+    retValOnStack = savedRetValOnStack;
+    
+    // the gap applies to tc, and the try statements nested within it that
+    // this jump also exits:
+    for( Iterator itr=tryStack.iterator(); itr.hasNext(); )
+    {
+      TryContext t = (TryContext)(itr.next());
+      t.gapTable.put( gapStart, gapEnd );
+      if( t == tc )
+        break;
+    }
+  }
+  
+  /**
+   * Add an exception handler covering <code>start</code> thru <code>end</code>,
+   * except for the gaps recorded in <code>tc</code>.
+   */
+  private void addExceptionHandler( TryContext tc, InstructionHandle start, InstructionHandle end,
+                                    InstructionHandle handler, ObjectType type )
+  {
+    InstructionHandle segmentStart = start;
+    for( InstructionHandle ih = start; ih != end; ih = ih.getNext() )
+    {
+      InstructionHandle gapEnd = (InstructionHandle)(tc.gapTable.get(ih));
+      if( gapEnd != null )
+      {
+        if( segmentStart != ih )
+          mg.addExceptionHandler( segmentStart, ih, handler, type );
+        segmentStart = ih = gapEnd;
+      }
+    }
+    mg.addExceptionHandler( segmentStart, end, handler, type );
+  }
+  
   // XXX move this:
   private static final BranchInstruction addToBranchInstructionList( LinkedList list, BranchInstruction bi )
   {
@@ -925,18 +1996,12 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
   {
     handle(n.f0);
     
-    BranchInstruction IFEQ = new IFEQ(null);
+    LinkedList exitList = new LinkedList();
     BranchInstruction GOTO = new GOTO(null);
     
     il.setNextAsTarget(GOTO);
-    n.f2.accept(this);
-    setRetValOnStack(false);
-    
-    il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                 "castToBooleanSoft",
-                                                 "()Z" ) ) );
-    
-    il.append(IFEQ);
+    loopDepth++;
+    dumpCondition( n.f2, false, exitList );
     
     // push a new LoopStackNode:
     loopStack = new LoopStackNode(loopStack);
@@ -944,10 +2009,12 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     scope.enterConditional();
     n.f4.accept(this);
     scope.leaveConditional();
+    loopDepth--;
     
     il.append(GOTO);
     
-    il.setNextAsTarget(IFEQ);
+    for( Iterator itr=exitList.iterator(); itr.hasNext(); )
+      il.setNextAsTarget( (BranchInstruction)(itr.next()) );
     
     for( Iterator itr=loopStack.getContinueInstructions().iterator(); itr.hasNext(); )
       ((BranchInstruction)(itr.next())).setTarget( GOTO.getTarget() );
@@ -974,15 +2041,8 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
   {
     handle(n.f0);
     
-    n.f2.accept(this);
-    setRetValOnStack(false);
-    
-    il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                 "castToBooleanSoft",
-                                                 "()Z" ) ) );
-    
-    BranchInstruction IFEQ = new IFEQ(null);
-    il.append(IFEQ);
+    LinkedList elseList = new LinkedList();
+    dumpCondition( n.f2, false, elseList );
     
     scope.enterConditional();
     n.f4.accept(this);
@@ -992,14 +2052,16 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
       BranchInstruction GOTO = new GOTO(null);
       il.append(GOTO);
       
-      il.setNextAsTarget(IFEQ);
+      for( Iterator itr=elseList.iterator(); itr.hasNext(); )
+        il.setNextAsTarget( (BranchInstruction)(itr.next()) );
       ((NodeSequence)(n.f5.node)).elementAt(1).accept(this);
       
       il.setNextAsTarget(GOTO);
     }
     else
     {
-      il.setNextAsTarget(IFEQ);
+      for( Iterator itr=elseList.iterator(); itr.hasNext(); )
+        il.setNextAsTarget( (BranchInstruction)(itr.next()) );
     }
     
     scope.leaveConditional();
@@ -1314,6 +2376,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( AssignmentExpression n )
   {
+    if( (n.f1.size() == 1) && dumpNumericAssignment( n, false ) )
+      return;
+    
     // the tricky part here is that things need to be evaluated backwards:
     int lastOp = -1;
     
@@ -1391,10 +2456,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
           il.append( InstructionConst.SWAP );
           
           // stack: ..., val, val, lastVal => ..., val, lastVal
-          il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-            methodName,
-            "(Loscript/data/Value;)Loscript/data/Value;"
-          ) ) );
+          dumpBinaryOp(methodName);
         }
         else
         {
@@ -1426,28 +2488,28 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( ConditionalExpression n )
   {
-    n.f0.accept(this);
+    if( n.f1.present() && foldConstant(n) )
+      return;
     
-    if( n.f1.present() )
+    if( !n.f1.present() )
     {
-      setRetValOnStack(false);
-      
-      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                   "castToBooleanSoft",
-                                                   "()Z" ) ) );
+      n.f0.accept(this);
+    }
+    else
+    {
+      LinkedList elseList = new LinkedList();
+      dumpCondition( n.f0, false, elseList );
       
       scope.enterConditional();
       
-      BranchInstruction IFEQ = new IFEQ(null);
-      il.append(IFEQ);
-      
       ((NodeSequence)(n.f1.node)).elementAt(1).accept(this);
       setRetValOnStack(false);
       
       BranchInstruction GOTO = new GOTO(null);
       il.append(GOTO);
       
-      il.setNextAsTarget(IFEQ);
+      for( Iterator itr=elseList.iterator(); itr.hasNext(); )
+        il.setNextAsTarget( (BranchInstruction)(itr.next()) );
       
       ((NodeSequence)(n.f1.node)).elementAt(3).accept(this);
       
@@ -1466,6 +2528,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( LogicalOrExpression n )
   {
+    if( (n.f1.size() > 0) && foldConstant(n) )
+      return;
+    
     n.f0.accept(this);
     
     if( n.f1.present() )
@@ -1510,6 +2575,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( LogicalAndExpression n )
   {
+    if( (n.f1.size() > 0) && foldConstant(n) )
+      return;
+    
     n.f0.accept(this);
     
     if( n.f1.present() )
@@ -1554,6 +2622,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( BitwiseOrExpression n )
   {
+    if( (n.f1.size() > 0) && foldConstant(n) )
+      return;
+    
     n.f0.accept(this);
     
     for( int i=0; i<n.f1.size(); i++ )
@@ -1563,9 +2634,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
       ((NodeSequence)(n.f1.elementAt(i))).elementAt(1).accept(this);
       checkRetValOnStack(true);
       
-      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                   "bopBitwiseOr",
-                                                   "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
+      dumpBinaryOp("bopBitwiseOr");
     }
   }
   
@@ -1578,6 +2647,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( BitwiseXorExpression n )
   {
+    if( (n.f1.size() > 0) && foldConstant(n) )
+      return;
+    
     n.f0.accept(this);
     
     for( int i=0; i<n.f1.size(); i++ )
@@ -1587,9 +2659,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
       ((NodeSequence)(n.f1.elementAt(i))).elementAt(1).accept(this);
       checkRetValOnStack(true);
       
-      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                   "bopBitwiseXor",
-                                                   "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
+      dumpBinaryOp("bopBitwiseXor");
     }
   }
 
@@ -1602,6 +2672,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( BitwiseAndExpression n )
   {
+    if( (n.f1.size() > 0) && foldConstant(n) )
+      return;
+    
     n.f0.accept(this);
     
     for( int i=0; i<n.f1.size(); i++ )
@@ -1611,9 +2684,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
       ((NodeSequence)(n.f1.elementAt(i))).elementAt(1).accept(this);
       checkRetValOnStack(true);
       
-      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                   "bopBitwiseAnd",
-                                                   "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
+      dumpBinaryOp("bopBitwiseAnd");
     }
   }
 
@@ -1626,6 +2697,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( EqualityExpression n )
   {
+    if( (n.f1.size() > 0) && (foldConstant(n) || dumpNumericComparison( n.f0, n.f1 )) )
+      return;
+    
     n.f0.accept(this);
     
     for( int i=0; i<n.f1.size(); i++ )
@@ -1666,6 +2740,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( RelationalExpression n )
   {
+    if( (n.f1.size() > 0) && (foldConstant(n) || dumpNumericComparison( n.f0, n.f1 )) )
+      return;
+    
     n.f0.accept(this);
     
     for( int i=0; i<n.f1.size(); i++ )
@@ -1700,9 +2777,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
           throw new ProgrammingErrorException("bad binary op: " + OscriptParser.getTokenString(op.kind));
       }
       
-      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                   methodName,
-                                                   "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
+      dumpBinaryOp(methodName);
     }
   }
   
@@ -1715,6 +2790,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( ShiftExpression n )
   {
+    if( (n.f1.size() > 0) && foldConstant(n) )
+      return;
+    
     n.f0.accept(this);
     
     for( int i=0; i<n.f1.size(); i++ )
@@ -1743,9 +2821,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
           throw new ProgrammingErrorException("bad binary op: " + OscriptParser.getTokenString(op.kind));
       }
       
-      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                   methodName,
-                                                   "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
+      dumpBinaryOp(methodName);
     }
   }
   
@@ -1758,6 +2834,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( AdditiveExpression n )
   {
+    if( (n.f1.size() > 0) && (foldConstant(n) || dumpNumericExpression(n)) )
+      return;
+    
     n.f0.accept(this);
     
     for( int i=0; i<n.f1.size(); i++ )
@@ -1783,9 +2862,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
           throw new ProgrammingErrorException("bad binary op: " + OscriptParser.getTokenString(op.kind));
       }
       
-      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                   methodName,
-                                                   "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
+      dumpBinaryOp(methodName);
     }
   }
 
@@ -1798,6 +2875,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( MultiplicativeExpression n )
   {
+    if( (n.f1.size() > 0) && (foldConstant(n) || dumpNumericExpression(n)) )
+      return;
+    
     n.f0.accept(this);
     
     for( int i=0; i<n.f1.size(); i++ )
@@ -1826,9 +2906,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
           throw new ProgrammingErrorException("bad binary op: " + OscriptParser.getTokenString(op.kind));
       }
       
-      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                   methodName,
-                                                   "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
+      dumpBinaryOp(methodName);
     }
   }
   
@@ -1841,6 +2919,10 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( UnaryExpression n )
   {
+    if( n.f0.present() && (foldConstant(n) || dumpNumericExpression(n) ||
+                           dumpNumericIncrement( n.f1, n.f0.node, true, false )) )
+      return;
+    
     n.f1.accept(this);
     
     if( n.f0.present() )
@@ -1905,6 +2987,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
    */
   public void visit( PostfixExpression n )
   {
+    if( n.f1.present() && dumpNumericIncrement( n.f0, n.f1.node, false, false ) )
+      return;
+    
     n.f0.accept(this);
     
     if( n.f1.present() )
@@ -2174,7 +3259,19 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
   public void visit( CalleePrimaryPrefix n )
   {
     handle(n.f0);
-    
+    dumpCallee();
+    setRetValOnStack(true);
+  }
+  
+  /**
+   * Push the function being called, which is looked up once at the head of
+   * the method.  Stack:
+   * <pre>
+   *   ... -&gt; ..., Value
+   * </pre>
+   */
+  void dumpCallee()
+  {
     if( calleeSlot == -1 )
     {
       LocalVariableGen lg = 
@@ -2190,7 +3287,6 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     }
     
     il.append( new ALOAD(calleeSlot) );
-    setRetValOnStack(true);
   }
   
   private int calleeSlot = -1;
@@ -2236,10 +3332,14 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
   public void visit( FunctionPrimaryPrefix n )
   {
     handle(n.f0);
+    
+    // the function is only given the scopes it could find a variable in:
+    CompilerScope closureScope = scope.getClosureScope( Declarations.getFreeNames(n) );
+    
     // new Function( scope, superFxn, n.fd )
     il.append( new NEW( ctx.cp.addClass("oscript.data.Function") ) );
     il.append( InstructionConst.DUP );
-    il.append( new ALOAD(scope.getSlot()) );           // scope
+    il.append( new ALOAD(closureScope.getSlot()) );    // scope
     
     if( n.f4.present() )
     {
@@ -2289,7 +3389,12 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
           (new CompilerVisitor( ctx, name + "$extends", fcel )).innerNodeIdx;
       }
       
-      int fxnIdx = (new CompilerVisitor( ctx, name, n.f6, argIds )).innerNodeIdx;
+      // a function that extends another, or has static members, may not
+      // see its enclosing scope directly, so don't resolve its variables
+      // at compile time:
+      CompilerScope enclosing = (n.f4.present() || (n.f6.staticNodes != null)) ? null : closureScope;
+      
+      int fxnIdx = (new CompilerVisitor( ctx, name, n.f6, argIds, enclosing )).innerNodeIdx;
       int staticIdx = -1;
       if( n.f6.staticNodes != null )
         staticIdx = (new CompilerVisitor( ctx, name + "$static", n.f6.staticNodes )).innerNodeIdx;
@@ -2391,6 +3496,9 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     
     il.append( InstructionConst.ALOAD_1 );         // sf
     
+    if( FunctionCallSites.ENABLED && dumpDirectCall(n.f0) )
+      return;
+    
     allocateMemberTable_allocateFromStack = true;
     n.f0.accept(this);
     boolean sfIsNull = FunctionCallExpressionList_sfIsNull;
@@ -2401,11 +3509,18 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
       il.append( InstructionConst.DUP_X2 );
     
     // call: ..., [mt,] val, sf, mt => ..., mt, rval
-    il.append( new INVOKEVIRTUAL( ctx.methodref( 
-      "oscript.data.Value",
-      "callAsFunction",
-      "(Loscript/util/StackFrame;Loscript/util/MemberTable;)Loscript/data/Value;"
-    ) ) );
+    if( FunctionCallSites.ENABLED )
+      il.append( new INVOKESTATIC( ctx.methodref( 
+        "oscript.compiler.FunctionCallSites",
+        "callAsFunction",
+        "(Loscript/data/Value;Loscript/util/StackFrame;Loscript/util/MemberTable;)Loscript/data/Value;"
+      ) ) );
+    else
+      il.append( new INVOKEVIRTUAL( ctx.methodref( 
+        "oscript.data.Value",
+        "callAsFunction",
+        "(Loscript/util/StackFrame;Loscript/util/MemberTable;)Loscript/data/Value;"
+      ) ) );
     
     if(!sfIsNull)
     {
@@ -2421,6 +3536,52 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     }
   }
   
+  /**
+   * Dump a call passing the args directly, rather than in a member-table,
+   * if there are no more than {@link FunctionCallSites#MAX_ARITY} args.
+   * 
+   * <pre>
+   *   ..., val, sf => ..., rval
+   * </pre>
+   * 
+   * @return <code>false</code> if nothing was dumped, because there are
+   *    too many args
+   */
+  private boolean dumpDirectCall( FunctionCallExpressionList n )
+  {
+    LinkedList args = new LinkedList();
+    if( n.f1.present() )
+    {
+      FunctionCallExpressionListBody body = (FunctionCallExpressionListBody)(n.f1.node);
+      args.add( body.f0 );
+      for( int i=0; i<body.f1.size(); i++ )
+        args.add( ((NodeSequence)(body.f1.elementAt(i))).elementAt(1) );
+    }
+    
+    if( args.size() > FunctionCallSites.MAX_ARITY )
+      return false;
+    
+    n.f0.accept(this);                  // to record last NodeToken
+    
+    StringBuffer sig = new StringBuffer("(Loscript/data/Value;Loscript/util/StackFrame;");
+    for( Iterator itr=args.iterator(); itr.hasNext(); )
+    {
+      ((Node)(itr.next())).accept(this);
+      setRetValOnStack(false);
+      sig.append("Loscript/data/Value;");
+    }
+    sig.append(")Loscript/data/Value;");
+    
+    il.append( new INVOKESTATIC( ctx.methodref(
+      "oscript.compiler.FunctionCallSites",
+      "callAsFunction" + args.size(),
+      sig.toString()
+    ) ) );
+    
+    setRetValOnStack(true);
+    return true;
+  }
+  
   /*=======================================================================*/
   /**
    * <PRE>
@@ -2450,9 +3611,15 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     else
     {
       checkRetValOnStack(true);
-      il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
-                                                   "elementAt",
-                                                   "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
+      
+      // a constant subscript, ie. obj["name"], is a property access:
+      Node idx = NumericLocals.unwrap(n.f1);
+      if( (idx instanceof NodeToken) && (((NodeToken)idx).kind == STRING_LITERAL) )
+        dumpPropertyAccess( "elementAt", "(Loscript/data/Value;)Loscript/data/Value;" );
+      else
+        il.append( new INVOKEVIRTUAL( ctx.methodref( "oscript.data.Value",
+                                                     "elementAt",
+                                                     "(Loscript/data/Value;)Loscript/data/Value;" ) ) );
     }
   }
   
@@ -2470,11 +3637,7 @@ public class CompilerVisitor implements oscript.visitor.Visitor, oscript.parser.
     n.f1.accept(this);
     checkRetValOnStack(true);
     
-    il.append( new INVOKEVIRTUAL( ctx.methodref(
-      "oscript.data.Value",
-      "getMember",
-      "(I)Loscript/data/Value;"
-    ) ) );
+    dumpPropertyAccess( "getMember", "(I)Loscript/data/Value;" );
   }
   
   /*=======================================================================*/
@@ -0,0 +1,298 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.syntaxtree.*;
+import oscript.data.*;
+import oscript.parser.OscriptParserConstants;
+
+
+/**
+ * Evaluates expressions whose value is known at compile time.  An
+ * expression is constant if it is built from number, string and boolean
+ * literals, <code>const</code> variables initialized with a constant (see
+ * {@link CompilerScope#getConstantValue}), parentheses, and the unary and
+ * binary operators other than assignment, increment/decrement and
+ * <code>instanceof</code>.
+ * <p>
+ * The operators are evaluated by calling the same <code>bop</code>/<code>uop</code>
+ * methods that the generated code would call at runtime, so the result is
+ * the same.  If an operator throws (ie. integer divide by zero), the
+ * expression is not folded, so the error still happens at runtime.
+ * <p>
+ * The visitor calls this for each operator expression, see
+ * {@link CompilerVisitor#foldConstant}, and pushes a folded value with
+ * {@link CompilerContext#pushInstanceConstant}.
+ */
+final class ConstantFolder implements OscriptParserConstants
+{
+  private ConstantFolder() {}
+  
+  /**
+   * Fold an expression.
+   * 
+   * @param n        the expression
+   * @param scope    the scope the expression is compiled in
+   * @return the value of the expression, or <code>null</code> if it is
+   *    not a compile-time constant
+   */
+  static Value fold( Node n, CompilerScope scope )
+  {
+    try
+    {
+      Value val = foldImpl( n, scope );
+      return isFoldable(val) ? val : null;
+    }
+    catch(RuntimeException e)
+    {
+      // includes script exceptions thrown by the operators:
+      return null;
+    }
+  }
+  
+  /**
+   * Only values which are immutable, and which the constant table knows
+   * how to create, are folded.
+   */
+  private static boolean isFoldable( Value val )
+  {
+    if( val == null )
+      return false;
+    Class c = val.getClass();
+    return (c == OExactNumber.class) || (c == OInexactNumber.class) ||
+      (c == OString.class) || (val == OBoolean.TRUE) || (val == OBoolean.FALSE);
+  }
+  
+  private static Value normalize( Value val )
+  {
+    if( (val instanceof OBoolean) && (val != OBoolean.TRUE) && (val != OBoolean.FALSE) )
+      return val.castToBoolean() ? OBoolean.TRUE : OBoolean.FALSE;
+    return isFoldable(val) ? val : null;
+  }
+  
+  private static Value foldImpl( Node n, CompilerScope scope )
+  {
+    if( n instanceof NodeChoice )
+      return foldImpl( ((NodeChoice)n).choice, scope );
+    
+    if( n instanceof NodeToken )
+    {
+      NodeToken t = (NodeToken)n;
+      if( t.kind == IDENTIFIER )
+        return null;
+      return normalize( CompilerVisitor.getLiteralValue(t) );
+    }
+    
+    if( n instanceof Expression )
+    {
+      Expression e = (Expression)n;
+      return (e.f1.size() == 0) ? foldImpl( e.f0, scope ) : null;
+    }
+    
+    if( n instanceof AssignmentExpression )
+    {
+      AssignmentExpression e = (AssignmentExpression)n;
+      return (e.f1.size() == 0) ? foldImpl( e.f0, scope ) : null;
+    }
+    
+    if( n instanceof ConditionalExpression )
+    {
+      ConditionalExpression e = (ConditionalExpression)n;
+      Value val = foldImpl( e.f0, scope );
+      if( (val == null) || !e.f1.present() )
+        return val;
+      NodeSequence seq = (NodeSequence)(e.f1.node);
+      return foldImpl( seq.elementAt( val.castToBooleanSoft() ? 1 : 3 ), scope );
+    }
+    
+    if( n instanceof LogicalOrExpression )
+    {
+      // like the generated code, the result is the first operand that is
+      // true, and the remaining operands are not evaluated:
+      LogicalOrExpression e = (LogicalOrExpression)n;
+      Value val = foldImpl( e.f0, scope );
+      for( int i=0; (val != null) && !val.castToBooleanSoft() && (i < e.f1.size()); i++ )
+        val = foldImpl( operand( e.f1, i ), scope );
+      return val;
+    }
+    
+    if( n instanceof LogicalAndExpression )
+    {
+      LogicalAndExpression e = (LogicalAndExpression)n;
+      Value val = foldImpl( e.f0, scope );
+      for( int i=0; (val != null) && val.castToBooleanSoft() && (i < e.f1.size()); i++ )
+        val = foldImpl( operand( e.f1, i ), scope );
+      return val;
+    }
+    
+    if( n instanceof BitwiseOrExpression )
+    {
+      BitwiseOrExpression e = (BitwiseOrExpression)n;
+      Value val = foldImpl( e.f0, scope );
+      for( int i=0; (val != null) && (i < e.f1.size()); i++ )
+      {
+        Value arg = foldImpl( operand( e.f1, i ), scope );
+        val = (arg == null) ? null : normalize( val.bopBitwiseOr(arg) );
+      }
+      return val;
+    }
+    
+    if( n instanceof BitwiseXorExpression )
+    {
+      BitwiseXorExpression e = (BitwiseXorExpression)n;
+      Value val = foldImpl( e.f0, scope );
+      for( int i=0; (val != null) && (i < e.f1.size()); i++ )
+      {
+        Value arg = foldImpl( operand( e.f1, i ), scope );
+        val = (arg == null) ? null : normalize( val.bopBitwiseXor(arg) );
+      }
+      return val;
+    }
+    
+    if( n instanceof BitwiseAndExpression )
+    {
+      BitwiseAndExpression e = (BitwiseAndExpression)n;
+      Value val = foldImpl( e.f0, scope );
+      for( int i=0; (val != null) && (i < e.f1.size()); i++ )
+      {
+        Value arg = foldImpl( operand( e.f1, i ), scope );
+        val = (arg == null) ? null : normalize( val.bopBitwiseAnd(arg) );
+      }
+      return val;
+    }
+    
+    if( n instanceof EqualityExpression )
+      return foldChain( ((EqualityExpression)n).f0, ((EqualityExpression)n).f1, scope );
+    
+    if( n instanceof RelationalExpression )
+      return foldChain( ((RelationalExpression)n).f0, ((RelationalExpression)n).f1, scope );
+    
+    if( n instanceof ShiftExpression )
+      return foldChain( ((ShiftExpression)n).f0, ((ShiftExpression)n).f1, scope );
+    
+    if( n instanceof AdditiveExpression )
+      return foldChain( ((AdditiveExpression)n).f0, ((AdditiveExpression)n).f1, scope );
+    
+    if( n instanceof MultiplicativeExpression )
+      return foldChain( ((MultiplicativeExpression)n).f0, ((MultiplicativeExpression)n).f1, scope );
+    
+    if( n instanceof UnaryExpression )
+    {
+      UnaryExpression e = (UnaryExpression)n;
+      Value val = foldImpl( e.f1, scope );
+      if( (val == null) || !e.f0.present() )
+        return val;
+      switch( ((NodeToken)(((NodeChoice)(e.f0.node)).choice)).kind )
+      {
+        case PLUS:
+          return normalize( val.uopPlus() );
+        case MINUS:
+          return normalize( val.uopMinus() );
+        case TILDE:
+          return normalize( val.uopBitwiseNot() );
+        case BANG:
+          return normalize( val.uopLogicalNot() );
+        default:
+          // ++ and -- assign to their operand
+          return null;
+      }
+    }
+    
+    if( n instanceof PostfixExpression )
+    {
+      PostfixExpression e = (PostfixExpression)n;
+      return e.f1.present() ? null : foldImpl( e.f0, scope );
+    }
+    
+    if( n instanceof TypeExpression )
+      return foldImpl( ((TypeExpression)n).f0, scope );
+    
+    if( n instanceof PrimaryExpression )
+    {
+      PrimaryExpression e = (PrimaryExpression)n;
+      return (e.f1.size() == 0) ? foldImpl( e.f0, scope ) : null;
+    }
+    
+    if( n instanceof PrimaryPrefix )
+      return foldImpl( ((PrimaryPrefix)n).f0, scope );
+    
+    if( n instanceof PrimaryPrefixNotFunction )
+      return foldImpl( ((PrimaryPrefixNotFunction)n).f0, scope );
+    
+    if( n instanceof ParenPrimaryPrefix )
+      return foldImpl( ((ParenPrimaryPrefix)n).f1, scope );
+    
+    if( n instanceof Literal )
+      return foldImpl( ((Literal)n).f0, scope );
+    
+    if( n instanceof IdentifierPrimaryPrefix )
+      return (scope != null) ? scope.getConstantValue( ((IdentifierPrimaryPrefix)n).f0 ) : null;
+    
+    return null;
+  }
+  
+  /**
+   * The operand of the <code>i</code>th element of a
+   * <code>( op operand )*</code> list.
+   */
+  private static Node operand( NodeListOptional list, int i )
+  {
+    return ((NodeSequence)(list.elementAt(i))).elementAt(1);
+  }
+  
+  /**
+   * Fold a <code>f0 ( ( op1 | op2 ... ) operand )*</code> chain.
+   */
+  private static Value foldChain( Node f0, NodeListOptional f1, CompilerScope scope )
+  {
+    Value val = foldImpl( f0, scope );
+    for( int i=0; (val != null) && (i < f1.size()); i++ )
+    {
+      NodeSequence seq = (NodeSequence)(f1.elementAt(i));
+      NodeToken    op  = (NodeToken)(((NodeChoice)(seq.elementAt(0))).choice);
+      val = bop( val, op.kind, foldImpl( seq.elementAt(1), scope ) );
+    }
+    return val;
+  }
+  
+  private static Value bop( Value val, int op, Value arg )
+  {
+    if( arg == null )
+      return null;
+    
+    switch(op)
+    {
+      case EQ:              return normalize( val.bopEquals(arg) );
+      case NE:              return normalize( val.bopNotEquals(arg) );
+      case LT:              return normalize( val.bopLessThan(arg) );
+      case GT:              return normalize( val.bopGreaterThan(arg) );
+      case LE:              return normalize( val.bopLessThanOrEquals(arg) );
+      case GE:              return normalize( val.bopGreaterThanOrEquals(arg) );
+      case LSHIFT:          return normalize( val.bopLeftShift(arg) );
+      case RSIGNEDSHIFT:    return normalize( val.bopSignedRightShift(arg) );
+      case RUNSIGNEDSHIFT:  return normalize( val.bopUnsignedRightShift(arg) );
+      case PLUS:            return normalize( val.bopPlus(arg) );
+      case MINUS:           return normalize( val.bopMinus(arg) );
+      case STAR:            return normalize( val.bopMultiply(arg) );
+      case SLASH:           return normalize( val.bopDivide(arg) );
+      case REM:             return normalize( val.bopRemainder(arg) );
+      default:
+        // instanceof
+        return null;
+    }
+  }
+}
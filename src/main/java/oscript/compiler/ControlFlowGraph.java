@@ -0,0 +1,345 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import org.apache.bcel.generic.*;
+
+import java.util.*;
+
+
+/**
+ * The control flow graph of a method generated by a {@link CompilerVisitor},
+ * which is what the peephole passes work on, see {@link PassManager}.
+ * The graph is a view of the method's instruction list, split into basic
+ * blocks: a block starts at the first instruction, a branch target, an
+ * exception handler, or the start or end of a range protected by an
+ * exception handler, and ends with a branch, return or throw, or before
+ * the start of the next block.  So all the instructions of a block are
+ * protected by the same exception handlers.
+ * <p>
+ * A pass changes the instruction list, not the graph, so the graph has to
+ * be built again after a pass that changes the method.
+ */
+final class ControlFlowGraph
+{
+  private final MethodGen mg;
+  private final InstructionList il;
+  private final Block[] blocks;
+
+  /**
+   * A basic block.
+   */
+  static final class Block
+  {
+    private final int index;
+    private final InstructionHandle start;
+    private InstructionHandle end;
+    private final LinkedList successors   = new LinkedList();
+    private final LinkedList predecessors = new LinkedList();
+    private final LinkedList handlers     = new LinkedList();
+    private ObjectType handlerType;
+    private boolean handler = false;
+
+    Block( int index, InstructionHandle start )
+    {
+      this.index = index;
+      this.start = start;
+    }
+
+    int getIndex()                     { return index; }
+    InstructionHandle getStart()       { return start; }
+    InstructionHandle getEnd()         { return end; }
+
+    /**
+     * The blocks that control can pass to from the end of this block.
+     */
+    List getSuccessors()               { return successors; }
+    List getPredecessors()             { return predecessors; }
+
+    /**
+     * The blocks that handle an exception thrown by this block.
+     */
+    List getHandlers()                 { return handlers; }
+
+    /**
+     * Is this block the start of an exception handler?
+     */
+    boolean isHandler()                { return handler; }
+
+    private void addSuccessor( Block b )
+    {
+      if( !successors.contains(b) )
+      {
+        successors.add(b);
+        b.predecessors.add(this);
+      }
+    }
+
+    public String toString()
+    {
+      return "B" + index;
+    }
+  }
+
+  private ControlFlowGraph( MethodGen mg, Block[] blocks )
+  {
+    this.mg = mg;
+    this.il = mg.getInstructionList();
+    this.blocks = blocks;
+  }
+
+  /*=======================================================================*/
+  /**
+   * Build the graph of a method.
+   *
+   * @param mg   the method
+   * @return the graph
+   */
+  static ControlFlowGraph build( MethodGen mg )
+  {
+    InstructionList il = mg.getInstructionList();
+    il.setPositions();
+
+    InstructionHandle[] ihs = il.getInstructionHandles();
+    CodeExceptionGen[] cegs = mg.getExceptionHandlers();
+
+    // find the instructions that start a block:
+    IdentityHashMap leaders = new IdentityHashMap();
+    if( ihs.length > 0 )
+      leaders.put( ihs[0], ihs[0] );
+    for( int i=0; i<ihs.length; i++ )
+    {
+      Instruction insn = ihs[i].getInstruction();
+      if( insn instanceof Select )
+      {
+        InstructionHandle[] targets = ((Select)insn).getTargets();
+        for( int j=0; j<targets.length; j++ )
+          leaders.put( targets[j], targets[j] );
+      }
+      if( insn instanceof BranchInstruction )
+      {
+        InstructionHandle target = ((BranchInstruction)insn).getTarget();
+        leaders.put( target, target );
+      }
+      if( endsBlock(insn) && (ihs[i].getNext() != null) )
+        leaders.put( ihs[i].getNext(), ihs[i].getNext() );
+    }
+    for( int i=0; i<cegs.length; i++ )
+    {
+      leaders.put( cegs[i].getStartPC(), cegs[i].getStartPC() );
+      leaders.put( cegs[i].getHandlerPC(), cegs[i].getHandlerPC() );
+      if( cegs[i].getEndPC().getNext() != null )
+        leaders.put( cegs[i].getEndPC().getNext(), cegs[i].getEndPC().getNext() );
+    }
+
+    // split the instructions into blocks:
+    LinkedList blockList = new LinkedList();
+    IdentityHashMap blockTable = new IdentityHashMap();
+    Block block = null;
+    for( int i=0; i<ihs.length; i++ )
+    {
+      if( leaders.containsKey( ihs[i] ) )
+      {
+        block = new Block( blockList.size(), ihs[i] );
+        blockList.add(block);
+        blockTable.put( ihs[i], block );
+      }
+      block.end = ihs[i];
+    }
+    Block[] blocks = (Block[])(blockList.toArray( new Block[blockList.size()] ));
+
+    // connect the blocks:
+    for( int i=0; i<blocks.length; i++ )
+    {
+      Instruction insn = blocks[i].end.getInstruction();
+      if( insn instanceof Select )
+      {
+        InstructionHandle[] targets = ((Select)insn).getTargets();
+        for( int j=0; j<targets.length; j++ )
+          blocks[i].addSuccessor( (Block)(blockTable.get( targets[j] )) );
+      }
+      if( insn instanceof BranchInstruction )
+        blocks[i].addSuccessor( (Block)(blockTable.get( ((BranchInstruction)insn).getTarget() )) );
+      if( !((insn instanceof GotoInstruction) || (insn instanceof Select) ||
+            (insn instanceof ReturnInstruction) || (insn instanceof ATHROW) ||
+            (insn instanceof RET)) && (i+1 < blocks.length) )
+        blocks[i].addSuccessor( blocks[i+1] );
+    }
+
+    for( int i=0; i<cegs.length; i++ )
+    {
+      Block h = (Block)(blockTable.get( cegs[i].getHandlerPC() ));
+      h.handler = true;
+      h.handlerType = cegs[i].getCatchType();
+
+      int start = cegs[i].getStartPC().getPosition();
+      int end   = cegs[i].getEndPC().getPosition();
+      for( int j=0; j<blocks.length; j++ )
+      {
+        int pos = blocks[j].start.getPosition();
+        if( (start <= pos) && (pos <= end) && !blocks[j].handlers.contains(h) )
+          blocks[j].handlers.add(h);
+      }
+    }
+
+    return new ControlFlowGraph( mg, blocks );
+  }
+
+  private static boolean endsBlock( Instruction insn )
+  {
+    return (insn instanceof BranchInstruction) || (insn instanceof ReturnInstruction) ||
+      (insn instanceof ATHROW) || (insn instanceof RET);
+  }
+
+  /*=======================================================================*/
+  MethodGen getMethod()          { return mg; }
+  InstructionList getInstructionList()  { return il; }
+
+  /**
+   * The blocks of the method, in the order of the instruction list.  The
+   * first block is the entry of the method.
+   */
+  Block[] getBlocks()            { return blocks; }
+
+  /**
+   * Find the blocks that can be reached from the entry of the method, by
+   * normal control flow or by an exception.
+   *
+   * @return an array indexed by block index
+   */
+  boolean[] getReachable()
+  {
+    boolean[] reachable = new boolean[ blocks.length ];
+    if( blocks.length == 0 )
+      return reachable;
+
+    LinkedList work = new LinkedList();
+    work.add( blocks[0] );
+    reachable[0] = true;
+    while( !work.isEmpty() )
+    {
+      Block b = (Block)(work.removeFirst());
+      for( int i=0; i<2; i++ )
+      {
+        List next = (i == 0) ? b.successors : b.handlers;
+        for( Iterator itr=next.iterator(); itr.hasNext(); )
+        {
+          Block s = (Block)(itr.next());
+          if( !reachable[s.index] )
+          {
+            reachable[s.index] = true;
+            work.add(s);
+          }
+        }
+      }
+    }
+    return reachable;
+  }
+
+  /**
+   * Delete a range of instructions, moving anything that refers to the
+   * deleted instructions to the instructions around them.  Exception
+   * handlers and local variables whose range is entirely deleted are
+   * removed.  Branches to the range go to the instruction after it, so
+   * the caller is responsible for there being no branch into the range
+   * which that would change the meaning of.
+   *
+   * @param first   the first instruction to delete
+   * @param last    the last instruction to delete
+   */
+  void delete( InstructionHandle first, InstructionHandle last )
+  {
+    InstructionHandle prev = first.getPrev();
+    InstructionHandle next = last.getNext();
+
+    il.setPositions();
+    int from = first.getPosition();
+    int to   = last.getPosition();
+
+    CodeExceptionGen[] cegs = mg.getExceptionHandlers();
+    for( int i=0; i<cegs.length; i++ )
+    {
+      if( (from <= cegs[i].getStartPC().getPosition()) &&
+          (cegs[i].getEndPC().getPosition() <= to) )
+        mg.removeExceptionHandler( cegs[i] );
+    }
+
+    LocalVariableGen[] lgs = mg.getLocalVariables();
+    for( int i=0; i<lgs.length; i++ )
+    {
+      if( (lgs[i].getStart() != null) && (lgs[i].getEnd() != null) &&
+          (from <= lgs[i].getStart().getPosition()) &&
+          (lgs[i].getEnd().getPosition() <= to) )
+        mg.removeLocalVariable( lgs[i] );
+    }
+
+    try
+    {
+      il.delete( first, last );
+    }
+    catch(TargetLostException e)
+    {
+      InstructionHandle[] targets = e.getTargets();
+      for( int i=0; i<targets.length; i++ )
+      {
+        InstructionTargeter[] targeters = targets[i].getTargeters();
+        for( int j=0; j<targeters.length; j++ )
+        {
+          // the end of a range moves back, everything else moves forward:
+          InstructionTargeter t = targeters[j];
+          boolean isEnd = ((t instanceof CodeExceptionGen) && (((CodeExceptionGen)t).getEndPC() == targets[i])) ||
+                          ((t instanceof LocalVariableGen) && (((LocalVariableGen)t).getEnd() == targets[i]));
+          InstructionHandle h = isEnd ? ((prev != null) ? prev : next) : ((next != null) ? next : prev);
+          t.updateTarget( targets[i], h );
+        }
+      }
+    }
+  }
+
+  /*=======================================================================*/
+  /**
+   * Dump the graph, for diagnosing the compiler, see {@link PassManager}.
+   */
+  public String toString()
+  {
+    org.apache.bcel.classfile.ConstantPool cp = mg.getConstantPool().getConstantPool();
+
+    StringBuffer sb = new StringBuffer();
+    sb.append( mg.getName() ).append( mg.getSignature() ).append('\n');
+    for( int i=0; i<blocks.length; i++ )
+    {
+      Block b = blocks[i];
+      sb.append("  ").append(b).append(':');
+      if( b.handler )
+        sb.append(" handler(").append( (b.handlerType == null) ? "any" : b.handlerType.getClassName() ).append(')');
+      sb.append("  <- ").append( b.predecessors );
+      sb.append("  -> ").append( b.successors );
+      if( b.handlers.size() > 0 )
+        sb.append("  throws -> ").append( b.handlers );
+      sb.append('\n');
+
+      for( InstructionHandle ih=b.start; ; ih=ih.getNext() )
+      {
+        sb.append("    ").append( ih.getPosition() ).append(": ")
+          .append( ih.getInstruction().toString(cp) ).append('\n');
+        if( ih == b.end )
+          break;
+      }
+    }
+    return sb.toString();
+  }
+}
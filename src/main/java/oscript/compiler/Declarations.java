@@ -0,0 +1,384 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.syntaxtree.*;
+import oscript.exceptions.*;
+
+import java.lang.reflect.Field;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+
+/**
+ * The names declared by the body of a node-evaluator, not counting the
+ * bodies of functions declared within it, which are compiled separately.
+ * Used to tell whether a reference to a variable of an enclosing function
+ * can be resolved at compile time, see {@link CompilerScope#isClosureVariable}.
+ * <p>
+ * The names declared by each block are also recorded, to tell which block
+ * scopes a function declared within the node-evaluator can see, see
+ * {@link Block}.
+ */
+final class Declarations
+{
+  /**
+   * Set <code>-Doscript.compiler.skipClosureScopes=true</code> to give a
+   * function only the scopes it can find a variable in.  By default a
+   * function always sees the scope it is declared in.
+   */
+  static final boolean SKIP_CLOSURE_SCOPES = Boolean.getBoolean("oscript.compiler.skipClosureScopes");
+  
+  /**
+   * Maps name to the number of declarations of that name.
+   */
+  private final Hashtable countTable = new Hashtable();
+  
+  /**
+   * Maps <i>ScopeBlock</i> to {@link Block}.
+   */
+  private final IdentityHashMap blockTable = new IdentityHashMap();
+  private LinkedList blockStack = new LinkedList();
+
+  /**
+   * Does the body contain an <code>eval</code>, <code>import</code> or
+   * <code>mixin</code>, which could declare any name?
+   */
+  private boolean open = false;
+
+  private Declarations() {}
+  
+  /**
+   * A block which has a scope object.  A function created within the
+   * block is only given the block's scope if it refers to a name that the
+   * block declares, otherwise it skips to the enclosing scope (see
+   * {@link CompilerScope#getClosureScope}), which keeps the function from
+   * holding on to variables it can't use.  If no function is given the
+   * block's scope, the scope needn't outlive the block, and can be
+   * allocated from the stack and re-used.
+   */
+  static final class Block
+  {
+    private final Hashtable names = new Hashtable();
+    
+    /**
+     * Does the block contain an <code>eval</code>, <code>import</code> or
+     * <code>mixin</code>?
+     */
+    private boolean open = false;
+    
+    /**
+     * Is the scope given to a function?
+     */
+    private boolean captured = false;
+    
+    /**
+     * Is the block's scope given to a function created within the block,
+     * or could it be seen some other way?
+     */
+    boolean isCaptured()
+    {
+      return captured;
+    }
+    
+    /**
+     * Can a function skip this block's scope?
+     * 
+     * @param freeNames   the names referred to by the function, or
+     *    <code>null</code> if not known, see {@link #getFreeNames}
+     */
+    boolean canSkip( Hashtable freeNames )
+    {
+      return !open && (!captured || !declaresAny(freeNames));
+    }
+    
+    private boolean declaresAny( Hashtable freeNames )
+    {
+      if( freeNames == null )
+        return true;
+      for( Iterator itr=freeNames.keySet().iterator(); itr.hasNext(); )
+        if( names.containsKey( itr.next() ) )
+          return true;
+      return false;
+    }
+  }
+
+  /*=======================================================================*/
+  /**
+   * Analyze the body of a node-evaluator.
+   *
+   * @param node   the node being compiled
+   * @return the result of the analysis
+   */
+  static Declarations analyze( Node node )
+  {
+    Declarations d = new Declarations();
+    d.walk(node);
+    return d;
+  }
+
+  /**
+   * Get the number of times a name is declared.
+   *
+   * @param name   the name, ie. the token-image of the &lt;IDENTIFIER&gt;
+   */
+  int getCount( String name )
+  {
+    Integer cnt = (Integer)(countTable.get(name));
+    return (cnt == null) ? 0 : cnt.intValue();
+  }
+
+  /**
+   * Could names be declared that the compiler doesn't know about?
+   */
+  boolean isOpen()
+  {
+    return open;
+  }
+  
+  /**
+   * Get the names declared by a block.
+   * 
+   * @param n   the block
+   * @return the block, or <code>null</code> if not known
+   */
+  Block getBlock( ScopeBlock n )
+  {
+    return (Block)(blockTable.get(n));
+  }
+  
+  /**
+   * Get the names of the variables a function refers to, including those
+   * referred to by functions declared within it.
+   * 
+   * @param n   the function
+   * @return a table of names, or <code>null</code> if the function contains
+   *    an <code>eval</code>, <code>import</code>, <code>mixin</code> or
+   *    static members, and so could refer to any name
+   */
+  static Hashtable getFreeNames( Node n )
+  {
+    Hashtable names = new Hashtable();
+    return collectNames( n, names ) ? names : null;
+  }
+  
+  private static boolean collectNames( Node n, Hashtable names )
+  {
+    if( (n == null) || (n instanceof NodeToken) )
+      return true;
+    
+    if( (n instanceof EvalBlock) || (n instanceof ImportBlock) || (n instanceof MixinBlock) )
+      return false;
+    
+    // static members are evaluated separately:
+    if( (n instanceof Program) && (((Program)n).staticNodes != null) )
+      return false;
+    
+    if( n instanceof IdentifierPrimaryPrefix )
+    {
+      String name = ((IdentifierPrimaryPrefix)n).f0.tokenImage;
+      names.put( name, name );
+      return true;
+    }
+    
+    Node[] children = getChildren(n);
+    for( int i=0; i<children.length; i++ )
+      if( !collectNames( children[i], names ) )
+        return false;
+    return true;
+  }
+
+  /*=======================================================================*/
+  private void walk( Node n )
+  {
+    if( (n == null) || (n instanceof NodeToken) )
+    {
+      return;
+    }
+    else if( n instanceof NodeOptional )
+    {
+      NodeOptional o = (NodeOptional)n;
+      if( o.present() )
+        walk( o.node );
+    }
+    else if( n instanceof NodeChoice )
+    {
+      walk( ((NodeChoice)n).choice );
+    }
+    else if( n instanceof NodeSequence )
+    {
+      NodeSequence s = (NodeSequence)n;
+      for( int i=0; i<s.size(); i++ )
+        walk( s.elementAt(i) );
+    }
+    else if( n instanceof NodeListOptional )
+    {
+      NodeListOptional l = (NodeListOptional)n;
+      for( int i=0; i<l.size(); i++ )
+        walk( l.elementAt(i) );
+    }
+    else if( n instanceof NodeList )
+    {
+      NodeList l = (NodeList)n;
+      for( int i=0; i<l.size(); i++ )
+        walk( l.elementAt(i) );
+    }
+    else if( n instanceof FunctionDeclaration )
+    {
+      declare( ((FunctionDeclaration)n).f2 );
+      declareInBlock( ((FunctionDeclaration)n).f2 );
+      capture(n);
+    }
+    else if( (n instanceof FunctionPrimaryPrefix) || (n instanceof ShorthandFunctionPrimaryPrefix) )
+    {
+      // the body is compiled separately
+      capture(n);
+    }
+    else if( (n instanceof EvalBlock) || (n instanceof ImportBlock) || (n instanceof MixinBlock) )
+    {
+      open = true;
+      for( Iterator itr=blockStack.iterator(); itr.hasNext(); )
+      {
+        Block block = (Block)(itr.next());
+        block.open     = true;
+        block.captured = true;
+      }
+    }
+    else if( (n instanceof ScopeBlock) && ((ScopeBlock)n).hasVarInScope && SKIP_CLOSURE_SCOPES )
+    {
+      Block block = new Block();
+      blockTable.put( n, block );
+      blockStack.addFirst(block);
+      walkFields(n);
+      blockStack.removeFirst();
+    }
+    else if( n instanceof VariableDeclaration )
+    {
+      declare( ((VariableDeclaration)n).f2 );
+      declareInBlock( ((VariableDeclaration)n).f2 );
+      walkFields(n);
+    }
+    else if( n instanceof TryStatement )
+    {
+      // the catch blocks declare the exception variable:
+      TryStatement t = (TryStatement)n;
+      for( int i=0; i<t.f2.size(); i++ )
+        declare( (NodeToken)(((NodeSequence)(t.f2.elementAt(i))).elementAt(3)) );
+      if( t.f3.present() )
+        declare( (NodeToken)(((NodeSequence)(t.f3.node)).elementAt(2)) );
+      walkFields(n);
+    }
+    else
+    {
+      walkFields(n);
+    }
+  }
+
+  private void declare( NodeToken id )
+  {
+    countTable.put( id.tokenImage, Integer.valueOf( getCount(id.tokenImage) + 1 ) );
+  }
+
+  private void declareInBlock( NodeToken id )
+  {
+    if( !blockStack.isEmpty() )
+      ((Block)(blockStack.getFirst())).names.put( id.tokenImage, id.tokenImage );
+  }
+  
+  /**
+   * Find the block whose scope a function created within the current
+   * block is given, the same way as {@link CompilerScope#getClosureScope}.
+   * The scopes of the blocks enclosing that block are the parents of its
+   * scope at runtime, so the function holds on to them as well, and they
+   * are captured too.
+   */
+  private void capture( Node fxn )
+  {
+    Hashtable freeNames = getFreeNames(fxn);
+    boolean found = false;
+    for( Iterator itr=blockStack.iterator(); itr.hasNext(); )
+    {
+      Block block = (Block)(itr.next());
+      if( found || block.open || block.declaresAny(freeNames) )
+      {
+        block.captured = true;
+        found = true;
+      }
+    }
+  }
+  
+  private void walkFields( Node n )
+  {
+    Node[] children = getChildren(n);
+    for( int i=0; i<children.length; i++ )
+      walk( children[i] );
+  }
+  
+  private static Node[] getChildren( Node n )
+  {
+    if( n instanceof NodeOptional )
+    {
+      NodeOptional o = (NodeOptional)n;
+      return o.present() ? new Node[] { o.node } : new Node[0];
+    }
+    else if( n instanceof NodeChoice )
+    {
+      return new Node[] { ((NodeChoice)n).choice };
+    }
+    else if( n instanceof NodeSequence )
+    {
+      NodeSequence s = (NodeSequence)n;
+      Node[] children = new Node[ s.size() ];
+      for( int i=0; i<children.length; i++ )
+        children[i] = s.elementAt(i);
+      return children;
+    }
+    else if( n instanceof NodeListOptional )
+    {
+      NodeListOptional l = (NodeListOptional)n;
+      Node[] children = new Node[ l.size() ];
+      for( int i=0; i<children.length; i++ )
+        children[i] = l.elementAt(i);
+      return children;
+    }
+    else if( n instanceof NodeList )
+    {
+      NodeList l = (NodeList)n;
+      Node[] children = new Node[ l.size() ];
+      for( int i=0; i<children.length; i++ )
+        children[i] = l.elementAt(i);
+      return children;
+    }
+    
+    Field[] fields = NodeDigest.getFields( n.getClass() );
+    Node[] children = new Node[ fields.length ];
+    for( int i=0; i<fields.length; i++ )
+    {
+      try
+      {
+        children[i] = (Node)(fields[i].get(n));
+      }
+      catch(IllegalAccessException e)
+      {
+        throw new ProgrammingErrorException(e);
+      }
+    }
+    return children;
+  }
+}
@@ -0,0 +1,166 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.OscriptHost;
+import oscript.data.Scope;
+import oscript.util.StackFrame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+/**
+ * An inner node-evaluator that is bound directly to the generated
+ * <tt>_<i>idx</i>_<i>name</i></tt> method, rather than going through the
+ * <tt>evalInnerNode</tt> switch.
+ * <p>
+ * This class is a template: for each inner node, its class-data is
+ * re-defined as a hidden class whose class-data is a method handle to the
+ * target method, bound to the compiled node-evaluator instance.  Since
+ * the handle is stored in a <code>static final</code> field of a class
+ * that only serves that one inner node, the JIT treats it as a constant
+ * and can inline the script function body into {@link #evalNode}, and
+ * from there into its callers.
+ * <p>
+ * The generated <code>&lt;init&gt;</code> calls {@link #create} in place
+ * of constructing a {@link CompiledInnerNodeEvaluator}, see
+ * {@link CompilerContext#pushNodeEvaluator}.
+ */
+public class DirectInnerNodeEvaluator extends CompiledInnerNodeEvaluator
+{
+  /**
+   * Set to <code>false</code> with <code>-Doscript.compiler.directInnerNodes=false</code>
+   * to fall back to <tt>evalInnerNode</tt> dispatch.
+   */
+  public static final boolean ENABLED =
+    !"false".equals( System.getProperty("oscript.compiler.directInnerNodes") );
+
+  private static final MethodType EVAL_NODE_TYPE =
+    MethodType.methodType( Object.class, StackFrame.class, Scope.class );
+
+  private static final MethodType CONSTRUCTOR_TYPE =
+    MethodType.methodType( void.class, int.class, int.class, CompiledNodeEvaluator.class );
+
+  /**
+   * The target method, bound to the compiled node-evaluator.  This is
+   * <code>null</code> in the template class itself.
+   */
+  private static final MethodHandle TARGET = classData();
+
+  private static byte[] templateBytes;
+
+  /*=======================================================================*/
+  private static MethodHandle classData()
+  {
+    try
+    {
+      return MethodHandles.classData( MethodHandles.lookup(), ConstantDescs.DEFAULT_NAME, MethodHandle.class );
+    }
+    catch(IllegalAccessException e)
+    {
+      return null;
+    }
+  }
+
+  /*=======================================================================*/
+  /**
+   * Class Constructor, only invoked on the hidden copies of this class.
+   */
+  public DirectInnerNodeEvaluator( int id, int idx, CompiledNodeEvaluator cne )
+  {
+    super( id, idx, cne );
+  }
+
+  /*=======================================================================*/
+  public Object evalNode( StackFrame sf, Scope scope )
+  {
+    try
+    {
+      return (Object)(TARGET.invokeExact( sf, scope ));
+    }
+    catch(RuntimeException e)
+    {
+      throw e;
+    }
+    catch(Error e)
+    {
+      throw e;
+    }
+    catch(Throwable e)
+    {
+      // the generated methods don't declare checked exceptions:
+      throw new oscript.exceptions.ProgrammingErrorException(e);
+    }
+  }
+
+  /*=======================================================================*/
+  /**
+   * Called from the generated constructor to create the node-evaluator for
+   * an inner node.
+   *
+   * @param lookup       a lookup with private access to the generated class
+   * @param id           the function's symbol id
+   * @param idx          the eval-node-idx
+   * @param cne          the compiled node-evaluator the inner node belongs to
+   * @param methodName   the name of the generated method for the inner node
+   * @return the inner node-evaluator
+   */
+  public static CompiledInnerNodeEvaluator create( MethodHandles.Lookup lookup, int id, int idx,
+                                                   CompiledNodeEvaluator cne, String methodName )
+  {
+    if(ENABLED)
+    {
+      try
+      {
+        MethodHandle target = lookup.findVirtual( lookup.lookupClass(), methodName, EVAL_NODE_TYPE ).bindTo(cne);
+        Class c = MethodHandles.lookup().defineHiddenClassWithClassData( getTemplateBytes(), target, true ).lookupClass();
+        return (CompiledInnerNodeEvaluator)(
+          MethodHandles.lookup().findConstructor( c, CONSTRUCTOR_TYPE ).invoke( id, idx, cne )
+        );
+      }
+      catch(Throwable e)
+      {
+        OscriptHost.me.error("Error binding " + methodName + ", using evalInnerNode: " + e);
+      }
+    }
+
+    return new CompiledInnerNodeEvaluator( id, idx, cne );
+  }
+
+  private static synchronized byte[] getTemplateBytes()
+    throws java.io.IOException
+  {
+    if( templateBytes == null )
+    {
+      try( InputStream in = DirectInnerNodeEvaluator.class.getResourceAsStream("DirectInnerNodeEvaluator.class") )
+      {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while( (n = in.read(buf)) > 0 )
+          bos.write( buf, 0, n );
+        templateBytes = bos.toByteArray();
+      }
+    }
+    return templateBytes;
+  }
+}
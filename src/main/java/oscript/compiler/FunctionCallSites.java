@@ -0,0 +1,189 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.data.*;
+import oscript.util.StackFrame;
+import oscript.util.MemberTable;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+/**
+ * Call sites for function calls, ie. <code>fxn(a, b)</code>.  Like
+ * {@link OperatorSites}, the compiler generates a call to
+ * {@link #callAsFunction}, which the {@link ClassFileUpgrader} turns into
+ * an <code>invokedynamic</code> linked by {@link #bootstrap}.  A call with
+ * up to {@link #MAX_ARITY} args instead calls one of the
+ * <code>callAsFunction<i>N</i></code> methods, passing the args directly,
+ * which keeps the code to build the member-table out of the caller.
+ * <p>
+ * Each call site is an inline cache keyed by the identity of the
+ * (unhanded) function that is called.  The cached function is bound to
+ * the call as a constant, so the JIT can inline its
+ * <code>callAsFunction</code>, and from there the compiled function body,
+ * which is also a constant, see {@link DirectInnerNodeEvaluator}.  Once
+ * more than {@link #MAX_DEPTH} functions have been called, ie. a call to
+ * a function passed in as an argument, the site is megamorphic and is
+ * linked to the generic call, which also drops the references to the
+ * cached functions.
+ * <p>
+ * Enabled with <code>-Doscript.compiler.indyCalls=true</code>.  By default
+ * the compiler calls <code>callAsFunction</code> directly.
+ */
+public final class FunctionCallSites
+{
+  static final boolean ENABLED = Boolean.getBoolean("oscript.compiler.indyCalls");
+
+  /**
+   * The number of functions a call site is specialized for,
+   * <code>-Doscript.compiler.indyCalls.depth</code>.
+   */
+  static final int MAX_DEPTH = Integer.getInteger( "oscript.compiler.indyCalls.depth", 2 ).intValue();
+
+  /**
+   * The largest number of arguments passed directly, rather than in a
+   * member-table built by the caller.
+   */
+  static final int MAX_ARITY = 4;
+
+  private static final MethodHandle FALLBACK;
+  private static final MethodHandle TEST;
+
+  static {
+    try
+    {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      FALLBACK = lookup.findVirtual( FunctionCallSite.class, "fallback",
+                                     MethodType.methodType( Object.class, Object[].class ) );
+      TEST = lookup.findStatic( FunctionCallSites.class, "test",
+                                MethodType.methodType( boolean.class, Value.class, Value.class ) );
+    }
+    catch(ReflectiveOperationException e)
+    {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private FunctionCallSites() {}
+
+  /*=======================================================================*/
+  /**
+   * The bootstrap method for the <code>invokedynamic</code> call sites.
+   *
+   * @param lookup   the caller's lookup
+   * @param name     <code>callAsFunction</code>, or
+   *    <code>callAsFunction<i>N</i></code> for a call with <i>N</i> args
+   * @param type     <code>(Value,StackFrame,MemberTable)Value</code>, or
+   *    <code>(Value,StackFrame,Value...)Value</code> with <i>N</i> args
+   * @return the call site
+   */
+  public static CallSite bootstrap( MethodHandles.Lookup lookup, String name, MethodType type )
+    throws ReflectiveOperationException
+  {
+    return new FunctionCallSite( MethodHandles.lookup().findStatic( FunctionCallSites.class, name, type ) );
+  }
+
+  private static final class FunctionCallSite extends InlineCacheCallSite
+  {
+    private final MethodHandle generic;
+
+    FunctionCallSite( MethodHandle generic )
+    {
+      super( generic.type(), MAX_DEPTH );
+      this.generic = generic;
+      setTarget( FALLBACK.bindTo(this).asCollector( Object[].class, generic.type().parameterCount() ).asType( generic.type() ) );
+    }
+
+    /**
+     * Called when the function doesn't match any of the cached functions.
+     */
+    private Object fallback( Object[] args )
+      throws Throwable
+    {
+      Value target = ((Value)(args[0])).unhand();
+      MethodType type = type();
+
+      MethodHandle test = MethodHandles.dropArguments( MethodHandles.insertArguments( TEST, 0, target ),
+                                                       1, type.parameterList().subList( 1, type.parameterCount() ) );
+      MethodHandle specialized = MethodHandles.dropArguments( MethodHandles.insertArguments( generic, 0, target ),
+                                                              0, Value.class );
+
+      return link( test, specialized, generic ).invokeWithArguments(args);
+    }
+  }
+
+  private static boolean test( Value target, Value fxn )
+  {
+    return fxn.unhand() == target;
+  }
+
+  /*=======================================================================*/
+  /* The generic calls, called when the class file isn't upgraded, or the
+   * call site is megamorphic.  With a known number of args, the caller
+   * passes them directly and the member-table is allocated here.
+   */
+
+  public static Value callAsFunction( Value fxn, StackFrame sf, MemberTable args )
+  {
+    return fxn.callAsFunction( sf, args );
+  }
+
+  public static Value callAsFunction0( Value fxn, StackFrame sf )
+  {
+    return fxn.callAsFunction( sf, null );
+  }
+
+  public static Value callAsFunction1( Value fxn, StackFrame sf, Value a1 )
+  {
+    MemberTable args = sf.allocateMemberTable(1);
+    args.push1(a1);
+    Value rval = fxn.callAsFunction( sf, args );
+    args.free();
+    return rval;
+  }
+
+  public static Value callAsFunction2( Value fxn, StackFrame sf, Value a1, Value a2 )
+  {
+    MemberTable args = sf.allocateMemberTable(2);
+    args.push2( a1, a2 );
+    Value rval = fxn.callAsFunction( sf, args );
+    args.free();
+    return rval;
+  }
+
+  public static Value callAsFunction3( Value fxn, StackFrame sf, Value a1, Value a2, Value a3 )
+  {
+    MemberTable args = sf.allocateMemberTable(3);
+    args.push3( a1, a2, a3 );
+    Value rval = fxn.callAsFunction( sf, args );
+    args.free();
+    return rval;
+  }
+
+  public static Value callAsFunction4( Value fxn, StackFrame sf, Value a1, Value a2, Value a3, Value a4 )
+  {
+    MemberTable args = sf.allocateMemberTable(4);
+    args.push4( a1, a2, a3, a4 );
+    Value rval = fxn.callAsFunction( sf, args );
+    args.free();
+    return rval;
+  }
+}
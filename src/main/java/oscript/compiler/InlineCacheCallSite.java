@@ -0,0 +1,75 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+
+/**
+ * An <code>invokedynamic</code> call site which is an inline cache.  The
+ * target starts out as a fallback, implemented by the subclass, which
+ * calls {@link #link} with a path specialized for the arguments of the
+ * call and a test that checks whether later arguments can take the same
+ * path.  Each specialized path is added in front of the existing target,
+ * so the site goes from monomorphic to polymorphic, and once there are
+ * more than <code>maxDepth</code> paths the site is megamorphic and the
+ * target becomes the generic path.
+ *
+ * @see OperatorSites
+ * @see PropertySites
+ */
+abstract class InlineCacheCallSite extends MutableCallSite
+{
+  private final int maxDepth;
+  private int depth = 0;
+
+  /**
+   * @param type       the type of the call site
+   * @param maxDepth   the number of specialized paths before the site
+   *    is megamorphic
+   */
+  InlineCacheCallSite( MethodType type, int maxDepth )
+  {
+    super(type);
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * Add a specialized path to the cache.  Called from the fallback.
+   *
+   * @param test          the guard, with the same parameters as the call
+   *    site, returning <code>boolean</code>
+   * @param specialized   the specialized path
+   * @param generic       the path to use once the site is megamorphic
+   * @return the path which the fallback should invoke for the current call
+   */
+  synchronized MethodHandle link( MethodHandle test, MethodHandle specialized, MethodHandle generic )
+  {
+    if( depth >= maxDepth )
+    {
+      setTarget(generic);
+      return generic;
+    }
+
+    depth++;
+    setTarget( MethodHandles.guardWithTest( test, specialized, getTarget() ) );
+    return specialized;
+  }
+}
@@ -0,0 +1,63 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.data.*;
+
+import java.lang.invoke.MethodHandles;
+
+
+/**
+ * Bootstrap methods for the dynamically-computed constants that replace
+ * the lazy constant accessors in generated code, see
+ * {@link ClassFileUpgrader}.  Each is resolved by the JVM the first time
+ * the <code>ldc</code> runs, and the result is then a true constant of
+ * the generated class.
+ */
+public final class LazyConstantBootstraps
+{
+  private LazyConstantBootstraps() {}
+  
+  public static Object string( MethodHandles.Lookup lookup, String name, Class type, String str )
+  {
+    return OString.makeString(str);
+  }
+  
+  public static Object exactNumber( MethodHandles.Lookup lookup, String name, Class type, long val )
+  {
+    return OExactNumber.makeExactNumber(val);
+  }
+  
+  public static Object inexactNumber( MethodHandles.Lookup lookup, String name, Class type, double val )
+  {
+    return OInexactNumber.makeInexactNumber(val);
+  }
+  
+  public static Object regExp( MethodHandles.Lookup lookup, String name, Class type, String str )
+  {
+    return RegExp.createRegExp( OString.makeString(str) );
+  }
+  
+  /**
+   * The symbol id, which (unlike the other constants) is resolved against
+   * the symbol table of the running script environment.
+   */
+  public static Object symbol( MethodHandles.Lookup lookup, String name, Class type, String symbolName )
+  {
+    return Integer.valueOf( Symbol.getSymbol(symbolName).getId() );
+  }
+}
@@ -0,0 +1,76 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.data.*;
+
+
+/**
+ * Property reads within a loop, ie. <code>config.limits.max</code>, which
+ * are usually the same every time around the loop.  Rather than moving the
+ * read out of the loop, which would need the compiler to prove that nothing
+ * in the loop (including operator methods and functions it calls) could
+ * change the object, the generated code keeps the member found by the last
+ * read in a local variable of the node-evaluator, and re-uses it as long as
+ * the read is from the same object, see {@link CompilerVisitor#dumpPropertyAccess}.
+ * <p>
+ * That is only done for the members of a {@link ScriptObject}, ie. an
+ * object constructed by a script function, and only if the object is of
+ * exactly that class.  Its members, including those created by the
+ * constructors of its superclasses, are {@link Reference}s in its own
+ * member table, which stay the same for the lifetime of the object, and
+ * assigning to the member changes the value of the reference.  Other
+ * scopes may look members up elsewhere, or create a reference on each
+ * lookup, and other objects, such as java objects or arrays, may return a
+ * new value each time, so they are always looked up.
+ * Since the object is compared, an assignment to <code>config.limits</code>
+ * within the loop is seen by the next read of <code>config.limits.max</code>.
+ * <p>
+ * Enabled with <code>-Doscript.compiler.loopInvariants=true</code>.  By
+ * default the compiler looks up the members every time.
+ */
+public final class LoopInvariants
+{
+  static final boolean ENABLED = Boolean.getBoolean("oscript.compiler.loopInvariants");
+
+  private LoopInvariants() {}
+
+  /*=======================================================================*/
+  /**
+   * Get a member of an object, using the cached member if the object is
+   * the same as the last time.
+   *
+   * @param obj     the object
+   * @param id      the symbol id of the member
+   * @param cache   the cache of the read, holding the object and the member
+   * @return the member
+   */
+  public static Value getMember( Value obj, int id, Value[] cache )
+  {
+    obj = obj.unhand();
+    if( cache[0] == obj )
+      return cache[1];
+
+    Value member = obj.getMember(id);
+    if( (obj.getClass() == ScriptObject.class) && (member instanceof Reference) )
+    {
+      cache[0] = obj;
+      cache[1] = member;
+    }
+    return member;
+  }
+}
@@ -125,6 +125,33 @@ class LoopStackNode
     cleanupList.remove(g);
   }
   
+  /**
+   * Get a copy of the current clean-up instruction generators.
+   */
+  LinkedList getCleanupInstructionGenerators()
+  {
+    if( cleanupList == null )
+      return new LinkedList();
+    return new LinkedList(cleanupList);
+  }
+  
+  /**
+   * Replace the current clean-up instruction generators.  This is used when
+   * an inlined copy of a "finally" is generated at a jump out of the "try",
+   * so that the copy sees the generators that were active when the "try"
+   * was entered, rather than the ones active at the jump (which include
+   * the "finally" itself).
+   * 
+   * @param list   the new list of generators
+   * @return the previous list of generators, to restore afterwards
+   */
+  LinkedList setCleanupInstructionGenerators( LinkedList list )
+  {
+    LinkedList prevList = cleanupList;
+    cleanupList = list;
+    return prevList;
+  }
+  
   /**
    * Called in the case of a jump/return out of this loop body.
    * 
@@ -135,8 +162,10 @@ class LoopStackNode
    */
   void insertCleanupInstructions( CompilerInstructionList il, boolean all )
   {
+    // iterate over a copy, since a generator may temporarily replace the
+    // list while generating an inlined "finally":
     if( cleanupList != null )
-      for( Iterator itr=cleanupList.iterator(); itr.hasNext(); )
+      for( Iterator itr=(new LinkedList(cleanupList)).iterator(); itr.hasNext(); )
         ((CleanupInstructionGenerator)(itr.next())).generate(il);
     if( all && (prev != null) )
       prev.insertCleanupInstructions( il, all );
@@ -146,8 +175,8 @@ class LoopStackNode
    * A cleanup-instruction-generator is a generic interface that other parts
    * of the compiler can use if they need to generate cleanpup instructions
    * before a jump out of a loop body.  This gives other parts of the compiler 
-   * that need to generate instructions to perform cleanup (such as running 
-   * "finally"s or releasing monitors) a chance to do that.
+   * that need to generate instructions to perform cleanup (such as inlining
+   * a copy of a "finally" or releasing monitors) a chance to do that.
    */
   public interface CleanupInstructionGenerator
   {
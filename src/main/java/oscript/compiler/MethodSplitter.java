@@ -0,0 +1,190 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.syntaxtree.*;
+
+import java.lang.reflect.Field;
+import java.util.LinkedList;
+
+
+/**
+ * Decides when the body of a node-evaluator is too big to compile into a
+ * single method, and how to split it.  HotSpot won't JIT compile methods
+ * whose bytecode is bigger than <code>HugeMethodLimit</code> (8000 bytes),
+ * and the class-file format limits a method to 64KB.
+ * <p>
+ * Since the size of the generated code isn't known until it is generated,
+ * and generating it has side effects (nested functions, constants, etc),
+ * the size of each <i>EvaluationUnit</i> is estimated up front from the
+ * number of tokens it contains.  Bodies of nested functions are compiled
+ * into their own methods, so they only count as a fixed cost.
+ * <p>
+ * The split is only done at the statement boundaries of the top-level
+ * <i>Program</i> of a function, where there is no enclosing loop,
+ * <code>try</code>, or scope block other than the function's scope.
+ * Each chunk becomes a helper method, see
+ * {@link CompilerVisitor#compileNode}.
+ */
+final class MethodSplitter
+{
+  /**
+   * The estimated size (in bytes of bytecode) above which a method body is
+   * split, <code>-Doscript.compiler.split.limit</code>.  Zero disables
+   * splitting.
+   */
+  static final int SPLIT_LIMIT = Integer.getInteger( "oscript.compiler.split.limit", 8000 ).intValue();
+
+  /**
+   * The target estimated size of each helper method.  This is well below
+   * the split limit, since the estimate is only approximate.
+   */
+  static final int CHUNK_LIMIT = SPLIT_LIMIT / 2;
+
+  /**
+   * Rough number of bytes of code generated per token.
+   */
+  private static final int BYTES_PER_TOKEN = 8;
+
+  /**
+   * Cost of creating a function, whose body is compiled into another
+   * method.
+   */
+  private static final int NESTED_FUNCTION_COST = 48;
+
+  private MethodSplitter() {}
+
+  /**
+   * Split the top-level program of a node-evaluator into chunks of
+   * <i>EvaluationUnit</i>s.
+   *
+   * @param node    the node being compiled
+   * @return a list of chunks, each of which is a <code>LinkedList</code>
+   *    of <code>Node</code>, or <code>null</code> if the node should not
+   *    be split
+   */
+  static LinkedList split( Node node )
+  {
+    if( SPLIT_LIMIT <= 0 )
+      return null;
+
+    if( node instanceof ProgramFile )
+      node = ((ProgramFile)node).f1;
+
+    if( !(node instanceof Program) )
+      return null;
+
+    NodeListOptional units = ((Program)node).f0;
+    if( units.size() < 2 )
+      return null;
+
+    int[] sizes = new int[ units.size() ];
+    int total = 0;
+    for( int i=0; i<units.size(); i++ )
+      total += (sizes[i] = estimate( units.elementAt(i) ));
+
+    if( total <= SPLIT_LIMIT )
+      return null;
+
+    LinkedList chunks = new LinkedList();
+    LinkedList chunk  = null;
+    int chunkSize = 0;
+    for( int i=0; i<units.size(); i++ )
+    {
+      if( (chunk == null) || ((chunkSize + sizes[i]) > CHUNK_LIMIT) )
+      {
+        chunks.add( chunk = new LinkedList() );
+        chunkSize = 0;
+      }
+      chunk.add( units.elementAt(i) );
+      chunkSize += sizes[i];
+    }
+
+    return chunks;
+  }
+
+  /**
+   * Estimate the size of the code generated for a node.
+   */
+  static int estimate( Node n )
+  {
+    if( n == null )
+    {
+      return 0;
+    }
+    else if( n instanceof NodeToken )
+    {
+      return BYTES_PER_TOKEN;
+    }
+    else if( (n instanceof FunctionDeclaration) ||
+             (n instanceof FunctionPrimaryPrefix) ||
+             (n instanceof ShorthandFunctionPrimaryPrefix) )
+    {
+      return NESTED_FUNCTION_COST;
+    }
+    else if( n instanceof NodeOptional )
+    {
+      NodeOptional o = (NodeOptional)n;
+      return o.present() ? estimate(o.node) : 0;
+    }
+    else if( n instanceof NodeChoice )
+    {
+      return estimate( ((NodeChoice)n).choice );
+    }
+    else if( n instanceof NodeSequence )
+    {
+      NodeSequence s = (NodeSequence)n;
+      int sz = 0;
+      for( int i=0; i<s.size(); i++ )
+        sz += estimate( s.elementAt(i) );
+      return sz;
+    }
+    else if( n instanceof NodeListOptional )
+    {
+      NodeListOptional l = (NodeListOptional)n;
+      int sz = 0;
+      for( int i=0; i<l.size(); i++ )
+        sz += estimate( l.elementAt(i) );
+      return sz;
+    }
+    else if( n instanceof NodeList )
+    {
+      NodeList l = (NodeList)n;
+      int sz = 0;
+      for( int i=0; i<l.size(); i++ )
+        sz += estimate( l.elementAt(i) );
+      return sz;
+    }
+    else
+    {
+      Field[] fields = NodeDigest.getFields( n.getClass() );
+      int sz = 0;
+      for( int i=0; i<fields.length; i++ )
+      {
+        try
+        {
+          sz += estimate( (Node)(fields[i].get(n)) );
+        }
+        catch(IllegalAccessException e)
+        {
+          throw new oscript.exceptions.ProgrammingErrorException(e);
+        }
+      }
+      return sz;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.syntaxtree.*;
+import oscript.exceptions.*;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Computes a content hash of a syntax-tree, used as the key for the
+ * {@link BytecodeCache}.  The hash covers the kind and image of every
+ * token in the tree (in order), the name of the class that will be
+ * generated, {@link CompilerContext#COMPILER_VERSION} and the
+ * {@link CompilerContext#getCodegenOptions codegen options}, so changing
+ * the script, the class name, the compiler or its options invalidates the
+ * entry.
+ * <p>
+ * The tree is walked generically, using the <code>f<i>N</i></code>
+ * fields of the generated syntax-tree classes, so this does not need
+ * to be updated when the grammar changes.
+ */
+final class NodeDigest
+{
+  private static final ConcurrentHashMap fieldTable = new ConcurrentHashMap();
+
+  private static final String CODEGEN_OPTIONS = CompilerContext.getCodegenOptions();
+
+  private final MessageDigest md;
+
+  private NodeDigest()
+  {
+    try
+    {
+      md = MessageDigest.getInstance("SHA-256");
+    }
+    catch(java.security.NoSuchAlgorithmException e)
+    {
+      throw new ProgrammingErrorException(e);
+    }
+  }
+
+  /**
+   * Compute the cache key for the class generated from <code>node</code>.
+   *
+   * @param className    the name of the class to generate
+   * @param node         the syntax-tree to compile
+   * @return the hex-encoded digest
+   */
+  static String digest( String className, Node node )
+  {
+    return digest( className, node, null );
+  }
+
+  /**
+   * Compute the cache key for the class generated from the body of a
+   * function, see {@link CompilerContext#compileNode(String,Node,int[])}.
+   *
+   * @param className    the name of the class to generate
+   * @param node         the syntax-tree to compile
+   * @param argIds       the argument ids and attributes, or <code>null</code>
+   * @return the hex-encoded digest
+   */
+  static String digest( String className, Node node, int[] argIds )
+  {
+    return digest( CompilerContext.COMPILER_VERSION, CODEGEN_OPTIONS, className, node, argIds );
+  }
+
+  /**
+   * Compute the cache key for a given compiler version and codegen options,
+   * which are otherwise fixed for the life of the VM.
+   */
+  static String digest( String version, String options, String className, Node node, int[] argIds )
+  {
+    NodeDigest d = new NodeDigest();
+    d.update(version);
+    d.update(options);
+    d.update( className );
+    if( argIds != null )
+    {
+      d.updateInt( argIds.length );
+      for( int i=0; i<argIds.length; i++ )
+        d.updateInt( argIds[i] );
+    }
+    d.walk(node);
+
+    byte[] b = d.md.digest();
+    StringBuffer sb = new StringBuffer( 2 * b.length );
+    for( int i=0; i<b.length; i++ )
+    {
+      sb.append( Character.forDigit( (b[i] >> 4) & 0xf, 16 ) );
+      sb.append( Character.forDigit( b[i] & 0xf, 16 ) );
+    }
+    return sb.toString();
+  }
+
+  private void update( String str )
+  {
+    byte[] b = str.getBytes(StandardCharsets.UTF_8);
+    updateInt( b.length );
+    md.update(b);
+  }
+
+  private void updateInt( int i )
+  {
+    md.update( (byte)(i >>> 24) );
+    md.update( (byte)(i >>> 16) );
+    md.update( (byte)(i >>> 8) );
+    md.update( (byte)i );
+  }
+
+  private void walk( Node n )
+  {
+    if( n == null )
+    {
+      updateInt(-1);
+    }
+    else if( n instanceof NodeToken )
+    {
+      NodeToken t = (NodeToken)n;
+      updateInt( t.kind );
+      update( t.tokenImage );
+    }
+    else if( n instanceof NodeOptional )
+    {
+      NodeOptional o = (NodeOptional)n;
+      walk( o.present() ? o.node : null );
+    }
+    else if( n instanceof NodeChoice )
+    {
+      walk( ((NodeChoice)n).choice );
+    }
+    else if( n instanceof NodeSequence )
+    {
+      NodeSequence s = (NodeSequence)n;
+      updateInt( s.size() );
+      for( int i=0; i<s.size(); i++ )
+        walk( s.elementAt(i) );
+    }
+    else if( n instanceof NodeListOptional )
+    {
+      NodeListOptional l = (NodeListOptional)n;
+      updateInt( l.size() );
+      for( int i=0; i<l.size(); i++ )
+        walk( l.elementAt(i) );
+    }
+    else if( n instanceof NodeList )
+    {
+      NodeList l = (NodeList)n;
+      updateInt( l.size() );
+      for( int i=0; i<l.size(); i++ )
+        walk( l.elementAt(i) );
+    }
+    else
+    {
+      update( n.getClass().getName() );
+      Field[] fields = getFields( n.getClass() );
+      for( int i=0; i<fields.length; i++ )
+      {
+        try
+        {
+          walk( (Node)(fields[i].get(n)) );
+        }
+        catch(IllegalAccessException e)
+        {
+          throw new ProgrammingErrorException(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the <code>f0</code>, <code>f1</code>, ... child fields of a
+   * syntax-tree class.  Also used by {@link MethodSplitter}.
+   */
+  static Field[] getFields( Class c )
+  {
+    Field[] fields = (Field[])(fieldTable.get(c));
+    if( fields == null )
+    {
+      ArrayList list = new ArrayList();
+      for( int i=0; ; i++ )
+      {
+        try
+        {
+          Field f = c.getField( "f" + i );
+          if( Node.class.isAssignableFrom( f.getType() ) )
+            list.add(f);
+        }
+        catch(NoSuchFieldException e)
+        {
+          break;
+        }
+      }
+      fields = (Field[])(list.toArray( new Field[list.size()] ));
+      fieldTable.put( c, fields );
+    }
+    return fields;
+  }
+}
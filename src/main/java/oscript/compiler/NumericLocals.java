@@ -0,0 +1,806 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.syntaxtree.*;
+import oscript.exceptions.*;
+import oscript.parser.OscriptParserConstants;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+
+/**
+ * Finds the variables of a node-evaluator which can be kept in a primitive
+ * <code>long</code> or <code>double</code> local variable, rather than as
+ * a member of a scope object.  Reading such a variable boxes the value
+ * with <code>OExactNumber.makeExactNumber</code> or
+ * <code>OInexactNumber.makeInexactNumber</code>, while assignments and
+ * arithmetic on it are done with primitive instructions.
+ * <p>
+ * To be sure the variable can't be seen or changed other than by the code
+ * of the node-evaluator, the analysis is conservative.  A variable is a
+ * candidate if:
+ * <ul>
+ *   <li> it is declared (once) with a plain <code>var</code> in a block or
+ *        <code>for</code> loop, since variables declared at the top-level
+ *        of a function are visible to subclasses and the like
+ *   <li> the block contains no function, <code>eval</code>,
+ *        <code>import</code> or <code>mixin</code>, which could see the
+ *        block's scope
+ *   <li> every reference to the name is within the block and after the
+ *        declaration
+ *   <li> every reference is either a read of the value, or is assigned
+ *        with <code>=</code>, <code>+=</code>, <code>-=</code>,
+ *        <code>*=</code>, <code>/=</code>, <code>++</code> or
+ *        <code>--</code>
+ * </ul>
+ * and a candidate is kept unboxed if its initializer and everything
+ * assigned to it is a number of the same type, as determined by
+ * {@link #typeOf}.  Since that depends on the type of other candidates,
+ * candidates are dropped until nothing changes.  The remaining candidates
+ * are kept in a <code>Value</code> local variable instead, unless they
+ * are assigned with an operator other than the ones above.
+ * <p>
+ * A block whose variables are all kept in local variables doesn't need a
+ * scope object at all, see {@link #isElided}.
+ * <p>
+ * Whether a variable is actually kept unboxed is decided by the compiler
+ * when it gets to the declaration, see {@link CompilerScope#createNumericMember}.
+ */
+final class NumericLocals implements OscriptParserConstants
+{
+  /**
+   * Set <code>-Doscript.compiler.noNumericLocals=true</code> to keep all
+   * variables in scope objects.
+   */
+  static final boolean ENABLED = !Boolean.getBoolean("oscript.compiler.noNumericLocals");
+
+  static final int NONE   = 0;
+  static final int LONG   = 1;
+  static final int DOUBLE = 2;
+  static final int VALUE  = 3;
+
+  /**
+   * Resolves the type of a reference to a variable.
+   */
+  interface Env
+  {
+    /**
+     * @param id   the &lt;IDENTIFIER&gt; token
+     * @return the type of the variable, or <code>NONE</code>
+     */
+    int getNumericType( NodeToken id );
+  }
+
+  // kinds of references:
+  private static final int REF_READ   = 0;
+  private static final int REF_ASSIGN = 1;
+  private static final int REF_INCDEC = 2;
+  private static final int REF_OTHER  = 3;
+
+  /**
+   * Maps the &lt;IDENTIFIER&gt; token of the declaration to the type.
+   */
+  private final IdentityHashMap typeTable = new IdentityHashMap();
+
+  /**
+   * The <i>ScopeBlock</i>s which don't need a scope object.
+   */
+  private final IdentityHashMap elidedTable = new IdentityHashMap();
+
+  // analysis state:
+  private LinkedList regionStack = new LinkedList();
+  private LinkedList regionList = new LinkedList();
+  private Hashtable declTable = new Hashtable();
+  private HashSet badNames = new HashSet();
+  private LinkedList refList = new LinkedList();
+  private IdentityHashMap targetTable = new IdentityHashMap();
+  private int order = 0;
+  private int lvalueDepth = 0;
+  private boolean rootOpen = false;   // the scope of the node-evaluator itself
+
+  /**
+   * A block or loop, within which variables are declared.
+   */
+  private static class Region
+  {
+    boolean open = false;
+    Node    block;
+    Region  scopeRegion;     // the region of the block whose scope holds the variables
+    int     declCnt  = 0;
+    int     localCnt = 0;
+  }
+
+  private static class Decl implements Env
+  {
+    NodeToken  id;
+    Node       init;
+    Region     region;
+    int        order;
+    int        type = NONE;
+    LinkedList refs = new LinkedList();
+    Hashtable  candidates;
+
+    public int getNumericType( NodeToken id )
+    {
+      Decl decl = (Decl)(candidates.get( id.tokenImage ));
+      return (decl == null) ? NONE : decl.type;
+    }
+  }
+
+  private static class Ref
+  {
+    String   name;
+    Object[] regions;
+    int      order;
+    int      kind;
+    int      op;
+    Node     rhs;
+  }
+
+  private NumericLocals() {}
+
+  /*=======================================================================*/
+  /**
+   * Analyze the body of a node-evaluator.
+   *
+   * @param node   the node being compiled
+   * @return the result of the analysis
+   */
+  static NumericLocals analyze( Node node )
+  {
+    NumericLocals nl = new NumericLocals();
+    if(ENABLED)
+    {
+      nl.walk(node);
+      nl.solve();
+    }
+
+    // the analysis state is no longer needed:
+    nl.regionStack = null;
+    nl.regionList  = null;
+    nl.declTable   = null;
+    nl.badNames    = null;
+    nl.refList     = null;
+    nl.targetTable = null;
+
+    return nl;
+  }
+
+  /**
+   * Get the type that a variable should be kept as.
+   *
+   * @param id   the &lt;IDENTIFIER&gt; token of the declaration
+   * @return <code>LONG</code>, <code>DOUBLE</code>, <code>VALUE</code>, or
+   *    <code>NONE</code> if the variable should be a member of the scope
+   */
+  int getType( NodeToken id )
+  {
+    Integer type = (Integer)(typeTable.get(id));
+    return (type == null) ? NONE : type.intValue();
+  }
+
+  /**
+   * Can the scope object for a block be skipped, because all the variables
+   * declared in the block are kept in local variables, and nothing else can
+   * see the scope?
+   *
+   * @param n   the block
+   */
+  boolean isElided( ScopeBlock n )
+  {
+    return elidedTable.containsKey(n);
+  }
+
+  /*=======================================================================*/
+  /**
+   * Determine the type of an expression.
+   *
+   * @param n     the expression
+   * @param env   resolves the types of variables
+   * @return <code>LONG</code> or <code>DOUBLE</code> if the expression
+   *    evaluates to a number of that type, otherwise <code>NONE</code>
+   */
+  static int typeOf( Node n, Env env )
+  {
+    n = unwrap(n);
+
+    if( n instanceof NodeToken )
+    {
+      switch( ((NodeToken)n).kind )
+      {
+        case INTEGER_LITERAL:
+        case HEX_LITERAL:
+        case OCTAL_LITERAL:
+        case DECIMAL_LITERAL:
+        case BINARY_LITERAL:
+          return LONG;
+        case FLOATING_POINT_LITERAL:
+          return DOUBLE;
+        default:
+          return NONE;
+      }
+    }
+
+    if( n instanceof IdentifierPrimaryPrefix )
+      return env.getNumericType( ((IdentifierPrimaryPrefix)n).f0 );
+
+    if( n instanceof AdditiveExpression )
+      return typeOfChain( ((AdditiveExpression)n).f0, ((AdditiveExpression)n).f1, env );
+
+    if( n instanceof MultiplicativeExpression )
+      return typeOfChain( ((MultiplicativeExpression)n).f0, ((MultiplicativeExpression)n).f1, env );
+
+    if( n instanceof UnaryExpression )
+    {
+      UnaryExpression e = (UnaryExpression)n;
+      switch( operator( e.f0.node ) )
+      {
+        case PLUS:
+        case MINUS:
+          return typeOf( e.f1, env );
+        default:
+          return NONE;
+      }
+    }
+
+    return NONE;
+  }
+
+  private static int typeOfChain( Node f0, NodeListOptional f1, Env env )
+  {
+    int type = typeOf( f0, env );
+    for( int i=0; (type != NONE) && (i < f1.size()); i++ )
+    {
+      NodeSequence seq = (NodeSequence)(f1.elementAt(i));
+      type = binaryType( type, operator( seq.elementAt(0) ), typeOf( seq.elementAt(1), env ) );
+    }
+    return type;
+  }
+
+  /**
+   * The type of the result of a binary operator.  Exact numbers are only
+   * closed under <code>+</code>, <code>-</code> and <code>*</code>, an
+   * inexact operand makes the result inexact.
+   */
+  static int binaryType( int type, int op, int argType )
+  {
+    if( (type == NONE) || (argType == NONE) )
+      return NONE;
+
+    switch(op)
+    {
+      case PLUS:
+      case MINUS:
+      case STAR:
+        return ((type == LONG) && (argType == LONG)) ? LONG : DOUBLE;
+      case SLASH:
+        return ((type == DOUBLE) || (argType == DOUBLE)) ? DOUBLE : NONE;
+      default:
+        return NONE;
+    }
+  }
+
+  /**
+   * The kind of the token of a <code>( "op1" | "op2" ... )</code> choice.
+   */
+  static int operator( Node n )
+  {
+    return ((NodeToken)(((NodeChoice)n).choice)).kind;
+  }
+
+  /**
+   * Skip over the productions of an expression that just contain another
+   * expression, ie. an <i>AdditiveExpression</i> without any "+" or "-".
+   *
+   * @return the first node which is not just a wrapper
+   */
+  static Node unwrap( Node n )
+  {
+    while(true)
+    {
+      if( n instanceof NodeChoice )
+        n = ((NodeChoice)n).choice;
+      else if( (n instanceof Expression) && (((Expression)n).f1.size() == 0) )
+        n = ((Expression)n).f0;
+      else if( (n instanceof AssignmentExpression) && (((AssignmentExpression)n).f1.size() == 0) )
+        n = ((AssignmentExpression)n).f0;
+      else if( (n instanceof ConditionalExpression) && !((ConditionalExpression)n).f1.present() )
+        n = ((ConditionalExpression)n).f0;
+      else if( (n instanceof LogicalOrExpression) && (((LogicalOrExpression)n).f1.size() == 0) )
+        n = ((LogicalOrExpression)n).f0;
+      else if( (n instanceof LogicalAndExpression) && (((LogicalAndExpression)n).f1.size() == 0) )
+        n = ((LogicalAndExpression)n).f0;
+      else if( (n instanceof BitwiseOrExpression) && (((BitwiseOrExpression)n).f1.size() == 0) )
+        n = ((BitwiseOrExpression)n).f0;
+      else if( (n instanceof BitwiseXorExpression) && (((BitwiseXorExpression)n).f1.size() == 0) )
+        n = ((BitwiseXorExpression)n).f0;
+      else if( (n instanceof BitwiseAndExpression) && (((BitwiseAndExpression)n).f1.size() == 0) )
+        n = ((BitwiseAndExpression)n).f0;
+      else if( (n instanceof EqualityExpression) && (((EqualityExpression)n).f1.size() == 0) )
+        n = ((EqualityExpression)n).f0;
+      else if( (n instanceof RelationalExpression) && (((RelationalExpression)n).f1.size() == 0) )
+        n = ((RelationalExpression)n).f0;
+      else if( (n instanceof ShiftExpression) && (((ShiftExpression)n).f1.size() == 0) )
+        n = ((ShiftExpression)n).f0;
+      else if( (n instanceof AdditiveExpression) && (((AdditiveExpression)n).f1.size() == 0) )
+        n = ((AdditiveExpression)n).f0;
+      else if( (n instanceof MultiplicativeExpression) && (((MultiplicativeExpression)n).f1.size() == 0) )
+        n = ((MultiplicativeExpression)n).f0;
+      else if( (n instanceof UnaryExpression) && !((UnaryExpression)n).f0.present() )
+        n = ((UnaryExpression)n).f1;
+      else if( (n instanceof PostfixExpression) && !((PostfixExpression)n).f1.present() )
+        n = ((PostfixExpression)n).f0;
+      else if( n instanceof TypeExpression )
+        n = ((TypeExpression)n).f0;
+      else if( (n instanceof PrimaryExpression) && (((PrimaryExpression)n).f1.size() == 0) )
+        n = ((PrimaryExpression)n).f0;
+      else if( n instanceof PrimaryPrefix )
+        n = ((PrimaryPrefix)n).f0;
+      else if( n instanceof PrimaryPrefixNotFunction )
+        n = ((PrimaryPrefixNotFunction)n).f0;
+      else if( n instanceof ParenPrimaryPrefix )
+        n = ((ParenPrimaryPrefix)n).f1;
+      else if( n instanceof Literal )
+        n = ((Literal)n).f0;
+      else
+        return n;
+    }
+  }
+
+  /*=======================================================================*/
+  private void walk( Node n )
+  {
+    if( (n == null) || (n instanceof NodeToken) )
+    {
+      return;
+    }
+    else if( n instanceof NodeOptional )
+    {
+      NodeOptional o = (NodeOptional)n;
+      if( o.present() )
+        walk( o.node );
+    }
+    else if( n instanceof NodeChoice )
+    {
+      walk( ((NodeChoice)n).choice );
+    }
+    else if( n instanceof NodeSequence )
+    {
+      NodeSequence s = (NodeSequence)n;
+      for( int i=0; i<s.size(); i++ )
+        walk( s.elementAt(i) );
+    }
+    else if( n instanceof NodeListOptional )
+    {
+      NodeListOptional l = (NodeListOptional)n;
+      for( int i=0; i<l.size(); i++ )
+        walk( l.elementAt(i) );
+    }
+    else if( n instanceof NodeList )
+    {
+      NodeList l = (NodeList)n;
+      for( int i=0; i<l.size(); i++ )
+        walk( l.elementAt(i) );
+    }
+    else if( (n instanceof FunctionDeclaration) ||
+             (n instanceof FunctionPrimaryPrefix) ||
+             (n instanceof ShorthandFunctionPrimaryPrefix) )
+    {
+      // the body is compiled separately, but can see the enclosing scopes:
+      openRegions();
+    }
+    else if( (n instanceof EvalBlock) || (n instanceof ImportBlock) || (n instanceof MixinBlock) )
+    {
+      openRegions();
+      walkFields(n);
+    }
+    else if( (n instanceof ScopeBlock) || (n instanceof ForLoopStatement) )
+    {
+      Region region = new Region();
+      if( n instanceof ScopeBlock )
+      {
+        region.block = n;
+        region.scopeRegion = region;
+      }
+      else if( !regionStack.isEmpty() )
+      {
+        // a loop doesn't have a scope of its own:
+        region.scopeRegion = ((Region)(regionStack.getFirst())).scopeRegion;
+      }
+      regionList.add(region);
+      regionStack.addFirst(region);
+      walkFields(n);
+      regionStack.removeFirst();
+    }
+    else if( n instanceof CollectionForLoopStatement )
+    {
+      // the loop variable is assigned by the translated loop:
+      Node pre = ((CollectionForLoopStatement)n).f2.f0.choice;
+      if( pre instanceof VariableDeclaration )
+        badNames.add( ((VariableDeclaration)pre).f2.tokenImage );
+      Region region = new Region();
+      if( !regionStack.isEmpty() )
+        region.scopeRegion = ((Region)(regionStack.getFirst())).scopeRegion;
+      regionStack.addFirst(region);
+      walkFields(n);
+      regionStack.removeFirst();
+    }
+    else if( n instanceof TryStatement )
+    {
+      // the catch blocks declare the exception variable:
+      TryStatement t = (TryStatement)n;
+      for( int i=0; i<t.f2.size(); i++ )
+        badNames.add( ((NodeToken)(((NodeSequence)(t.f2.elementAt(i))).elementAt(3))).tokenImage );
+      if( t.f3.present() )
+        badNames.add( ((NodeToken)(((NodeSequence)(t.f3.node)).elementAt(2))).tokenImage );
+      walkFields(n);
+    }
+    else if( n instanceof VariableDeclaration )
+    {
+      walkVariableDeclaration( (VariableDeclaration)n );
+    }
+    else if( (n instanceof AssignmentExpression) && (((AssignmentExpression)n).f1.size() > 0) )
+    {
+      walkAssignmentExpression( (AssignmentExpression)n );
+    }
+    else if( (n instanceof UnaryExpression) && isIncDec( ((UnaryExpression)n).f0 ) )
+    {
+      walkLvalue( ((UnaryExpression)n).f1, REF_INCDEC, -1, null );
+    }
+    else if( (n instanceof PostfixExpression) && ((PostfixExpression)n).f1.present() )
+    {
+      walkLvalue( ((PostfixExpression)n).f0, REF_INCDEC, -1, null );
+    }
+    else if( (n instanceof PrimaryExpression) ||
+             (n instanceof PrimaryExpressionNotFunction) ||
+             (n instanceof PrimaryExpressionWithTrailingFxnCallExpList) )
+    {
+      walkPrimaryExpression(n);
+    }
+    else if( n instanceof IdentifierPrimaryPrefix )
+    {
+      // not reached via a primary-expression, so don't know how it is used:
+      if( !targetTable.containsKey(n) )
+        addRef( ((IdentifierPrimaryPrefix)n).f0, REF_OTHER, -1, null );
+    }
+    else
+    {
+      walkFields(n);
+    }
+  }
+
+  private void walkFields( Node n )
+  {
+    Field[] fields = NodeDigest.getFields( n.getClass() );
+    for( int i=0; i<fields.length; i++ )
+      walk( getField( n, fields[i] ) );
+  }
+
+  private static Node getField( Node n, Field f )
+  {
+    try
+    {
+      return (Node)(f.get(n));
+    }
+    catch(IllegalAccessException e)
+    {
+      throw new ProgrammingErrorException(e);
+    }
+  }
+
+  private void openRegions()
+  {
+    for( Iterator itr=regionStack.iterator(); itr.hasNext(); )
+      ((Region)(itr.next())).open = true;
+    rootOpen = true;
+  }
+
+  /**
+   * Can code that the analysis doesn't see find the variables declared in
+   * a region?  A loop declares its variables in the scope of the enclosing
+   * block, so a function or <code>eval</code> that comes after the loop,
+   * which doesn't open the loop's own region, can still see them.
+   */
+  private boolean isOpen( Region region )
+  {
+    if( region.open )
+      return true;
+    else if( region.scopeRegion == null )
+      return rootOpen;
+    else
+      return region.scopeRegion.open;
+  }
+
+  private static boolean isIncDec( NodeOptional op )
+  {
+    if( !op.present() )
+      return false;
+    int kind = operator( op.node );
+    return (kind == INCR) || (kind == DECR);
+  }
+
+  private void walkVariableDeclaration( VariableDeclaration n )
+  {
+    Node init = n.f3.present() ? ((NodeSequence)(n.f3.node)).elementAt(1) : null;
+
+    // the initializer is evaluated before the variable is declared:
+    walk(init);
+
+    if( !regionStack.isEmpty() && (((Region)(regionStack.getFirst())).scopeRegion != null) )
+      ((Region)(regionStack.getFirst())).scopeRegion.declCnt++;
+
+    String name = n.f2.tokenImage;
+    if( declTable.containsKey(name) || (init == null) ||
+        (n.f0.f0.size() > 0) || regionStack.isEmpty() )
+    {
+      badNames.add(name);
+    }
+
+    if( !declTable.containsKey(name) )
+    {
+      Decl decl = new Decl();
+      decl.id     = n.f2;
+      decl.init   = init;
+      decl.region = regionStack.isEmpty() ? null : (Region)(regionStack.getFirst());
+      decl.order  = order++;
+      declTable.put( name, decl );
+    }
+  }
+
+  private void walkAssignmentExpression( AssignmentExpression n )
+  {
+    // all but the last operand are assigned to:
+    Node lvalue = n.f0;
+    for( int i=0; i<n.f1.size(); i++ )
+    {
+      NodeSequence seq = (NodeSequence)(n.f1.elementAt(i));
+      Node rhs = seq.elementAt(1);
+      if( n.f1.size() == 1 )
+        walkLvalue( lvalue, REF_ASSIGN, operator( seq.elementAt(0) ), rhs );
+      else
+        walkLvalue( lvalue, REF_OTHER, -1, null );
+      lvalue = rhs;
+    }
+    walk(lvalue);
+  }
+
+  /**
+   * Walk an expression that is assigned to.
+   */
+  private void walkLvalue( Node n, int kind, int op, Node rhs )
+  {
+    Node u = unwrap(n);
+
+    if( u instanceof IdentifierPrimaryPrefix )
+    {
+      addRef( ((IdentifierPrimaryPrefix)u).f0, kind, op, rhs );
+      targetTable.put( u, u );
+      walk(n);
+    }
+    else if( (u instanceof ConditionalExpression) ||
+             (u instanceof LogicalOrExpression) ||
+             (u instanceof LogicalAndExpression) )
+    {
+      // these evaluate to one of their operands, which would get assigned:
+      lvalueDepth++;
+      walk(n);
+      lvalueDepth--;
+    }
+    else
+    {
+      walk(n);
+    }
+  }
+
+  private void walkPrimaryExpression( Node n )
+  {
+    Field[] fields = NodeDigest.getFields( n.getClass() );
+    Node prefix  = getField( n, fields[0] );
+    Node postfix = getField( n, fields[1] );
+
+    boolean hasPostfix =
+      ((postfix instanceof NodeListOptional) && (((NodeListOptional)postfix).size() > 0)) ||
+      ((postfix instanceof NodeList) && (((NodeList)postfix).size() > 0));
+
+    Node u = unwrap(prefix);
+    if( u instanceof IdentifierPrimaryPrefix )
+    {
+      if( !targetTable.containsKey(u) )
+        addRef( ((IdentifierPrimaryPrefix)u).f0, (hasPostfix || (lvalueDepth > 0)) ? REF_OTHER : REF_READ, -1, null );
+    }
+    else
+    {
+      walk(prefix);
+    }
+
+    // subscripts and arguments are only read:
+    int savedLvalueDepth = lvalueDepth;
+    lvalueDepth = 0;
+    walk(postfix);
+    lvalueDepth = savedLvalueDepth;
+  }
+
+  private void addRef( NodeToken id, int kind, int op, Node rhs )
+  {
+    Ref ref = new Ref();
+    ref.name    = id.tokenImage;
+    ref.regions = regionStack.toArray();
+    ref.order   = order++;
+    ref.kind    = kind;
+    ref.op      = op;
+    ref.rhs     = rhs;
+    refList.add(ref);
+  }
+
+  /*=======================================================================*/
+  private void solve()
+  {
+    Hashtable candidates = new Hashtable();
+    for( Iterator itr=declTable.values().iterator(); itr.hasNext(); )
+    {
+      Decl decl = (Decl)(itr.next());
+      if( !badNames.contains( decl.id.tokenImage ) && !isOpen( decl.region ) )
+      {
+        decl.candidates = candidates;
+        candidates.put( decl.id.tokenImage, decl );
+      }
+    }
+
+    for( Iterator itr=refList.iterator(); itr.hasNext(); )
+    {
+      Ref  ref  = (Ref)(itr.next());
+      Decl decl = (Decl)(candidates.get( ref.name ));
+      if( decl == null )
+        continue;
+      if( (ref.kind == REF_OTHER) || (ref.order < decl.order) || !inRegion( ref, decl.region ) )
+        candidates.remove( ref.name );
+      else
+        decl.refs.add(ref);
+    }
+
+    // initial types, in order of declaration, since an initializer can
+    // only refer to candidates declared before it:
+    Decl[] decls = (Decl[])(candidates.values().toArray( new Decl[candidates.size()] ));
+    Arrays.sort( decls, new Comparator() {
+        public int compare( Object a, Object b )
+        {
+          return ((Decl)a).order - ((Decl)b).order;
+        }
+      } );
+    for( int i=0; i<decls.length; i++ )
+      decls[i].type = typeOf( decls[i].init, decls[i] );
+
+    // types only go to NONE, so this terminates:
+    boolean changed = true;
+    while(changed)
+    {
+      changed = false;
+      for( int i=0; i<decls.length; i++ )
+      {
+        if( (decls[i].type != NONE) && !check( decls[i] ) )
+        {
+          decls[i].type = NONE;
+          changed = true;
+        }
+      }
+    }
+
+    for( int i=0; i<decls.length; i++ )
+    {
+      if( (decls[i].type == NONE) && checkValue( decls[i] ) )
+        decls[i].type = VALUE;
+      if( decls[i].type != NONE )
+      {
+        typeTable.put( decls[i].id, Integer.valueOf( decls[i].type ) );
+        if( decls[i].region.scopeRegion != null )
+          decls[i].region.scopeRegion.localCnt++;
+      }
+    }
+
+    for( Iterator itr=regionList.iterator(); itr.hasNext(); )
+    {
+      Region region = (Region)(itr.next());
+      if( (region.block != null) && !region.open &&
+          (region.declCnt > 0) && (region.localCnt == region.declCnt) )
+        elidedTable.put( region.block, region.block );
+    }
+  }
+
+  /**
+   * Check that a candidate which isn't a number is only assigned with the
+   * operators the compiler can generate for a <code>Value</code> local.
+   */
+  private static boolean checkValue( Decl decl )
+  {
+    for( Iterator itr=decl.refs.iterator(); itr.hasNext(); )
+    {
+      Ref ref = (Ref)(itr.next());
+      if( ref.kind != REF_ASSIGN )
+        continue;
+
+      switch(ref.op)
+      {
+        case ASSIGN:
+        case PLUSASSIGN:
+        case MINUSASSIGN:
+        case STARASSIGN:
+        case SLASHASSIGN:
+          break;
+        default:
+          return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static boolean inRegion( Ref ref, Region region )
+  {
+    for( int i=0; i<ref.regions.length; i++ )
+      if( ref.regions[i] == region )
+        return true;
+    return false;
+  }
+
+  /**
+   * Check that the initializer and everything assigned to a candidate
+   * has the candidate's type.
+   */
+  private static boolean check( Decl decl )
+  {
+    if( typeOf( decl.init, decl ) != decl.type )
+      return false;
+
+    for( Iterator itr=decl.refs.iterator(); itr.hasNext(); )
+    {
+      Ref ref = (Ref)(itr.next());
+      if( ref.kind != REF_ASSIGN )
+        continue;
+
+      int type = typeOf( ref.rhs, decl );
+      switch(ref.op)
+      {
+        case ASSIGN:
+          if( type != decl.type )
+            return false;
+          break;
+        case PLUSASSIGN:
+          if( binaryType( decl.type, PLUS, type ) != decl.type )
+            return false;
+          break;
+        case MINUSASSIGN:
+          if( binaryType( decl.type, MINUS, type ) != decl.type )
+            return false;
+          break;
+        case STARASSIGN:
+          if( binaryType( decl.type, STAR, type ) != decl.type )
+            return false;
+          break;
+        case SLASHASSIGN:
+          if( binaryType( decl.type, SLASH, type ) != decl.type )
+            return false;
+          break;
+        default:
+          return false;
+      }
+    }
+
+    return true;
+  }
+}
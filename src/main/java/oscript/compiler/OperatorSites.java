@@ -0,0 +1,314 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.data.*;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+/**
+ * Call sites for the binary operators.  The compiler generates a call to
+ * one of the static methods of this class, named after the operator method
+ * of {@link Value} (ie. <code>bopPlus</code>), in place of calling the
+ * operator method directly, see {@link CompilerVisitor#dumpBinaryOp}.  The
+ * {@link ClassFileUpgrader} turns each of those calls into an
+ * <code>invokedynamic</code> linked by {@link #bootstrap}, while in a
+ * legacy class file it is simply a call to the static method.
+ * <p>
+ * Each call site is an inline cache keyed by the classes of the (unhanded)
+ * operands.  The first time a pair of classes is seen at a site, the site
+ * is linked to a path specialized for those classes, behind a guard that
+ * checks the classes.  For numbers that is a primitive computation, for
+ * other values a call to the operator method of the receiver's class.
+ * Once more than {@link #MAX_DEPTH} pairs have been seen, the site is
+ * megamorphic and is linked to the generic call.
+ * <p>
+ * Enabled with <code>-Doscript.compiler.indyOperators=true</code>.  By
+ * default the compiler calls the operator methods directly.
+ */
+public final class OperatorSites
+{
+  static final boolean ENABLED = Boolean.getBoolean("oscript.compiler.indyOperators");
+
+  /**
+   * The number of pairs of operand classes a call site is specialized for,
+   * <code>-Doscript.compiler.indyOperators.depth</code>.
+   */
+  static final int MAX_DEPTH = Integer.getInteger( "oscript.compiler.indyOperators.depth", 4 ).intValue();
+
+  private static final MethodType TYPE =
+    MethodType.methodType( Value.class, Value.class, Value.class );
+
+  private static final MethodHandle FALLBACK;
+  private static final MethodHandle TEST;
+  private static final MethodHandle UNHAND;
+
+  static {
+    try
+    {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      FALLBACK = lookup.findVirtual( OperatorCallSite.class, "fallback", TYPE );
+      TEST = lookup.findStatic( OperatorSites.class, "test",
+                                MethodType.methodType( boolean.class, Class.class, Class.class, Value.class, Value.class ) );
+      UNHAND = lookup.findVirtual( Value.class, "unhand", MethodType.methodType(Value.class) );
+    }
+    catch(ReflectiveOperationException e)
+    {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private OperatorSites() {}
+
+  /*=======================================================================*/
+  /**
+   * The bootstrap method for the <code>invokedynamic</code> call sites.
+   *
+   * @param lookup   the caller's lookup
+   * @param name     the operator method, ie. <code>bopPlus</code>
+   * @param type     <code>(Value,Value)Value</code>
+   * @return the call site
+   */
+  public static CallSite bootstrap( MethodHandles.Lookup lookup, String name, MethodType type )
+  {
+    return new OperatorCallSite( name, type );
+  }
+
+  private static final class OperatorCallSite extends InlineCacheCallSite
+  {
+    private final String name;
+
+    OperatorCallSite( String name, MethodType type )
+    {
+      super( type, MAX_DEPTH );
+      this.name = name;
+      setTarget( FALLBACK.bindTo(this) );
+    }
+
+    /**
+     * Called when the operands don't match any of the cached classes.
+     */
+    private Value fallback( Value a, Value b )
+      throws Throwable
+    {
+      Class ca = a.unhand().getClass();
+      Class cb = b.unhand().getClass();
+
+      MethodHandle mh = link( MethodHandles.insertArguments( TEST, 0, ca, cb ),
+                              specialize( name, ca, cb ),
+                              generic(name) );
+
+      return (Value)(mh.invokeExact( a, b ));
+    }
+  }
+
+  private static boolean test( Class ca, Class cb, Value a, Value b )
+  {
+    return (a.unhand().getClass() == ca) && (b.unhand().getClass() == cb);
+  }
+
+  /**
+   * The call to the operator method of {@link Value}, ie. one of the static
+   * methods of this class.
+   */
+  private static MethodHandle generic( String name )
+    throws ReflectiveOperationException
+  {
+    return MethodHandles.lookup().findStatic( OperatorSites.class, name, TYPE );
+  }
+
+  /**
+   * Get the path specialized for a pair of operand classes.
+   */
+  private static MethodHandle specialize( String name, Class ca, Class cb )
+    throws ReflectiveOperationException
+  {
+    // the primitive paths are named after the operator, ie. exactPlus:
+    String prefix = null;
+    if( (ca == OExactNumber.class) && (cb == OExactNumber.class) )
+      prefix = "exact";
+    else if( isNumber(ca) && isNumber(cb) )
+      prefix = "inexact";
+
+    if( prefix != null )
+    {
+      try
+      {
+        return MethodHandles.lookup().findStatic( OperatorSites.class, prefix + name.substring(3), TYPE );
+      }
+      catch(NoSuchMethodException e)
+      {
+        // no primitive path for this operator
+      }
+    }
+
+    // call the operator method of the receiver's class, which the JIT can
+    // inline since the class is known:
+    try
+    {
+      MethodHandle mh = MethodHandles.publicLookup().findVirtual( ca, name, MethodType.methodType( Value.class, Value.class ) );
+      return MethodHandles.filterArguments( mh.asType(TYPE), 0, UNHAND );
+    }
+    catch(IllegalAccessException e)
+    {
+      return generic(name);
+    }
+  }
+
+  private static boolean isNumber( Class c )
+  {
+    return (c == OExactNumber.class) || (c == OInexactNumber.class);
+  }
+
+  /*=======================================================================*/
+  /* The generic operators, called when the class file isn't upgraded, or
+   * the call site is megamorphic.
+   */
+
+  public static Value bopPlus( Value a, Value b )                  { return a.bopPlus(b); }
+  public static Value bopMinus( Value a, Value b )                 { return a.bopMinus(b); }
+  public static Value bopMultiply( Value a, Value b )              { return a.bopMultiply(b); }
+  public static Value bopDivide( Value a, Value b )                { return a.bopDivide(b); }
+  public static Value bopRemainder( Value a, Value b )             { return a.bopRemainder(b); }
+  public static Value bopBitwiseOr( Value a, Value b )             { return a.bopBitwiseOr(b); }
+  public static Value bopBitwiseXor( Value a, Value b )            { return a.bopBitwiseXor(b); }
+  public static Value bopBitwiseAnd( Value a, Value b )            { return a.bopBitwiseAnd(b); }
+  public static Value bopLeftShift( Value a, Value b )             { return a.bopLeftShift(b); }
+  public static Value bopSignedRightShift( Value a, Value b )      { return a.bopSignedRightShift(b); }
+  public static Value bopUnsignedRightShift( Value a, Value b )    { return a.bopUnsignedRightShift(b); }
+  public static Value bopLessThan( Value a, Value b )              { return a.bopLessThan(b); }
+  public static Value bopGreaterThan( Value a, Value b )           { return a.bopGreaterThan(b); }
+  public static Value bopLessThanOrEquals( Value a, Value b )      { return a.bopLessThanOrEquals(b); }
+  public static Value bopGreaterThanOrEquals( Value a, Value b )   { return a.bopGreaterThanOrEquals(b); }
+
+  /*=======================================================================*/
+  /* Paths for two exact numbers.
+   */
+
+  private static Value exactPlus( Value a, Value b )
+  {
+    return OExactNumber.makeExactNumber( a.unhand().castToExactNumber() + b.unhand().castToExactNumber() );
+  }
+
+  private static Value exactMinus( Value a, Value b )
+  {
+    return OExactNumber.makeExactNumber( a.unhand().castToExactNumber() - b.unhand().castToExactNumber() );
+  }
+
+  private static Value exactMultiply( Value a, Value b )
+  {
+    return OExactNumber.makeExactNumber( a.unhand().castToExactNumber() * b.unhand().castToExactNumber() );
+  }
+
+  private static Value exactBitwiseOr( Value a, Value b )
+  {
+    return OExactNumber.makeExactNumber( a.unhand().castToExactNumber() | b.unhand().castToExactNumber() );
+  }
+
+  private static Value exactBitwiseXor( Value a, Value b )
+  {
+    return OExactNumber.makeExactNumber( a.unhand().castToExactNumber() ^ b.unhand().castToExactNumber() );
+  }
+
+  private static Value exactBitwiseAnd( Value a, Value b )
+  {
+    return OExactNumber.makeExactNumber( a.unhand().castToExactNumber() & b.unhand().castToExactNumber() );
+  }
+
+  private static Value exactLeftShift( Value a, Value b )
+  {
+    return OExactNumber.makeExactNumber( a.unhand().castToExactNumber() << b.unhand().castToExactNumber() );
+  }
+
+  private static Value exactSignedRightShift( Value a, Value b )
+  {
+    return OExactNumber.makeExactNumber( a.unhand().castToExactNumber() >> b.unhand().castToExactNumber() );
+  }
+
+  private static Value exactUnsignedRightShift( Value a, Value b )
+  {
+    return OExactNumber.makeExactNumber( a.unhand().castToExactNumber() >>> b.unhand().castToExactNumber() );
+  }
+
+  private static Value exactLessThan( Value a, Value b )
+  {
+    return (a.unhand().castToExactNumber() < b.unhand().castToExactNumber()) ? OBoolean.TRUE : OBoolean.FALSE;
+  }
+
+  private static Value exactGreaterThan( Value a, Value b )
+  {
+    return (a.unhand().castToExactNumber() > b.unhand().castToExactNumber()) ? OBoolean.TRUE : OBoolean.FALSE;
+  }
+
+  private static Value exactLessThanOrEquals( Value a, Value b )
+  {
+    return (a.unhand().castToExactNumber() <= b.unhand().castToExactNumber()) ? OBoolean.TRUE : OBoolean.FALSE;
+  }
+
+  private static Value exactGreaterThanOrEquals( Value a, Value b )
+  {
+    return (a.unhand().castToExactNumber() >= b.unhand().castToExactNumber()) ? OBoolean.TRUE : OBoolean.FALSE;
+  }
+
+  /*=======================================================================*/
+  /* Paths for two numbers, at least one of which is inexact.
+   */
+
+  private static Value inexactPlus( Value a, Value b )
+  {
+    return OInexactNumber.makeInexactNumber( a.unhand().castToInexactNumber() + b.unhand().castToInexactNumber() );
+  }
+
+  private static Value inexactMinus( Value a, Value b )
+  {
+    return OInexactNumber.makeInexactNumber( a.unhand().castToInexactNumber() - b.unhand().castToInexactNumber() );
+  }
+
+  private static Value inexactMultiply( Value a, Value b )
+  {
+    return OInexactNumber.makeInexactNumber( a.unhand().castToInexactNumber() * b.unhand().castToInexactNumber() );
+  }
+
+  private static Value inexactDivide( Value a, Value b )
+  {
+    return OInexactNumber.makeInexactNumber( a.unhand().castToInexactNumber() / b.unhand().castToInexactNumber() );
+  }
+
+  private static Value inexactLessThan( Value a, Value b )
+  {
+    return (a.unhand().castToInexactNumber() < b.unhand().castToInexactNumber()) ? OBoolean.TRUE : OBoolean.FALSE;
+  }
+
+  private static Value inexactGreaterThan( Value a, Value b )
+  {
+    return (a.unhand().castToInexactNumber() > b.unhand().castToInexactNumber()) ? OBoolean.TRUE : OBoolean.FALSE;
+  }
+
+  private static Value inexactLessThanOrEquals( Value a, Value b )
+  {
+    return (a.unhand().castToInexactNumber() <= b.unhand().castToInexactNumber()) ? OBoolean.TRUE : OBoolean.FALSE;
+  }
+
+  private static Value inexactGreaterThanOrEquals( Value a, Value b )
+  {
+    return (a.unhand().castToInexactNumber() >= b.unhand().castToInexactNumber()) ? OBoolean.TRUE : OBoolean.FALSE;
+  }
+}
@@ -0,0 +1,40 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+
+/**
+ * A bytecode peephole pass over the methods generated by the compiler, run
+ * by the {@link PassManager} after the {@link CompilerVisitor} has generated
+ * the method and run its deferred runnables.
+ */
+interface Pass
+{
+  /**
+   * The name of the pass, used to select the pass in
+   * <code>-Doscript.compiler.passes</code>.
+   */
+  String getName();
+  
+  /**
+   * Run the pass on a method.
+   * 
+   * @param cfg   the control flow graph of the method
+   * @return <code>true</code> if the method was changed
+   */
+  boolean run( ControlFlowGraph cfg );
+}
@@ -0,0 +1,284 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.OscriptHost;
+
+import org.apache.bcel.generic.*;
+
+import java.util.*;
+
+
+/**
+ * Runs a pipeline of bytecode peephole {@link Pass}es over each method
+ * generated by the compiler, after the {@link CompilerVisitor} has
+ * generated it and before the max-stack is computed.  The passes work on
+ * the {@link ControlFlowGraph} of the method's instructions, so they can
+ * clean up the control flow the visitor leaves behind, but they don't see
+ * values or types; optimizations on values, such as constant folding or
+ * keeping numbers unboxed, are done by the visitor on the syntax-tree.
+ * <p>
+ * The pipeline is <code>-Doscript.compiler.passes</code>, a comma separated
+ * list of pass names, which defaults to {@link #DEFAULT_PIPELINE}.  A pass
+ * may appear more than once.  Set it to an empty string to not run any.
+ * An unknown pass name is reported to the host, and left out.
+ * <p>
+ * Set <code>-Doscript.compiler.dumpIR=true</code> to dump the graph of each
+ * method to {@link OscriptHost#error} before the first pass, and after each
+ * pass that changes it.  Any other value only dumps the methods of classes
+ * whose name contains the value.
+ */
+final class PassManager
+{
+  static final String DEFAULT_PIPELINE = "jumps,unreachable,nops";
+  
+  private static final Hashtable passTable = new Hashtable();
+  
+  static {
+    register( new JumpThreading() );
+    register( new UnreachableCodeElimination() );
+    register( new NopElimination() );
+  }
+  
+  private static final Pass[] PIPELINE =
+    parsePipeline( System.getProperty( "oscript.compiler.passes", DEFAULT_PIPELINE ) );
+  
+  private static final String DUMP_IR = System.getProperty("oscript.compiler.dumpIR");
+  
+  private PassManager() {}
+  
+  private static void register( Pass pass )
+  {
+    passTable.put( pass.getName(), pass );
+  }
+  
+  private static Pass[] parsePipeline( String pipeline )
+  {
+    LinkedList passes = new LinkedList();
+    StringTokenizer st = new StringTokenizer( pipeline, ", " );
+    while( st.hasMoreTokens() )
+    {
+      String name = st.nextToken();
+      Pass pass = (Pass)(passTable.get(name));
+      if( pass == null )
+        OscriptHost.me.error("oscript.compiler.passes: no such pass, ignoring: " + name);
+      else
+        passes.add(pass);
+    }
+    return (Pass[])(passes.toArray( new Pass[passes.size()] ));
+  }
+  
+  /**
+   * The names of the passes in the pipeline, in the order they are run.
+   */
+  static String getPipeline()
+  {
+    StringBuffer sb = new StringBuffer();
+    for( int i=0; i<PIPELINE.length; i++ )
+    {
+      if( i > 0 )
+        sb.append(',');
+      sb.append( PIPELINE[i].getName() );
+    }
+    return sb.toString();
+  }
+  
+  /*=======================================================================*/
+  /**
+   * Run the pipeline on a method.
+   * 
+   * @param className   the name of the class the method belongs to
+   * @param mg          the method
+   */
+  static void run( String className, MethodGen mg )
+  {
+    if( PIPELINE.length == 0 )
+      return;
+    
+    boolean dump = (DUMP_IR != null) &&
+      (DUMP_IR.equals("true") || (className.indexOf(DUMP_IR) != -1));
+    
+    ControlFlowGraph cfg = ControlFlowGraph.build(mg);
+    if(dump)
+      dump( className, "input", cfg );
+    
+    for( int i=0; i<PIPELINE.length; i++ )
+    {
+      if( PIPELINE[i].run(cfg) )
+      {
+        cfg = ControlFlowGraph.build(mg);
+        if(dump)
+          dump( className, PIPELINE[i].getName(), cfg );
+      }
+    }
+  }
+  
+  private static void dump( String className, String stage, ControlFlowGraph cfg )
+  {
+    OscriptHost.me.error( "=== " + className + "." + cfg + "    (after " + stage + ")" );
+  }
+  
+  /*=======================================================================*/
+  /**
+   * Retargets a branch to a <code>goto</code> to the final target of the
+   * <code>goto</code>, and removes a <code>goto</code> to the next
+   * instruction.  These are left by nested loops and conditions, and by
+   * <code>break</code> and <code>continue</code>.
+   */
+  private static final class JumpThreading implements Pass
+  {
+    public String getName()
+    {
+      return "jumps";
+    }
+    
+    public boolean run( ControlFlowGraph cfg )
+    {
+      boolean changed = false;
+      
+      InstructionHandle[] ihs = cfg.getInstructionList().getInstructionHandles();
+      for( int i=0; i<ihs.length; i++ )
+      {
+        Instruction insn = ihs[i].getInstruction();
+        if( !(insn instanceof BranchInstruction) || (insn instanceof JsrInstruction) )
+          continue;
+        
+        if( insn instanceof Select )
+        {
+          Select s = (Select)insn;
+          InstructionHandle[] targets = s.getTargets();
+          for( int j=0; j<targets.length; j++ )
+          {
+            InstructionHandle target = follow( targets[j] );
+            if( target != targets[j] )
+            {
+              s.setTarget( j, target );
+              changed = true;
+            }
+          }
+        }
+        
+        BranchInstruction bi = (BranchInstruction)insn;
+        InstructionHandle target = follow( bi.getTarget() );
+        if( target != bi.getTarget() )
+        {
+          bi.setTarget(target);
+          changed = true;
+        }
+      }
+      
+      for( int i=0; i<ihs.length; i++ )
+      {
+        Instruction insn = ihs[i].getInstruction();
+        if( (insn instanceof GotoInstruction) &&
+            (((GotoInstruction)insn).getTarget() == ihs[i].getNext()) )
+        {
+          cfg.delete( ihs[i], ihs[i] );
+          changed = true;
+        }
+      }
+      
+      return changed;
+    }
+    
+    private static InstructionHandle follow( InstructionHandle target )
+    {
+      IdentityHashMap seen = new IdentityHashMap();
+      while( (target.getInstruction() instanceof GotoInstruction) && !seen.containsKey(target) )
+      {
+        seen.put( target, target );
+        target = ((GotoInstruction)(target.getInstruction())).getTarget();
+      }
+      return target;
+    }
+  }
+  
+  /*=======================================================================*/
+  /**
+   * Removes the blocks that can't be reached, ie. the code following a
+   * <code>return</code>, <code>break</code> or <code>throw</code>, or a
+   * branch of a condition that is a compile-time constant.
+   */
+  private static final class UnreachableCodeElimination implements Pass
+  {
+    public String getName()
+    {
+      return "unreachable";
+    }
+    
+    public boolean run( ControlFlowGraph cfg )
+    {
+      ControlFlowGraph.Block[] blocks = cfg.getBlocks();
+      boolean[] reachable = cfg.getReachable();
+      
+      // an unreachable handler only protects unreachable blocks:
+      MethodGen mg = cfg.getMethod();
+      CodeExceptionGen[] cegs = mg.getExceptionHandlers();
+      for( int i=0; i<cegs.length; i++ )
+        for( int j=0; j<blocks.length; j++ )
+          if( !reachable[j] && (blocks[j].getStart() == cegs[i].getHandlerPC()) )
+            mg.removeExceptionHandler( cegs[i] );
+      
+      boolean changed = false;
+      for( int i=0; i<blocks.length; i++ )
+      {
+        if( reachable[i] )
+          continue;
+        
+        int j = i;
+        while( (j+1 < blocks.length) && !reachable[j+1] )
+          j++;
+        
+        cfg.delete( blocks[i].getStart(), blocks[j].getEnd() );
+        changed = true;
+        i = j;
+      }
+      
+      return changed;
+    }
+  }
+  
+  /*=======================================================================*/
+  /**
+   * Removes the <code>nop</code>s the compiler uses as placeholders, ie.
+   * for the initializer of a member which ends up not being cached.
+   */
+  private static final class NopElimination implements Pass
+  {
+    public String getName()
+    {
+      return "nops";
+    }
+    
+    public boolean run( ControlFlowGraph cfg )
+    {
+      boolean changed = false;
+      
+      InstructionHandle[] ihs = cfg.getInstructionList().getInstructionHandles();
+      for( int i=0; i<ihs.length; i++ )
+      {
+        if( (ihs[i].getInstruction() instanceof NOP) && (ihs[i].getNext() != null) )
+        {
+          cfg.delete( ihs[i], ihs[i] );
+          changed = true;
+        }
+      }
+      
+      return changed;
+    }
+  }
+}
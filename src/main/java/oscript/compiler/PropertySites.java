@@ -0,0 +1,163 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.data.*;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+
+/**
+ * Call sites for property access, ie. <code>obj.name</code> and
+ * <code>obj["name"]</code>.  Like {@link OperatorSites}, the compiler
+ * generates a call to one of the static methods of this class, which the
+ * {@link ClassFileUpgrader} turns into an <code>invokedynamic</code>
+ * linked by {@link #bootstrap}, see {@link CompilerVisitor#dumpPropertyAccess}.
+ * <p>
+ * Each call site is an inline cache keyed by the class of the (unhanded)
+ * receiver, linking to the lookup method of that class so the JIT can
+ * inline it.  The member table of an object is private to its class, so
+ * the member itself is still looked up by the object; what the cache
+ * saves is the virtual dispatch through the {@link Reference} and the
+ * receiver.  Once more than {@link #MAX_DEPTH} classes have been seen,
+ * the site is megamorphic and is linked to the generic call.
+ * <p>
+ * Enabled with <code>-Doscript.compiler.indyProperties=true</code>.  By
+ * default the compiler calls the lookup methods directly.
+ */
+public final class PropertySites
+{
+  static final boolean ENABLED = Boolean.getBoolean("oscript.compiler.indyProperties");
+
+  /**
+   * The number of receiver classes a call site is specialized for,
+   * <code>-Doscript.compiler.indyProperties.depth</code>.
+   */
+  static final int MAX_DEPTH = Integer.getInteger( "oscript.compiler.indyProperties.depth", 4 ).intValue();
+
+  private static final MethodType GET_MEMBER_TYPE =
+    MethodType.methodType( Value.class, Value.class, int.class );
+  private static final MethodType ELEMENT_AT_TYPE =
+    MethodType.methodType( Value.class, Value.class, Value.class );
+
+  private static final MethodHandle GET_MEMBER_FALLBACK;
+  private static final MethodHandle ELEMENT_AT_FALLBACK;
+  private static final MethodHandle TEST;
+  private static final MethodHandle UNHAND;
+
+  static {
+    try
+    {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      GET_MEMBER_FALLBACK = lookup.findVirtual( PropertyCallSite.class, "getMemberFallback", GET_MEMBER_TYPE );
+      ELEMENT_AT_FALLBACK = lookup.findVirtual( PropertyCallSite.class, "elementAtFallback", ELEMENT_AT_TYPE );
+      TEST = lookup.findStatic( PropertySites.class, "test",
+                                MethodType.methodType( boolean.class, Class.class, Value.class ) );
+      UNHAND = lookup.findVirtual( Value.class, "unhand", MethodType.methodType(Value.class) );
+    }
+    catch(ReflectiveOperationException e)
+    {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private PropertySites() {}
+
+  /*=======================================================================*/
+  /**
+   * The bootstrap method for the <code>invokedynamic</code> call sites.
+   *
+   * @param lookup   the caller's lookup
+   * @param name     the lookup method, <code>getMember</code> or
+   *    <code>elementAt</code>
+   * @param type     <code>(Value,int)Value</code> or
+   *    <code>(Value,Value)Value</code>
+   * @return the call site
+   */
+  public static CallSite bootstrap( MethodHandles.Lookup lookup, String name, MethodType type )
+  {
+    return new PropertyCallSite( name, type );
+  }
+
+  private static final class PropertyCallSite extends InlineCacheCallSite
+  {
+    private final String name;
+
+    PropertyCallSite( String name, MethodType type )
+    {
+      super( type, MAX_DEPTH );
+      this.name = name;
+      setTarget( (name.equals("getMember") ? GET_MEMBER_FALLBACK : ELEMENT_AT_FALLBACK).bindTo(this) );
+    }
+
+    /**
+     * Called when the receiver doesn't match any of the cached classes.
+     */
+    private Value getMemberFallback( Value obj, int id )
+      throws Throwable
+    {
+      return (Value)(relink(obj).invokeExact( obj, id ));
+    }
+
+    private Value elementAtFallback( Value obj, Value idx )
+      throws Throwable
+    {
+      return (Value)(relink(obj).invokeExact( obj, idx ));
+    }
+
+    private MethodHandle relink( Value obj )
+      throws ReflectiveOperationException
+    {
+      MethodType type = type();
+      Class c = obj.unhand().getClass();
+
+      MethodHandle test = MethodHandles.dropArguments( MethodHandles.insertArguments( TEST, 0, c ),
+                                                       1, type.parameterType(1) );
+      MethodHandle generic = MethodHandles.lookup().findStatic( PropertySites.class, name, type );
+
+      // call the lookup method of the receiver's class:
+      MethodHandle specialized;
+      try
+      {
+        specialized = MethodHandles.publicLookup().findVirtual( c, name, type.dropParameterTypes( 0, 1 ) );
+        specialized = MethodHandles.filterArguments( specialized.asType(type), 0, UNHAND );
+      }
+      catch(IllegalAccessException e)
+      {
+        specialized = generic;
+      }
+
+      return link( test, specialized, generic );
+    }
+  }
+
+  private static boolean test( Class c, Value obj )
+  {
+    return obj.unhand().getClass() == c;
+  }
+
+  /*=======================================================================*/
+  /* The generic lookups, called when the class file isn't upgraded, or
+   * the call site is megamorphic.
+   */
+
+  public static Value getMember( Value obj, int id )      { return obj.getMember(id); }
+  public static Value elementAt( Value obj, Value idx )   { return obj.elementAt(idx); }
+}
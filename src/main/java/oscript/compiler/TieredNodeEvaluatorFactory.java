@@ -0,0 +1,366 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.OscriptHost;
+import oscript.NodeEvaluator;
+import oscript.data.FunctionData;
+import oscript.data.Reference;
+import oscript.data.Scope;
+import oscript.data.Symbol;
+import oscript.exceptions.ProgrammingErrorException;
+import oscript.parser.OscriptParserConstants;
+import oscript.syntaxtree.*;
+import oscript.translator.FunctionDeclarationTranslator;
+import oscript.translator.ShorthandFunctionPrimaryPrefixTranslator;
+import oscript.util.StackFrame;
+import oscript.util.SymbolTable;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A node-evaluator factory that starts out interpreting a node, and only
+ * compiles it once it has been evaluated often enough to be worth the cost
+ * of compilation.  This avoids compiling one-shot setup scripts at all.
+ * <p>
+ * The returned evaluator counts invocations of {@link NodeEvaluator#evalNode}.
+ * When the count reaches the threshold, the node is queued for compilation
+ * at low priority with {@link CompiledNodeEvaluatorFactory#createNodeEvaluatorAsync},
+ * and the compiled evaluator is swapped in for subsequent invocations.
+ * Invocations that are already running in the interpreter finish there.
+ * If the compile queue is full, the node stays in the interpreter and is
+ * queued again after another <code>threshold</code> invocations.
+ * <p>
+ * A script that is only evaluated once may still define functions that
+ * are called often, so the bodies of the functions defined by the node
+ * are tiered the same way, each with its own count.  Before the node is
+ * first interpreted, the function-data of each function is set up with a
+ * tiered evaluator for its body, which the interpreter then uses for the
+ * functions it creates.  Functions that extend another function, or that
+ * have static members, are left to the interpreter.
+ * <p>
+ * The transitions between the tiers are counted by {@link CompilerMetrics}.
+ * <p>
+ * Configured with the system properties:
+ * <ul>
+ *   <li> <code>oscript.compiler.tier.threshold</code> - number of invocations
+ *        before compiling (default 100, 0 compiles on first use)
+ * </ul>
+ */
+public class TieredNodeEvaluatorFactory implements oscript.NodeEvaluatorFactory
+{
+  public static final int COMPILE_THRESHOLD = Integer.getInteger( "oscript.compiler.tier.threshold", 100 ).intValue();
+
+  private final oscript.NodeEvaluatorFactory interpretedFactory = new oscript.interpreter.InterpretedNodeEvaluatorFactory();
+  private final CompiledNodeEvaluatorFactory compiledFactory    = new CompiledNodeEvaluatorFactory();
+  private final int threshold;
+
+  /*=======================================================================*/
+  /**
+   * Class Constructor, using the default {@link #COMPILE_THRESHOLD}.
+   */
+  public TieredNodeEvaluatorFactory()
+  {
+    this(COMPILE_THRESHOLD);
+  }
+
+  /**
+   * Class Constructor.
+   *
+   * @param threshold   the number of invocations after which a node is compiled
+   */
+  public TieredNodeEvaluatorFactory( int threshold )
+  {
+    this.threshold = threshold;
+  }
+
+  /*=======================================================================*/
+  public NodeEvaluator createNodeEvaluator( String name, Node node )
+  {
+    if( threshold <= 0 )
+      return compiledFactory.createNodeEvaluator( name, node );
+
+    tierFunctions( name, node );
+    
+    CompilerMetrics.tierInterpreted();
+    return new TieredNodeEvaluator( name, node, null, interpretedFactory.createNodeEvaluator( name, node ) );
+  }
+
+  /**
+   * Class-data is already compiled, so there is nothing to gain by
+   * interpreting it first.
+   */
+  public NodeEvaluator createNodeEvaluator( String name, byte[] classdata )
+  {
+    return compiledFactory.createNodeEvaluator( name, classdata );
+  }
+
+  /*=======================================================================*/
+  /**
+   * Set up the function-data of the functions defined within <code>n</code>,
+   * including nested functions, with a tiered evaluator for the body.  The
+   * interpreter only creates the function-data if it isn't already set.
+   */
+  private void tierFunctions( String name, Node n )
+  {
+    if( (n == null) || (n instanceof NodeToken) )
+    {
+      return;
+    }
+    else if( n instanceof FunctionDeclaration )
+    {
+      tierFunctions( name, FunctionDeclarationTranslator.translate( (FunctionDeclaration)n ) );
+      return;
+    }
+    else if( n instanceof ShorthandFunctionPrimaryPrefix )
+    {
+      tierFunctions( name, ShorthandFunctionPrimaryPrefixTranslator.translate( (ShorthandFunctionPrimaryPrefix)n ) );
+      return;
+    }
+    else if( n instanceof FunctionPrimaryPrefix )
+    {
+      tierFunction( name, (FunctionPrimaryPrefix)n );
+    }
+    
+    if( n instanceof NodeOptional )
+    {
+      NodeOptional o = (NodeOptional)n;
+      if( o.present() )
+        tierFunctions( name, o.node );
+    }
+    else if( n instanceof NodeChoice )
+    {
+      tierFunctions( name, ((NodeChoice)n).choice );
+    }
+    else if( n instanceof NodeSequence )
+    {
+      NodeSequence l = (NodeSequence)n;
+      for( int i=0; i<l.size(); i++ )
+        tierFunctions( name, l.elementAt(i) );
+    }
+    else if( n instanceof NodeListOptional )
+    {
+      NodeListOptional l = (NodeListOptional)n;
+      for( int i=0; i<l.size(); i++ )
+        tierFunctions( name, l.elementAt(i) );
+    }
+    else if( n instanceof NodeList )
+    {
+      NodeList l = (NodeList)n;
+      for( int i=0; i<l.size(); i++ )
+        tierFunctions( name, l.elementAt(i) );
+    }
+    else
+    {
+      Field[] fields = NodeDigest.getFields( n.getClass() );
+      for( int i=0; i<fields.length; i++ )
+      {
+        try
+        {
+          tierFunctions( name, (Node)(fields[i].get(n)) );
+        }
+        catch(IllegalAccessException e)
+        {
+          throw new ProgrammingErrorException(e);
+        }
+      }
+    }
+  }
+  
+  private void tierFunction( String name, FunctionPrimaryPrefix n )
+  {
+    if( (n.fd != null) || n.f4.present() || (n.f6.staticNodes != null) )
+      return;
+    
+    String fxnName = Symbol.getSymbol( n.id ).castToString();
+    
+    int[]   argIds;
+    boolean varargs;
+    if( n.f2.present() )
+    {
+      Arglist arglist = (Arglist)(n.f2.node);
+      argIds  = getArglist(arglist);
+      varargs = arglist.f3.present();
+    }
+    else
+    {
+      argIds  = CompilerContext.EMPTY_ARG_IDS;
+      varargs = false;
+    }
+    
+    String bodyName = name + "$" + fxnName;
+    CompilerMetrics.tierInterpreted();
+    NodeEvaluator body = new TieredNodeEvaluator( bodyName, n.f6, argIds,
+      interpretedFactory.createNodeEvaluator( bodyName, n.f6 ) );
+    
+    n.fd = new FunctionData( 
+      Symbol.getSymbol(fxnName).getId(),
+      argIds,
+      varargs,
+      null,
+      body,
+      null,
+      n.hasVarInScope,
+      n.hasFxnInScope,
+      n.comment
+    );
+  }
+  
+  /**
+   * The argument ids and attributes, the same as the compiler generates
+   * for a function, see <code>CompilerVisitor.getArglist()</code>.
+   */
+  private static int[] getArglist( Arglist n )
+  {
+    if( n.cachedValue == null )
+    {
+      int[] argIds = new int[ 2 * (n.f2.size() + 1) ];
+      
+      argIds[0] = Symbol.getSymbol(n.f1.tokenImage).getId();
+      argIds[1] = getPermissions( n.f0, Reference.ATTR_PRIVATE );
+      
+      for( int i=0; i<n.f2.size(); i++ )
+      {
+        NodeSequence seq = (NodeSequence)(n.f2.elementAt(i));
+        argIds[2*(i+1)]   = Symbol.getSymbol( ((NodeToken)(seq.elementAt(2))).tokenImage ).getId();
+        argIds[2*(i+1)+1] = getPermissions( (Permissions)(seq.elementAt(1)), Reference.ATTR_PRIVATE );
+      }
+      
+      n.cachedValue = argIds;
+    }
+    
+    return n.cachedValue;
+  }
+  
+  private static int getPermissions( Permissions n, int attr )
+  {
+    for( int i=0; i<n.f0.size(); i++ )
+    {
+      Node t = n.f0.elementAt(i);
+      while( t instanceof NodeChoice )
+        t = ((NodeChoice)t).choice;
+      
+      switch( ((NodeToken)t).kind )
+      {
+        case OscriptParserConstants.PRIVATE:
+          attr = (attr & 0xf0) | Reference.ATTR_PRIVATE;
+          break;
+        case OscriptParserConstants.PROTECTED:
+          attr = (attr & 0xf0) | Reference.ATTR_PROTECTED;
+          break;
+        case OscriptParserConstants.PUBLIC:
+          attr = (attr & 0xf0) | Reference.ATTR_PUBLIC;
+          break;
+        case OscriptParserConstants.STATIC:
+          attr |= Reference.ATTR_STATIC;
+          break;
+        case OscriptParserConstants.CONST:
+          attr |= Reference.ATTR_CONST;
+          break;
+        default:
+          throw new ProgrammingErrorException("bad kind: " + ((NodeToken)t).tokenImage);
+      }
+    }
+    
+    return attr;
+  }
+  
+  /*=======================================================================*/
+  /**
+   * The evaluator returned by the tiered factory, and used for the bodies
+   * of the functions it defines, which delegates to the interpreter until
+   * the compiled evaluator is available.
+   */
+  private class TieredNodeEvaluator extends NodeEvaluator
+  {
+    private static final int INTERPRETED = 0;
+    private static final int COMPILING   = 1;
+    private static final int DONE        = 2;
+
+    private final String name;
+    private volatile Node node;        // cleared once no longer needed
+    private final int[] argIds;        // if a function body, else null
+    private final AtomicInteger invocationCnt = new AtomicInteger();
+    private final AtomicInteger state = new AtomicInteger(INTERPRETED);
+    private volatile NodeEvaluator delegate;
+
+    TieredNodeEvaluator( String name, Node node, int[] argIds, NodeEvaluator interpreted )
+    {
+      this.name     = name;
+      this.node     = node;
+      this.argIds   = argIds;
+      this.delegate = interpreted;
+    }
+
+    public Object evalNode( StackFrame sf, Scope scope )
+    {
+      if( (state.get() == INTERPRETED) &&
+          (invocationCnt.incrementAndGet() >= threshold) &&
+          state.compareAndSet( INTERPRETED, COMPILING ) )
+      {
+        CompilerMetrics.tierCompileQueued();
+        compiledFactory.createNodeEvaluatorAsync( name, node, argIds, CompiledNodeEvaluatorFactory.PRIORITY_LOW )
+          .whenComplete( this::compiled );
+      }
+      return delegate.evalNode( sf, scope );
+    }
+
+    private void compiled( NodeEvaluator compiled, Throwable e )
+    {
+      if( e == null )
+      {
+        delegate = compiled;
+        CompilerMetrics.tierCompiled();
+      }
+      else if( (e instanceof RejectedExecutionException) ||
+               (e.getCause() instanceof RejectedExecutionException) )
+      {
+        // the compile queue is full, keep interpreting and try again
+        // after another threshold invocations:
+        invocationCnt.set(0);
+        state.set(INTERPRETED);
+        return;
+      }
+      else
+      {
+        // stay in the interpreter:
+        CompilerMetrics.tierCompileFailed();
+        OscriptHost.me.error("Error in background compile of " + name + ": " + e);
+      }
+      node = null;
+      state.set(DONE);
+    }
+
+    public SymbolTable getSharedMemberIndexTable( int perm )
+    {
+      return delegate.getSharedMemberIndexTable(perm);
+    }
+
+    public int getId()
+    {
+      return delegate.getId();
+    }
+
+    public Object getFile()
+    {
+      return delegate.getFile();
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.NodeEvaluator;
+import oscript.parser.OscriptParser;
+import oscript.syntaxtree.Node;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Tests the single-flight compile queue of
+ * {@link CompiledNodeEvaluatorFactory#createNodeEvaluatorAsync}.  The
+ * compiles themselves are replaced by ones that record their name, and
+ * that can be held until the test lets them finish, so the compiler
+ * threads can be kept busy while requests queue up.
+ */
+public class AsyncCompileTest
+{
+  private static final long TIMEOUT = 10;
+
+  private final GatedFactory factory = new GatedFactory();
+  private final Node node = parse("var x = 1;");
+
+  @AfterEach
+  public void openGates()
+    throws Exception
+  {
+    factory.openAll();
+  }
+
+  @Test
+  public void concurrentRequestsShareOneCompile()
+    throws Exception
+  {
+    factory.gate("a");
+    CompletableFuture<NodeEvaluator> f1 = factory.createNodeEvaluatorAsync( "a", node );
+    CompletableFuture<NodeEvaluator> f2 = factory.createNodeEvaluatorAsync( "a", node );
+    assertSame( f1, f2 );
+
+    factory.open("a");
+    f1.get( TIMEOUT, TimeUnit.SECONDS );
+    assertEquals( 1, factory.count("a") );
+  }
+
+  @Test
+  public void reloadedNodeIsCompiledAgain()
+    throws Exception
+  {
+    factory.gate("a");
+    CompletableFuture<NodeEvaluator> f1 = factory.createNodeEvaluatorAsync( "a", node );
+    CompletableFuture<NodeEvaluator> f2 = factory.createNodeEvaluatorAsync( "a", parse("var x = 1;") );
+    assertNotSame( f1, f2 );
+
+    factory.open("a");
+    f1.get( TIMEOUT, TimeUnit.SECONDS );
+    f2.get( TIMEOUT, TimeUnit.SECONDS );
+    assertEquals( 2, factory.count("a") );
+  }
+
+  @Test
+  public void joiningWithHigherPriorityMovesTaskUp()
+    throws Exception
+  {
+    factory.occupyCompilerThreads(node);
+
+    CompletableFuture<NodeEvaluator> a = factory.createNodeEvaluatorAsync( "a", node, CompiledNodeEvaluatorFactory.PRIORITY_LOW );
+    CompletableFuture<NodeEvaluator> b = factory.createNodeEvaluatorAsync( "b", node, CompiledNodeEvaluatorFactory.PRIORITY_NORMAL );
+    assertSame( a, factory.createNodeEvaluatorAsync( "a", node, CompiledNodeEvaluatorFactory.PRIORITY_HIGH ) );
+
+    // free one compiler thread, which takes the queued tasks in order:
+    factory.open("busy-0");
+    a.get( TIMEOUT, TimeUnit.SECONDS );
+    b.get( TIMEOUT, TimeUnit.SECONDS );
+
+    List<String> order = factory.compiled;
+    assertTrue( order.indexOf("a") < order.indexOf("b"), order.toString() );
+  }
+
+  @Test
+  public void fullQueueIsRejected()
+    throws Exception
+  {
+    factory.occupyCompilerThreads(node);
+
+    // the running compiles hold queue slots as well, so this fills the
+    // queue well before the loop ends:
+    CompletableFuture<NodeEvaluator> rejected = null;
+    for( int i=0; (rejected == null) && (i<CompiledNodeEvaluatorFactory.ASYNC_QUEUE_SIZE); i++ )
+    {
+      factory.gate( "queued-" + i );
+      CompletableFuture<NodeEvaluator> f = factory.createNodeEvaluatorAsync( "queued-" + i, node );
+      if( f.isDone() )
+        rejected = f;
+    }
+
+    assertTrue( rejected != null, "queue never filled" );
+    ExecutionException e = assertThrows( ExecutionException.class, rejected::get );
+    assertInstanceOf( RejectedExecutionException.class, e.getCause() );
+  }
+
+  /*=======================================================================*/
+  /**
+   * A factory whose compiles only record their name, and wait for the
+   * test to open their gate, if they have one.
+   */
+  private static class GatedFactory extends CompiledNodeEvaluatorFactory
+  {
+    final List<String> compiled = Collections.synchronizedList( new ArrayList<String>() );
+    private final ConcurrentHashMap<String,CountDownLatch> gates = new ConcurrentHashMap<>();
+    private final Semaphore started = new Semaphore(0);
+
+    NodeEvaluator createNodeEvaluator( String name, Node node, int[] argIds )
+    {
+      compiled.add(name);
+      started.release();
+
+      CountDownLatch gate = gates.get(name);
+      try
+      {
+        if( (gate != null) && !gate.await( TIMEOUT, TimeUnit.SECONDS ) )
+          throw new IllegalStateException( "gate never opened: " + name );
+      }
+      catch(InterruptedException e)
+      {
+        throw new IllegalStateException(e);
+      }
+      return null;
+    }
+
+    void gate( String name )
+    {
+      gates.put( name, new CountDownLatch(1) );
+    }
+
+    void open( String name )
+    {
+      gates.get(name).countDown();
+    }
+
+    void openAll()
+    {
+      for( CountDownLatch gate : gates.values() )
+        gate.countDown();
+    }
+
+    int count( String name )
+    {
+      return Collections.frequency( compiled, name );
+    }
+
+    /**
+     * Start a held compile on each compiler thread, named
+     * <code>busy-<i>N</i></code>, so later requests stay queued.
+     */
+    void occupyCompilerThreads( Node node )
+      throws InterruptedException
+    {
+      for( int i=0; i<CompiledNodeEvaluatorFactory.ASYNC_THREADS; i++ )
+      {
+        gate( "busy-" + i );
+        createNodeEvaluatorAsync( "busy-" + i, node );
+      }
+      assertTrue( started.tryAcquire( CompiledNodeEvaluatorFactory.ASYNC_THREADS, TIMEOUT, TimeUnit.SECONDS ),
+                  "compiler threads not all busy" );
+    }
+  }
+
+  private static Node parse( String src )
+  {
+    try
+    {
+      return (new OscriptParser( new StringReader(src) )).ProgramFile();
+    }
+    catch(Exception e)
+    {
+      throw new RuntimeException( "error parsing: " + e.getMessage(), e );
+    }
+  }
+}
@@ -0,0 +1,196 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.OscriptInterpreter;
+import oscript.parser.OscriptParser;
+import oscript.syntaxtree.Node;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Tests the {@link BytecodeCache} pack file, and that the
+ * {@link NodeDigest} key changes with everything that the generated
+ * class-data depends on.
+ */
+public class BytecodeCacheTest
+{
+  private static final int HEADER_SIZE = 8;
+
+  private static final byte[] DATA_A = "class-data of a".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] DATA_B = "class-data of b, which is a bit longer".getBytes(StandardCharsets.UTF_8);
+
+  @TempDir
+  File dir;
+
+  @BeforeAll
+  public static void init()
+  {
+    // errors are reported through the host:
+    OscriptInterpreter.getGlobalScope();
+  }
+
+  @Test
+  public void roundTripAcrossReopen()
+    throws IOException
+  {
+    File file = new File( dir, "cache.pack" );
+
+    BytecodeCache cache = new BytecodeCache(file);
+    cache.put( "a", DATA_A );
+    cache.put( "b", DATA_B );
+    assertArrayEquals( DATA_A, cache.get("a") );
+    cache.close();
+
+    cache = new BytecodeCache(file);
+    assertArrayEquals( DATA_A, cache.get("a") );
+    assertArrayEquals( DATA_B, cache.get("b") );
+    assertNull( cache.get("c") );
+    cache.close();
+  }
+
+  @Test
+  public void truncatedRecordIsSkipped()
+    throws IOException
+  {
+    File file = new File( dir, "cache.pack" );
+
+    BytecodeCache cache = new BytecodeCache(file);
+    cache.put( "a", DATA_A );
+    cache.put( "b", DATA_B );
+    cache.close();
+
+    // tear the last record, as if the VM died while appending it:
+    long endOfA = HEADER_SIZE + recordSize( "a", DATA_A );
+    try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+    {
+      raf.setLength( raf.length() - 5 );
+    }
+
+    cache = new BytecodeCache(file);
+    assertArrayEquals( DATA_A, cache.get("a") );
+    assertNull( cache.get("b") );
+    assertEquals( endOfA, file.length() );
+
+    // and it can be stored again:
+    cache.put( "b", DATA_B );
+    cache.close();
+
+    cache = new BytecodeCache(file);
+    assertArrayEquals( DATA_A, cache.get("a") );
+    assertArrayEquals( DATA_B, cache.get("b") );
+    cache.close();
+  }
+
+  @Test
+  public void corruptRecordIsSkipped()
+    throws IOException
+  {
+    File file = new File( dir, "cache.pack" );
+
+    BytecodeCache cache = new BytecodeCache(file);
+    cache.put( "a", DATA_A );
+    cache.put( "b", DATA_B );
+    cache.close();
+
+    // flip a bit in the data of the first record:
+    long dataOfA = HEADER_SIZE + 4 + "a".length() + 12;
+    try( RandomAccessFile raf = new RandomAccessFile( file, "rw" ) )
+    {
+      raf.seek(dataOfA);
+      int b = raf.read();
+      raf.seek(dataOfA);
+      raf.write( b ^ 0x01 );
+    }
+
+    cache = new BytecodeCache(file);
+    assertNull( cache.get("a") );
+    assertArrayEquals( DATA_B, cache.get("b") );
+
+    // the corrupt record is not in the index, so it can be stored again:
+    cache.put( "a", DATA_A );
+    assertArrayEquals( DATA_A, cache.get("a") );
+    cache.close();
+
+    cache = new BytecodeCache(file);
+    assertArrayEquals( DATA_A, cache.get("a") );
+    assertArrayEquals( DATA_B, cache.get("b") );
+    cache.close();
+  }
+
+  @Test
+  public void keyChangesWithCompilerAndOptions()
+    throws IOException
+  {
+    Node node = parse("var x = 1; function f(a) { return a + x; }");
+    String version = CompilerContext.COMPILER_VERSION;
+    String options = CompilerContext.getCodegenOptions();
+
+    String key = NodeDigest.digest( "test", node );
+    assertEquals( key, NodeDigest.digest( version, options, "test", node, null ) );
+    assertEquals( key, NodeDigest.digest( "test", parse("var x = 1; function f(a) { return a + x; }") ) );
+
+    String[] changed = new String[] {
+      NodeDigest.digest( version + ".1", options, "test", node, null ),
+      NodeDigest.digest( version, options + ",oscript.compiler.passes=", "test", node, null ),
+      NodeDigest.digest( version, options, "test2", node, null ),
+      NodeDigest.digest( version, options, "test", node, new int[] { 1, 0 } ),
+      NodeDigest.digest( "test", parse("var x = 2; function f(a) { return a + x; }") ),
+    };
+
+    BytecodeCache cache = new BytecodeCache( new File( dir, "cache.pack" ) );
+    cache.put( key, DATA_A );
+    for( int i=0; i<changed.length; i++ )
+    {
+      assertNotEquals( key, changed[i], "change " + i );
+      assertNull( cache.get( changed[i] ), "change " + i );
+    }
+    assertArrayEquals( DATA_A, cache.get(key) );
+    cache.close();
+  }
+
+  private static long recordSize( String key, byte[] data )
+  {
+    return 4 + key.getBytes(StandardCharsets.UTF_8).length + 12 + data.length;
+  }
+
+  private static Node parse( String src )
+  {
+    try
+    {
+      return (new OscriptParser( new StringReader(src) )).ProgramFile();
+    }
+    catch(Exception e)
+    {
+      throw new RuntimeException( "error parsing: " + e.getMessage(), e );
+    }
+  }
+}
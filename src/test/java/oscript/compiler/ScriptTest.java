@@ -0,0 +1,138 @@
+/*=============================================================================
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package oscript.compiler;
+
+import oscript.NodeEvaluator;
+import oscript.OscriptInterpreter;
+import oscript.data.BasicScope;
+import oscript.data.Symbol;
+import oscript.data.Value;
+import oscript.exceptions.PackagedScriptObjectException;
+import oscript.interpreter.InterpretedNodeEvaluatorFactory;
+import oscript.parser.OscriptParser;
+import oscript.syntaxtree.Node;
+import oscript.util.StackFrame;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Runs each of the scripts in <tt>scripts/</tt> with the interpreter and
+ * compiled, and checks that the compiled script ends up with the same
+ * value of its <code>result</code> variable.  Each script collects what
+ * it does into <code>result</code>, so a difference anywhere in the
+ * script shows up.
+ * <p>
+ * The codegen options are read once per VM, so the build runs these tests
+ * with the default options, with every optimization turned off, with
+ * every optimization turned on, and with a split limit small enough that
+ * most bodies are split into helper methods (see the surefire executions
+ * in the pom).
+ * <p>
+ * Add a test by adding a script, and its name to the list below.
+ */
+public class ScriptTest
+{
+  /**
+   * The compiled script is run more than once, so the inline caches are
+   * linked for more than one receiver, and a cached lookup that survives
+   * into the next evaluation shows up.
+   */
+  private static final int COMPILED_RUNS = 3;
+  
+  @ParameterizedTest
+  @ValueSource(strings = {
+    "closure-after-loop",
+    "closures",
+    "comparisons",
+    "const-folding",
+    "control-flow",
+    "inline-caches",
+    "loop-members",
+    "method-split",
+    "numeric-locals",
+    "try-finally",
+  })
+  public void script( String script )
+  {
+    String src = load(script);
+    String expected = run( new InterpretedNodeEvaluatorFactory().createNodeEvaluator( script, parse(src) ) );
+    
+    NodeEvaluator compiled = new CompiledNodeEvaluatorFactory().createNodeEvaluator( "oscript_test_" + script, parse(src) );
+    for( int i=0; i<COMPILED_RUNS; i++ )
+      assertEquals( expected, run(compiled), script + ", run " + i );
+  }
+  
+  /**
+   * Evaluate a script in a new scope, and get its <code>result</code>,
+   * or the exception it threw.
+   */
+  private static String run( NodeEvaluator ne )
+  {
+    BasicScope scope = new BasicScope( OscriptInterpreter.getGlobalScope() );
+    try
+    {
+      ne.evalNode( StackFrame.currentStackFrame(), scope );
+    }
+    catch(PackagedScriptObjectException e)
+    {
+      return "threw " + e.val.castToString();
+    }
+    Value result = scope.lookupInScope( Symbol.getSymbol("result").getId() );
+    return result.unhand().castToString();
+  }
+  
+  private static Node parse( String src )
+  {
+    try
+    {
+      return (new OscriptParser( new StringReader(src) )).ProgramFile();
+    }
+    catch(Exception e)
+    {
+      throw new RuntimeException( "error parsing: " + e.getMessage(), e );
+    }
+  }
+  
+  private static String load( String script )
+  {
+    try( InputStream in = ScriptTest.class.getResourceAsStream( "scripts/" + script + ".os" ) )
+    {
+      if( in == null )
+        throw new IllegalArgumentException( "no such script: " + script );
+      
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while( (n = in.read(buf)) > 0 )
+        bos.write( buf, 0, n );
+      return new String( bos.toByteArray(), StandardCharsets.UTF_8 );
+    }
+    catch(java.io.IOException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+}